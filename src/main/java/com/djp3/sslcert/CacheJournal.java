@@ -0,0 +1,294 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An append-only log of cache insertions and invalidations, so that a restarted verifier can get
+ * back the cache it had without going back to every responder. The format is:
+ *
+ * <pre>
+ *   int    magic "SSLJ"
+ *   int    version
+ *   repeated:
+ *     int    length of the payload
+ *     payload:
+ *       byte   1 (put), then the nextUpdate, key and value as in {@link ColdStorage}
+ *       byte   2 (remove), then the key
+ *     int    CRC32 of the payload
+ * </pre>
+ *
+ * Appends only encode the record into memory. The records are written to disk, in one write, when
+ * the journal is flushed. A record that was cut short by a crash fails its CRC and ends the replay.
+ * Compaction rewrites the journal as one put per live cache entry.
+ */
+class CacheJournal<K, V> implements Closeable {
+
+  private static transient volatile Logger log = null;
+
+  public static Logger getLog() {
+    if (log == null) {
+      log = LogManager.getLogger(CacheJournal.class);
+    }
+    return log;
+  }
+
+  static final int MAGIC = 0x53534c4a;
+  static final int VERSION = 1;
+
+  static final byte PUT = 1;
+  static final byte REMOVE = 2;
+
+  private final Path path;
+  private final ColdStorageCodec<K, V> codec;
+  private final Function<V, Date> nextUpdate;
+
+  /* Records waiting to be written, guarded by itself */
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+  /* Guarded by this */
+  private FileChannel channel = null;
+
+  CacheJournal(Path path, ColdStorageCodec<K, V> codec, Function<V, Date> nextUpdate) {
+    this.path = path;
+    this.codec = codec;
+    this.nextUpdate = nextUpdate;
+  }
+
+  /**
+   * Reads the journal from the start. Puts whose nextUpdate has passed are treated as removes.
+   *
+   * @param put receives each live put
+   * @param remove receives each removed key
+   * @return the number of records read
+   * @throws IOException if the journal can't be read. A damaged tail is logged and not an error.
+   */
+  int replay(BiConsumer<K, V> put, Consumer<K> remove) throws IOException {
+    int count = 0;
+    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+      DataInputStream data =
+          new DataInputStream(new BufferedInputStream(Channels.newInputStream(in), 64 * 1024));
+      if ((data.readInt() != MAGIC) || (data.readInt() != VERSION)) {
+        throw new IOException("Not a cache journal: " + path);
+      }
+      long now = System.currentTimeMillis();
+      CRC32 crc = new CRC32();
+      while (true) {
+        byte[] payload;
+        try {
+          payload = ColdStorage.readField(data);
+          int expected = data.readInt();
+          crc.reset();
+          crc.update(payload);
+          if ((int) crc.getValue() != expected) {
+            getLog().warn("Cache journal has a damaged record, ignoring the rest of " + path);
+            break;
+          }
+        } catch (EOFException e) {
+          break;
+        }
+
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        byte op = record.readByte();
+        if (op == PUT) {
+          long expires = record.readLong();
+          K key = codec.decodeKey(ColdStorage.readField(record));
+          if (expires > now) {
+            put.accept(key, codec.decodeValue(ColdStorage.readField(record)));
+          } else {
+            remove.accept(key);
+          }
+        } else if (op == REMOVE) {
+          remove.accept(codec.decodeKey(ColdStorage.readField(record)));
+        } else {
+          throw new IOException("Unknown cache journal record " + op + " in " + path);
+        }
+        count++;
+      }
+    } catch (NoSuchFileException e) {
+      //Nothing journaled yet
+    }
+    return count;
+  }
+
+  /** Records that a value was put in the cache. Cheap, nothing is written until the next flush. */
+  void appendPut(K key, V value) {
+    try {
+      byte[] frame = encodePut(key, value);
+      if (frame != null) {
+        append(frame);
+      }
+    } catch (IOException e) {
+      getLog().warn("Unable to journal cache entry " + key + "\n" + e);
+    }
+  }
+
+  /** Records that a key was removed from the cache */
+  void appendRemove(K key) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(REMOVE);
+      byte[] k = codec.encodeKey(key);
+      out.writeInt(k.length);
+      out.write(k);
+      append(frame(bytes.toByteArray()));
+    } catch (IOException e) {
+      getLog().warn("Unable to journal cache removal " + key + "\n" + e);
+    }
+  }
+
+  /* Null if the value has no nextUpdate, it would be expired as soon as it was replayed */
+  private byte[] encodePut(K key, V value) throws IOException {
+    Date expires = nextUpdate.apply(value);
+    if (expires == null) {
+      return null;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(PUT);
+    out.writeLong(expires.getTime());
+    byte[] k = codec.encodeKey(key);
+    out.writeInt(k.length);
+    out.write(k);
+    byte[] v = codec.encodeValue(value);
+    out.writeInt(v.length);
+    out.write(v);
+    return frame(bytes.toByteArray());
+  }
+
+  private static byte[] frame(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer frame = ByteBuffer.allocate(payload.length + 8);
+    frame.putInt(payload.length);
+    frame.put(payload);
+    frame.putInt((int) crc.getValue());
+    return frame.array();
+  }
+
+  private void append(byte[] frame) {
+    synchronized (pending) {
+      pending.write(frame, 0, frame.length);
+    }
+  }
+
+  private byte[] takePending() {
+    synchronized (pending) {
+      byte[] ret = pending.toByteArray();
+      pending.reset();
+      return ret;
+    }
+  }
+
+  /** Writes the records appended since the last flush to disk */
+  synchronized void flush() throws IOException {
+    byte[] bytes = takePending();
+    if (bytes.length == 0) {
+      return;
+    }
+    if (channel == null) {
+      throw new IOException("Cache journal is closed: " + path);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    channel.force(false);
+  }
+
+  /**
+   * Replaces the journal with one put per live cache entry and opens it for appending. Records that
+   * were waiting to be flushed are dropped, the cache already holds their effect. Records appended
+   * while this runs are written after the snapshot on the next flush.
+   *
+   * @param entries the current cache contents
+   */
+  synchronized void compact(Map<K, V> entries) throws IOException {
+    takePending();
+    long now = System.currentTimeMillis();
+    Path parent = path.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel out =
+          FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        DataOutputStream data =
+            new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(out), 64 * 1024));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        for (Map.Entry<K, V> e : entries.entrySet()) {
+          Date expires = nextUpdate.apply(e.getValue());
+          if ((expires != null) && (expires.getTime() > now)) {
+            data.write(encodePut(e.getKey(), e.getValue()));
+          }
+        }
+        data.flush();
+        out.force(true);
+      }
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+      ColdStorage.moveAtomically(temp, path);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (channel != null) {
+      try {
+        flush();
+      } finally {
+        channel.close();
+        channel = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert;
+
+import java.security.InvalidParameterException;
+import java.security.cert.X509Certificate;
+
+/** A certificate to check together with its issuer, as handed to the batch revocation API. */
+public class CertAndIssuer {
+
+  private final X509Certificate peerCert;
+  private final X509Certificate issuerCert;
+  private final X509Certificate[] fullChain;
+
+  public CertAndIssuer(
+      X509Certificate peerCert, X509Certificate issuerCert, X509Certificate[] fullChain) {
+    if (peerCert == null) {
+      throw new InvalidParameterException("peerCert must not be null");
+    }
+    this.peerCert = peerCert;
+    this.issuerCert = issuerCert;
+    this.fullChain = fullChain;
+  }
+
+  public CertAndIssuer(X509Certificate peerCert, X509Certificate issuerCert) {
+    this(peerCert, issuerCert, new X509Certificate[] {peerCert, issuerCert});
+  }
+
+  public X509Certificate getPeerCert() {
+    return peerCert;
+  }
+
+  public X509Certificate getIssuerCert() {
+    return issuerCert;
+  }
+
+  public X509Certificate[] getFullChain() {
+    return fullChain;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * peerCert.hashCode() + ((issuerCert == null) ? 0 : issuerCert.hashCode());
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof CertAndIssuer)) {
+      return false;
+    }
+    CertAndIssuer other = (CertAndIssuer) obj;
+    if (!peerCert.equals(other.peerCert)) {
+      return false;
+    }
+    if (issuerCert == null) {
+      return other.issuerCert == null;
+    }
+    return issuerCert.equals(other.issuerCert);
+  }
+}
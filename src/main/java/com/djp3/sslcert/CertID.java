@@ -0,0 +1,231 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Identifies a certificate by the SHA-1 hash of its issuer's public key and its serial number, as in
+ * an OCSP CertID. Serial numbers are only unique per issuer, so caches keyed by the serial alone
+ * mix up certificates from different CAs.
+ *
+ * <p>The hash and the serial are packed into primitive fields and the hashCode is computed once,
+ * so looking a key up doesn't allocate or hash a BigInteger.
+ */
+public final class CertID implements Serializable {
+
+  private static final long serialVersionUID = -3528317003563406652L;
+
+  public static final int ISSUER_HASH_LENGTH = 20;
+
+  /* Far more than the number of CAs a process usually sees */
+  private static final int ISSUER_KEY_HASHES_MAX_SIZE = 1000;
+
+  /* The key hash of each issuer seen, so that looking a certificate up doesn't rehash its issuer */
+  private static final Cache<X509Certificate, byte[]> issuerKeyHashes =
+      CacheBuilder.newBuilder().maximumSize(ISSUER_KEY_HASHES_MAX_SIZE).build();
+
+  /* RFC 5280 limits serials to 20 octets, so 24 bytes of two's complement fit every compliant one */
+  private static final int PACKED_SERIAL_LENGTH = 24;
+
+  private final long issuer0;
+  private final long issuer1;
+  private final int issuer2;
+  /* The serial sign extended to 192 bits, most significant first */
+  private final long serial0;
+  private final long serial1;
+  private final long serial2;
+  /* Only set for serials too long to pack */
+  private final BigInteger oversizedSerial;
+  private final int hash;
+
+  /**
+   * @param issuerKeyHash the SHA-1 hash of the issuer's public key
+   * @param serialNumber the serial number of the certificate
+   */
+  public CertID(byte[] issuerKeyHash, BigInteger serialNumber) {
+    if ((issuerKeyHash == null) || (issuerKeyHash.length != ISSUER_HASH_LENGTH)) {
+      throw new IllegalArgumentException(
+          "issuerKeyHash must be " + ISSUER_HASH_LENGTH + " bytes long");
+    }
+    issuer0 = getLong(issuerKeyHash, 0);
+    issuer1 = getLong(issuerKeyHash, 8);
+    issuer2 = (int) (getLong(issuerKeyHash, 12) & 0xffffffffL);
+
+    byte[] serial = serialNumber.toByteArray();
+    if (serial.length <= PACKED_SERIAL_LENGTH) {
+      byte[] packed = new byte[PACKED_SERIAL_LENGTH];
+      Arrays.fill(packed, 0, PACKED_SERIAL_LENGTH - serial.length, (byte) (serial[0] >> 7));
+      System.arraycopy(serial, 0, packed, PACKED_SERIAL_LENGTH - serial.length, serial.length);
+      serial0 = getLong(packed, 0);
+      serial1 = getLong(packed, 8);
+      serial2 = getLong(packed, 16);
+      oversizedSerial = null;
+    } else {
+      serial0 = 0;
+      serial1 = 0;
+      serial2 = 0;
+      oversizedSerial = serialNumber;
+    }
+
+    int h = Long.hashCode(issuer0);
+    h = 31 * h + Long.hashCode(issuer1);
+    h = 31 * h + issuer2;
+    h = 31 * h + Long.hashCode(serial0);
+    h = 31 * h + Long.hashCode(serial1);
+    h = 31 * h + Long.hashCode(serial2);
+    hash = 31 * h + ((oversizedSerial == null) ? 0 : oversizedSerial.hashCode());
+  }
+
+  /**
+   * @param peerCert the certificate to identify
+   * @param issuerCert its issuer, or null if it isn't known. The hash of the issuer's name from the
+   *     peer certificate is used in that case, so keys made with and without the issuer differ.
+   * @return the identifier of peerCert. The issuer's key is only hashed the first time the issuer
+   *     is seen.
+   * @throws CertificateVerificationException if the issuer's key can't be hashed
+   */
+  public static CertID of(X509Certificate peerCert, X509Certificate issuerCert)
+      throws CertificateVerificationException {
+    byte[] issuerHash;
+    try {
+      if (issuerCert != null) {
+        issuerHash = issuerKeyHashes.getIfPresent(issuerCert);
+        if (issuerHash == null) {
+          SubjectPublicKeyInfo info =
+              SubjectPublicKeyInfo.getInstance(issuerCert.getPublicKey().getEncoded());
+          issuerHash =
+              MessageDigest.getInstance("SHA-1").digest(info.getPublicKeyData().getBytes());
+          issuerKeyHashes.put(issuerCert, issuerHash);
+        }
+      } else {
+        issuerHash =
+            MessageDigest.getInstance("SHA-1")
+                .digest(peerCert.getIssuerX500Principal().getEncoded());
+      }
+    } catch (NoSuchAlgorithmException | IllegalArgumentException e) {
+      throw new CertificateVerificationException("Unable to hash the issuer's key", e);
+    }
+    return new CertID(issuerHash, peerCert.getSerialNumber());
+  }
+
+  /** @return the SHA-1 hash of the issuer's public key */
+  public byte[] getIssuerKeyHash() {
+    byte[] issuerKeyHash = new byte[ISSUER_HASH_LENGTH];
+    putLong(issuerKeyHash, 0, issuer0);
+    putLong(issuerKeyHash, 8, issuer1);
+    for (int i = 0; i < 4; i++) {
+      issuerKeyHash[16 + i] = (byte) (issuer2 >>> (24 - (8 * i)));
+    }
+    return issuerKeyHash;
+  }
+
+  public BigInteger getSerialNumber() {
+    if (oversizedSerial != null) {
+      return oversizedSerial;
+    }
+    byte[] packed = new byte[PACKED_SERIAL_LENGTH];
+    putLong(packed, 0, serial0);
+    putLong(packed, 8, serial1);
+    putLong(packed, 16, serial2);
+    return new BigInteger(packed);
+  }
+
+  /** @return the issuer key hash followed by the two's complement serial number */
+  public byte[] getEncoded() {
+    byte[] serial = getSerialNumber().toByteArray();
+    byte[] encoded = new byte[ISSUER_HASH_LENGTH + serial.length];
+    System.arraycopy(getIssuerKeyHash(), 0, encoded, 0, ISSUER_HASH_LENGTH);
+    System.arraycopy(serial, 0, encoded, ISSUER_HASH_LENGTH, serial.length);
+    return encoded;
+  }
+
+  /**
+   * @param encoded the output of {@link #getEncoded()}
+   * @return the identifier
+   * @throws IOException if the encoding is too short
+   */
+  public static CertID fromEncoded(byte[] encoded) throws IOException {
+    if (encoded.length <= ISSUER_HASH_LENGTH) {
+      throw new IOException("Encoded CertID is too short: " + encoded.length);
+    }
+    return new CertID(
+        Arrays.copyOf(encoded, ISSUER_HASH_LENGTH),
+        new BigInteger(Arrays.copyOfRange(encoded, ISSUER_HASH_LENGTH, encoded.length)));
+  }
+
+  private static long getLong(byte[] b, int offset) {
+    long l = 0;
+    for (int i = 0; i < 8; i++) {
+      l = (l << 8) | (b[offset + i] & 0xffL);
+    }
+    return l;
+  }
+
+  private static void putLong(byte[] b, int offset, long l) {
+    for (int i = 0; i < 8; i++) {
+      b[offset + i] = (byte) (l >>> (56 - (8 * i)));
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof CertID)) {
+      return false;
+    }
+    CertID other = (CertID) obj;
+    return (hash == other.hash)
+        && (serial2 == other.serial2)
+        && (issuer0 == other.issuer0)
+        && (issuer1 == other.issuer1)
+        && (issuer2 == other.issuer2)
+        && (serial1 == other.serial1)
+        && (serial0 == other.serial0)
+        && ((oversizedSerial == null)
+            ? (other.oversizedSerial == null)
+            : oversizedSerial.equals(other.oversizedSerial));
+  }
+
+  @Override
+  public String toString() {
+    return "CertID [serial=" + getSerialNumber().toString(16) + "]";
+  }
+}
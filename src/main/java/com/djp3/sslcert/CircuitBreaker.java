@@ -0,0 +1,133 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops requests to a responder host that keeps failing, so that checks don't each wait for its
+ * timeout. After failureThreshold consecutive failures the circuit opens and requests are refused.
+ * Once openDuration has passed one probe request is let through (half open). If it succeeds the
+ * circuit closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final String host;
+  private final int failureThreshold;
+  private final long openNanos;
+
+  private State state = State.CLOSED;
+  private int failures = 0;
+  /* When the circuit opened, or when the probe was let through while half open */
+  private long since = 0;
+
+  /**
+   * @param host the responder host this circuit is for
+   * @param failureThreshold consecutive failures that open the circuit
+   * @param openDuration how long the circuit stays open before a probe
+   * @param unit the unit of openDuration
+   */
+  public CircuitBreaker(String host, int failureThreshold, long openDuration, TimeUnit unit) {
+    this.host = host;
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openNanos = unit.toNanos(openDuration);
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Call before making a request. If this returns true the outcome must be reported with {@link
+   * #succeeded()} or {@link #failed()}.
+   *
+   * @return whether a request may be made to the host now
+   */
+  public boolean allowRequest() {
+    State from;
+    synchronized (this) {
+      from = state;
+      if (state == State.CLOSED) {
+        return true;
+      }
+      if (System.nanoTime() - since < openNanos) {
+        //Open, or half open with the probe still out
+        return false;
+      }
+      //Let one probe through. A probe that was never reported counts as lost after openDuration
+      state = State.HALF_OPEN;
+      since = System.nanoTime();
+    }
+    if (from != State.HALF_OPEN) {
+      onStateChange(from, State.HALF_OPEN);
+    }
+    return true;
+  }
+
+  /** A request to the host got an answer */
+  public void succeeded() {
+    State from;
+    synchronized (this) {
+      failures = 0;
+      from = state;
+      state = State.CLOSED;
+    }
+    if (from != State.CLOSED) {
+      onStateChange(from, State.CLOSED);
+    }
+  }
+
+  /** A request to the host couldn't connect, timed out or got a server error */
+  public void failed() {
+    State from;
+    synchronized (this) {
+      from = state;
+      failures++;
+      if ((state == State.CLOSED) && (failures < failureThreshold)) {
+        return;
+      }
+      state = State.OPEN;
+      since = System.nanoTime();
+    }
+    if (from != State.OPEN) {
+      onStateChange(from, State.OPEN);
+    }
+  }
+
+  /** Called outside of any lock whenever the circuit changes state */
+  protected void onStateChange(State from, State to) {}
+
+  @Override
+  public String toString() {
+    return host + ":" + getState();
+  }
+}
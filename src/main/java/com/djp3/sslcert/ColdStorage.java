@@ -0,0 +1,279 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Reads and writes snapshots of a verifier's cache. The format is:
+ *
+ * <pre>
+ *   int    magic "SSLR"
+ *   int    version
+ *   repeated:
+ *     byte   1 (a record follows)
+ *     long   nextUpdate of the value in milliseconds since the epoch
+ *     int    length of the key, then the encoded key
+ *     int    length of the value, then the encoded value
+ *   byte   0 (end of file)
+ * </pre>
+ *
+ * The nextUpdate is stored outside of the value so that expired records can be skipped without
+ * decoding them. Snapshots are written to a temporary file which is then renamed over the target,
+ * so a crash while saving leaves the previous snapshot in place.
+ */
+public final class ColdStorage {
+
+  static final int MAGIC = 0x53534c52;
+  static final int VERSION = 1;
+
+  static final byte END = 0;
+  static final byte RECORD = 1;
+
+  /* Anything longer than this is a corrupt length, the largest CRLs are tens of megabytes */
+  static final int MAX_FIELD_LENGTH = 256 * 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private ColdStorage() {}
+
+  /** Codec for caches keyed by CertID holding VerificationStatus */
+  public static final ColdStorageCodec<CertID, VerificationStatus> CERT_ID_CODEC =
+      new ColdStorageCodec<CertID, VerificationStatus>() {
+        @Override
+        public byte[] encodeKey(CertID key) {
+          return key.getEncoded();
+        }
+
+        @Override
+        public CertID decodeKey(byte[] encoded) throws IOException {
+          return CertID.fromEncoded(encoded);
+        }
+
+        @Override
+        public byte[] encodeValue(VerificationStatus value) {
+          return value.getEncoded();
+        }
+
+        @Override
+        public VerificationStatus decodeValue(byte[] encoded) throws IOException {
+          return VerificationStatus.fromEncoded(encoded);
+        }
+      };
+
+  /**
+   * Writes a snapshot. Entries without a nextUpdate are left out because they would be expired as
+   * soon as they were loaded.
+   *
+   * @param path the file to write
+   * @param entries the cache contents
+   * @param codec turns the entries into bytes
+   * @param nextUpdate gets the nextUpdate of a value
+   * @return the number of records written
+   * @throws IOException if the snapshot couldn't be written, the previous one is left in place
+   */
+  public static <K, V> int write(
+      Path path,
+      Map<K, V> entries,
+      ColdStorageCodec<K, V> codec,
+      Function<V, Date> nextUpdate)
+      throws IOException {
+    Path parent = path.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+    int count = 0;
+    try {
+      try (FileChannel channel =
+          FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        DataOutputStream out =
+            new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        for (Map.Entry<K, V> e : entries.entrySet()) {
+          Date expires = nextUpdate.apply(e.getValue());
+          if (expires == null) {
+            continue;
+          }
+          writeRecord(
+              out,
+              expires.getTime(),
+              codec.encodeKey(e.getKey()),
+              codec.encodeValue(e.getValue()));
+          count++;
+        }
+        out.writeByte(END);
+        out.flush();
+        channel.force(true);
+      }
+      moveAtomically(temp, path);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    return count;
+  }
+
+  /* Replace the target in one step where the file system allows it */
+  static void moveAtomically(Path from, Path to) throws IOException {
+    try {
+      Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  static void writeRecord(DataOutputStream out, long expires, byte[] key, byte[] value)
+      throws IOException {
+    out.writeByte(RECORD);
+    out.writeLong(expires);
+    out.writeInt(key.length);
+    out.write(key);
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  /**
+   * @param path a file
+   * @return true if the file starts like a snapshot in this format
+   */
+  public static boolean isColdStorageFile(Path path) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+      return in.readInt() == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  /** Receives the undecoded records of a snapshot */
+  public interface RawRecordSink {
+    void accept(long nextUpdate, byte[] key, byte[] value) throws IOException;
+  }
+
+  /**
+   * Streams a snapshot into a sink one record at a time. Records whose nextUpdate has passed are
+   * skipped without being decoded.
+   *
+   * @param path the file to read
+   * @param codec turns bytes back into entries
+   * @param sink receives each record that hasn't expired
+   * @return the number of records passed to the sink
+   * @throws IOException if the file is unreadable or corrupt. Records before the problem have
+   *     already been passed to the sink.
+   */
+  public static <K, V> int read(
+      Path path, final ColdStorageCodec<K, V> codec, final BiConsumer<K, V> sink)
+      throws IOException {
+    return readRaw(
+        path,
+        new RawRecordSink() {
+          @Override
+          public void accept(long nextUpdate, byte[] key, byte[] value) throws IOException {
+            sink.accept(codec.decodeKey(key), codec.decodeValue(value));
+          }
+        });
+  }
+
+  /**
+   * Streams the records of a snapshot without decoding them, so that the caller can decode them
+   * elsewhere. Records whose nextUpdate has passed are skipped.
+   *
+   * @param path the file to read
+   * @param sink receives each record that hasn't expired
+   * @return the number of records passed to the sink
+   * @throws IOException if the file is unreadable or corrupt, or if the sink throws
+   */
+  public static int readRaw(Path path, RawRecordSink sink) throws IOException {
+    int count = 0;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      DataInputStream in =
+          new DataInputStream(
+              new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+      readHeader(in, path);
+      long now = System.currentTimeMillis();
+      while (in.readByte() == RECORD) {
+        long expires = in.readLong();
+        int keyLength = readLength(in);
+        if (expires <= now) {
+          skipFully(in, keyLength);
+          skipFully(in, readLength(in));
+          continue;
+        }
+        byte[] key = new byte[keyLength];
+        in.readFully(key);
+        byte[] value = readField(in);
+        sink.accept(expires, key, value);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static void skipFully(DataInputStream in, int length) throws IOException {
+    int skipped = 0;
+    while (skipped < length) {
+      int n = in.skipBytes(length - skipped);
+      if (n <= 0) {
+        throw new EOFException();
+      }
+      skipped += n;
+    }
+  }
+
+  static void readHeader(DataInputStream in, Path path) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a cache cold storage file: " + path);
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported cache cold storage version " + version + ": " + path);
+    }
+  }
+
+  static int readLength(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if ((length < 0) || (length > MAX_FIELD_LENGTH)) {
+      throw new IOException("Corrupt cache cold storage record, length " + length);
+    }
+    return length;
+  }
+
+  static byte[] readField(DataInputStream in) throws IOException {
+    byte[] field = new byte[readLength(in)];
+    in.readFully(field);
+    return field;
+  }
+}
@@ -0,0 +1,40 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert;
+
+import java.io.IOException;
+
+/**
+ * Turns the keys and values of a verifier's cache into bytes for cold storage and back again.
+ *
+ * @see ColdStorage
+ */
+public interface ColdStorageCodec<K, V> {
+
+  byte[] encodeKey(K key) throws IOException;
+
+  K decodeKey(byte[] encoded) throws IOException;
+
+  byte[] encodeValue(V value) throws IOException;
+
+  V decodeValue(byte[] encoded) throws IOException;
+}
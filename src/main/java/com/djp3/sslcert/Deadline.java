@@ -0,0 +1,103 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which a revocation check, or a fetch, must be done. A fetch has its own, and
+ * hands it to each connect and read so that their timeouts share one budget.
+ */
+public final class Deadline {
+
+  /** A deadline that never passes */
+  public static final Deadline NONE = new Deadline(0, false);
+
+  private final long expiresAtNanos;
+  private final boolean bounded;
+
+  private Deadline(long expiresAtNanos, boolean bounded) {
+    this.expiresAtNanos = expiresAtNanos;
+    this.bounded = bounded;
+  }
+
+  /**
+   * @param duration how long from now, zero or less for no deadline
+   * @param unit the unit of duration
+   * @return a deadline that long from now
+   */
+  public static Deadline after(long duration, TimeUnit unit) {
+    if (duration <= 0) {
+      return NONE;
+    }
+    return new Deadline(System.nanoTime() + unit.toNanos(duration), true);
+  }
+
+  public boolean isBounded() {
+    return bounded;
+  }
+
+  public boolean isExpired() {
+    return bounded && (expiresAtNanos - System.nanoTime() <= 0);
+  }
+
+  /** @return the time left, zero if it has passed, or Long.MAX_VALUE if there is no deadline */
+  public long remainingNanos() {
+    if (!bounded) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, expiresAtNanos - System.nanoTime());
+  }
+
+  /**
+   * A timeout for one blocking step of a fetch, such as a connect or a read.
+   *
+   * @param limitMillis the longest the step may take regardless of the deadline, zero for no limit
+   * @return the smaller of the limit and the time left in milliseconds, at least 1 if either is
+   *     set, or 0 (no timeout) if neither is
+   */
+  public int timeoutMillis(int limitMillis) {
+    if (!bounded) {
+      return Math.max(0, limitMillis);
+    }
+    long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos()));
+    if (limitMillis > 0) {
+      remaining = Math.min(remaining, limitMillis);
+    }
+    return (int) Math.min(remaining, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param what is about to be done
+   * @throws CertificateVerificationException if the deadline has passed
+   */
+  public void check(String what) throws CertificateVerificationException {
+    if (isExpired()) {
+      throw new CertificateVerificationException("Deadline passed before " + what);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return bounded ? (TimeUnit.NANOSECONDS.toMillis(remainingNanos()) + "ms left") : "no deadline";
+  }
+}
@@ -0,0 +1,108 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps track of a deadline for each key so that the keys whose deadline has passed can be found
+ * without looking at every key. Rescheduling or removing a key leaves its old deadline in the queue,
+ * it is skipped when it comes up.
+ */
+class ExpiryIndex<K> {
+
+  private static final class Deadline<K> implements Comparable<Deadline<K>> {
+    final long at;
+    final K key;
+
+    Deadline(long at, K key) {
+      this.at = at;
+      this.key = key;
+    }
+
+    @Override
+    public int compareTo(Deadline<K> o) {
+      return Long.compare(at, o.at);
+    }
+  }
+
+  private final PriorityQueue<Deadline<K>> queue = new PriorityQueue<Deadline<K>>();
+  private final Map<K, Long> deadlines = new HashMap<K, Long>();
+
+  /**
+   * @param key the key
+   * @param at the time in milliseconds since the epoch at which the key is due
+   */
+  synchronized void schedule(K key, long at) {
+    Long previous = deadlines.put(key, at);
+    if ((previous == null) || (previous.longValue() != at)) {
+      queue.add(new Deadline<K>(at, key));
+      if (queue.size() > (2 * deadlines.size()) + 64) {
+        purge();
+      }
+    }
+  }
+
+  synchronized void remove(K key) {
+    deadlines.remove(key);
+  }
+
+  synchronized void clear() {
+    deadlines.clear();
+    queue.clear();
+  }
+
+  synchronized int size() {
+    return deadlines.size();
+  }
+
+  /**
+   * Removes and returns the keys that are due.
+   *
+   * @param now the current time in milliseconds since the epoch
+   * @return the keys whose deadline is at or before now
+   */
+  synchronized List<K> pollDue(long now) {
+    List<K> due = new ArrayList<K>();
+    while (!queue.isEmpty() && (queue.peek().at <= now)) {
+      Deadline<K> d = queue.poll();
+      Long current = deadlines.get(d.key);
+      if ((current != null) && (current.longValue() == d.at)) {
+        deadlines.remove(d.key);
+        due.add(d.key);
+      }
+    }
+    return due;
+  }
+
+  /* Drop the deadlines that were superseded so the queue doesn't grow without bound */
+  private void purge() {
+    queue.clear();
+    for (Map.Entry<K, Long> e : deadlines.entrySet()) {
+      queue.add(new Deadline<K>(e.getValue(), e.getKey()));
+    }
+  }
+}
@@ -0,0 +1,470 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert;
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.InvalidParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A trust manager that accepts a chain if the delegate trust manager does and no revocation source
+ * reports any certificate in it as revoked. OCSP and CRL are checked for every link of the chain
+ * and CT for the leaf. All of these checks run at the same time, so a handshake waits for the
+ * slowest source rather than for the sum of them, and a revocation stops the wait at once.
+ *
+ * <p>What happens when a source can't give an answer, because it failed or didn't answer in time,
+ * is set by the {@link Policy}.
+ */
+public class RevocationTrustManager extends X509ExtendedTrustManager {
+
+  private static transient volatile Logger log = null;
+
+  public static Logger getLog() {
+    if (log == null) {
+      log = LogManager.getLogger(RevocationTrustManager.class);
+    }
+    return log;
+  }
+
+  public enum Source {
+    OCSP,
+    CRL,
+    CT
+  }
+
+  public static class Policy {
+    /* Reject a chain when any source can't give an answer. Otherwise only revocations reject */
+    public boolean hardFail = false;
+    /* Sources that must give an answer for every certificate they check, even when soft failing */
+    public EnumSet<Source> requiredSources = EnumSet.noneOf(Source.class);
+    /* How long to wait for all of the checks of one chain. Sources still running count as failed */
+    public long timeout = 10;
+    public TimeUnit timeoutUnit = TimeUnit.SECONDS;
+    /* Check the revocation of client certificates as well as server certificates */
+    public boolean checkClients = true;
+    /* Remember the verdict for this many whole chains, until the earliest nextUpdate in the chain.
+     * Zero is off. Only verdicts that every source answered for, and revocations, are kept */
+    public long chainCacheMaxSize = 10000;
+  }
+
+  /** Identifies a chain by the SHA-256 hash of the DER of its certificates */
+  private static final class ChainFingerprint {
+    private final long h0;
+    private final long h1;
+    private final long h2;
+    private final long h3;
+
+    ChainFingerprint(byte[] sha256) {
+      ByteBuffer b = ByteBuffer.wrap(sha256);
+      h0 = b.getLong();
+      h1 = b.getLong();
+      h2 = b.getLong();
+      h3 = b.getLong();
+    }
+
+    static ChainFingerprint of(X509Certificate[] chain) throws CertificateException {
+      try {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        for (X509Certificate cert : chain) {
+          sha256.update(cert.getEncoded());
+        }
+        return new ChainFingerprint(sha256.digest());
+      } catch (NoSuchAlgorithmException e) {
+        throw new CertificateVerificationException("Unable to fingerprint chain", e);
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      //The bits of a cryptographic hash are already well mixed
+      return (int) h0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ChainFingerprint)) {
+        return false;
+      }
+      ChainFingerprint other = (ChainFingerprint) obj;
+      return (h0 == other.h0) && (h1 == other.h1) && (h2 == other.h2) && (h3 == other.h3);
+    }
+  }
+
+  /** The outcome of checking a whole chain, and until when it holds */
+  private static final class ChainVerdict {
+    /* Null if the chain was accepted */
+    final String rejection;
+    final long expiresAt;
+
+    ChainVerdict(String rejection, long expiresAt) {
+      this.rejection = rejection;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /** One revocation check of one certificate by one source */
+  private static class Check {
+    final Source source;
+    final X509Certificate cert;
+    final CompletableFuture<VerificationStatus> status;
+
+    Check(Source source, X509Certificate cert, CompletableFuture<VerificationStatus> status) {
+      this.source = source;
+      this.cert = cert;
+      this.status = status;
+    }
+  }
+
+  private final X509TrustManager delegate;
+  private final Verifier<?, ?> ocspVerifier;
+  private final Verifier<?, ?> crlVerifier;
+  private final Verifier<?, ?> ctVerifier;
+  private final Policy policy;
+  private final Cache<ChainFingerprint, ChainVerdict> chainVerdicts;
+
+  /**
+   * @param delegate decides whether the chain is trusted before revocation is checked
+   * @param ocspVerifier the OCSP verifier, or null to not check OCSP
+   * @param crlVerifier the CRL verifier, or null to not check CRLs
+   * @param ctVerifier the Certificate Transparency verifier, or null to not check CT
+   * @param policy what to do when a source doesn't answer
+   */
+  public RevocationTrustManager(
+      X509TrustManager delegate,
+      Verifier<?, ?> ocspVerifier,
+      Verifier<?, ?> crlVerifier,
+      Verifier<?, ?> ctVerifier,
+      Policy policy) {
+    if ((delegate == null) || (policy == null)) {
+      throw new InvalidParameterException("delegate and policy must not be null");
+    }
+    this.delegate = delegate;
+    this.ocspVerifier = ocspVerifier;
+    this.crlVerifier = crlVerifier;
+    this.ctVerifier = ctVerifier;
+    this.policy = policy;
+    if (policy.chainCacheMaxSize > 0) {
+      chainVerdicts =
+          CacheBuilder.newBuilder().maximumSize(policy.chainCacheMaxSize).recordStats().build();
+    } else {
+      chainVerdicts = null;
+    }
+    for (Source source : policy.requiredSources) {
+      if (getVerifier(source) == null) {
+        throw new InvalidParameterException("No verifier for required source " + source);
+      }
+    }
+  }
+
+  private Verifier<?, ?> getVerifier(Source source) {
+    switch (source) {
+      case OCSP:
+        return ocspVerifier;
+      case CRL:
+        return crlVerifier;
+      default:
+        return ctVerifier;
+    }
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain, String authType)
+      throws CertificateException {
+    delegate.checkClientTrusted(chain, authType);
+    if (policy.checkClients) {
+      checkRevocation(chain);
+    }
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket)
+      throws CertificateException {
+    if (delegate instanceof X509ExtendedTrustManager) {
+      ((X509ExtendedTrustManager) delegate).checkClientTrusted(chain, authType, socket);
+    } else {
+      delegate.checkClientTrusted(chain, authType);
+    }
+    if (policy.checkClients) {
+      checkRevocation(chain);
+    }
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+      throws CertificateException {
+    if (delegate instanceof X509ExtendedTrustManager) {
+      ((X509ExtendedTrustManager) delegate).checkClientTrusted(chain, authType, engine);
+    } else {
+      delegate.checkClientTrusted(chain, authType);
+    }
+    if (policy.checkClients) {
+      checkRevocation(chain);
+    }
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain, String authType)
+      throws CertificateException {
+    delegate.checkServerTrusted(chain, authType);
+    checkRevocation(chain);
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+      throws CertificateException {
+    if (delegate instanceof X509ExtendedTrustManager) {
+      ((X509ExtendedTrustManager) delegate).checkServerTrusted(chain, authType, socket);
+    } else {
+      delegate.checkServerTrusted(chain, authType);
+    }
+    checkRevocation(chain);
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+      throws CertificateException {
+    if (delegate instanceof X509ExtendedTrustManager) {
+      ((X509ExtendedTrustManager) delegate).checkServerTrusted(chain, authType, engine);
+    } else {
+      delegate.checkServerTrusted(chain, authType);
+    }
+    checkRevocation(chain);
+  }
+
+  @Override
+  public X509Certificate[] getAcceptedIssuers() {
+    return delegate.getAcceptedIssuers();
+  }
+
+  /**
+   * Checks every certificate in the chain that has an issuer in the chain with all of the
+   * configured sources at once.
+   *
+   * @param chain the chain, leaf first
+   * @throws CertificateException if a certificate is revoked, or a source didn't answer and the
+   *     policy doesn't allow that
+   */
+  public void checkRevocation(X509Certificate[] chain) throws CertificateException {
+    if ((chain == null) || (chain.length == 0)) {
+      throw new CertificateVerificationException("No certificates to check");
+    }
+
+    ChainFingerprint fingerprint = null;
+    if (chainVerdicts != null) {
+      fingerprint = ChainFingerprint.of(chain);
+      ChainVerdict cached = chainVerdicts.getIfPresent(fingerprint);
+      if (cached != null) {
+        if (cached.expiresAt > System.currentTimeMillis()) {
+          if (cached.rejection != null) {
+            throw new CertificateVerificationException(cached.rejection);
+          }
+          return;
+        }
+        chainVerdicts.asMap().remove(fingerprint, cached);
+      }
+    }
+
+    List<Check> checks = new ArrayList<Check>();
+    for (int i = 0; i < (chain.length - 1); i++) {
+      X509Certificate cert = chain[i];
+      X509Certificate issuer = chain[i + 1];
+      if (!cert.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+        throw new CertificateVerificationException("Certificates do not chain");
+      }
+      if (ocspVerifier != null) {
+        checks.add(
+            new Check(
+                Source.OCSP, cert, ocspVerifier.checkRevocationStatusAsync(cert, issuer, chain)));
+      }
+      if (crlVerifier != null) {
+        checks.add(
+            new Check(
+                Source.CRL, cert, crlVerifier.checkRevocationStatusAsync(cert, issuer, chain)));
+      }
+      if ((i == 0) && (ctVerifier != null)) {
+        checks.add(
+            new Check(Source.CT, cert, ctVerifier.checkRevocationStatusAsync(cert, issuer, chain)));
+      }
+    }
+    if (checks.isEmpty()) {
+      return;
+    }
+
+    //Completed early with the first rejection, or with null when every check is done
+    final CompletableFuture<CertificateException> verdict =
+        new CompletableFuture<CertificateException>();
+    CompletableFuture<?>[] all = new CompletableFuture<?>[checks.size()];
+    for (int i = 0; i < checks.size(); i++) {
+      final Check check = checks.get(i);
+      all[i] =
+          check.status.whenComplete(
+              new BiConsumer<VerificationStatus, Throwable>() {
+                @Override
+                public void accept(VerificationStatus status, Throwable t) {
+                  CertificateException rejection = evaluate(check, status, t);
+                  if (rejection != null) {
+                    verdict.complete(rejection);
+                  }
+                }
+              });
+    }
+    CompletableFuture.allOf(all)
+        .whenComplete(
+            new BiConsumer<Void, Throwable>() {
+              @Override
+              public void accept(Void v, Throwable t) {
+                verdict.complete(null);
+              }
+            });
+
+    CertificateException rejection;
+    try {
+      rejection = verdict.get(policy.timeout, policy.timeoutUnit);
+    } catch (TimeoutException e) {
+      rejection = null;
+      TimeoutException late =
+          new TimeoutException("No answer within " + policy.timeout + " " + policy.timeoutUnit);
+      for (Check check : checks) {
+        if (!check.status.isDone()) {
+          rejection = evaluate(check, null, late);
+          if (rejection != null) {
+            break;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CertificateVerificationException("Interrupted while checking revocation", e);
+    } catch (ExecutionException e) {
+      throw new CertificateVerificationException(e.getCause());
+    }
+    if (fingerprint != null) {
+      rememberVerdict(fingerprint, checks, rejection);
+    }
+    if (rejection != null) {
+      throw rejection;
+    }
+  }
+
+  /**
+   * Caches the verdict for a chain until the earliest nextUpdate of the statuses it rests on. For a
+   * CRL that is the CRL's nextUpdate. An accepted chain is only cached if every check answered,
+   * so that soft failures are retried. Answers without a nextUpdate, like the GOOD a CRL verifier
+   * gives when it can't fetch the CRL, don't count. A rejected chain is only cached if a
+   * certificate was revoked.
+   */
+  private void rememberVerdict(
+      ChainFingerprint fingerprint, List<Check> checks, CertificateException rejection) {
+    long expiresAt = Long.MAX_VALUE;
+    boolean revoked = false;
+    for (Check check : checks) {
+      VerificationStatus status =
+          (check.status.isDone() && !check.status.isCompletedExceptionally())
+              ? check.status.getNow(null)
+              : null;
+      if ((status != null) && (status.getStatus() == VerificationStatus.BAD)) {
+        revoked = true;
+        if (status.getNextUpdate() != null) {
+          expiresAt = Math.min(expiresAt, status.getNextUpdate().getTime());
+        }
+      } else if (rejection == null) {
+        if ((status == null) || (status.getNextUpdate() == null) || status.isStale()) {
+          return;
+        }
+        expiresAt = Math.min(expiresAt, status.getNextUpdate().getTime());
+      }
+    }
+    if (((rejection != null) && !revoked)
+        || (expiresAt == Long.MAX_VALUE)
+        || (expiresAt <= System.currentTimeMillis())) {
+      return;
+    }
+    chainVerdicts.put(
+        fingerprint,
+        new ChainVerdict((rejection == null) ? null : rejection.getMessage(), expiresAt));
+  }
+
+  /** @return statistics of the whole chain verdict cache, or null if it is off */
+  public CacheStats getChainCacheStats() {
+    return (chainVerdicts == null) ? null : chainVerdicts.stats();
+  }
+
+  /** @return why the chain must be rejected because of this check, or null if it needn't be */
+  private CertificateException evaluate(Check check, VerificationStatus status, Throwable t) {
+    if ((t instanceof CompletionException) && (t.getCause() != null)) {
+      t = t.getCause();
+    }
+    boolean unknown = (status != null) && (status.getStatus() == VerificationStatus.UNKNOWN);
+    if ((t == null) && (status != null) && !unknown) {
+      if (status.getStatus() != VerificationStatus.BAD) {
+        return null;
+      }
+      if (check.source == Source.CT) {
+        return new CertificateVerificationException(
+            "Certificate not supported by CT (Certificate Transparency) ");
+      }
+      String when =
+          (status.getRevokeDate() == null)
+              ? ""
+              : " on " + SimpleDateFormat.getInstance().format(status.getRevokeDate());
+      return new CertificateVerificationException(
+          "Certificate revoked by " + check.source + when);
+    }
+
+    String problem =
+        check.source
+            + " gave no answer for "
+            + check.cert.getSubjectX500Principal()
+            + (unknown ? " before its deadline" : "")
+            + ((t == null) ? "" : ": " + t);
+    if (policy.hardFail || policy.requiredSources.contains(check.source)) {
+      return new CertificateVerificationException(problem, t);
+    }
+    getLog().info("Soft failing, " + problem);
+    return null;
+  }
+}
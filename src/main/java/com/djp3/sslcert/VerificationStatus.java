@@ -21,7 +21,10 @@
 
 package com.djp3.sslcert;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 import org.bouncycastle.cert.ocsp.CertificateStatus;
@@ -35,12 +38,21 @@ public class VerificationStatus implements Serializable {
 
   public static final int GOOD = 0;
   public static final int BAD = 1;
+  /* No answer in time, see Verifier.Configuration.deadlineStatus. Never cached */
+  public static final int UNKNOWN = 2;
 
   private Integer status = null;
   private Date verificationFailureDate =
       null; //The date after which the certificate becomes bad (if applicable)
   private Integer verificationReason = null;
   private Date nextUpdate = null;
+  /* Served after nextUpdate because a fresh answer wasn't available. Not part of the encoding */
+  private transient boolean stale = false;
+
+  /* Flags for the optional fields in the encoded form */
+  private static final byte HAS_REVOKE_DATE = 1;
+  private static final byte HAS_REVOKE_REASON = 2;
+  private static final byte HAS_NEXT_UPDATE = 4;
 
   public VerificationStatus(SingleResp singleResp) throws CertificateVerificationException {
     setNextUpdate(singleResp.getNextUpdate());
@@ -96,4 +108,79 @@ public class VerificationStatus implements Serializable {
   public void setNextUpdate(Date nextUpdate) {
     this.nextUpdate = nextUpdate;
   }
+
+  public boolean isStale() {
+    return stale;
+  }
+
+  public void setStale(boolean stale) {
+    this.stale = stale;
+  }
+
+  /** @return a copy of this status marked as stale */
+  public VerificationStatus asStale() {
+    VerificationStatus ret = new VerificationStatus(getStatus(), getNextUpdate());
+    ret.setRevokeDate(getRevokeDate());
+    ret.setRevokeReason(getRevokeReason());
+    ret.setStale(true);
+    return ret;
+  }
+
+  /**
+   * A compact encoding for cold storage: the status, a byte of flags for which optional fields are
+   * present, then the optional fields.
+   *
+   * @return the encoded form
+   */
+  public byte[] getEncoded() {
+    byte flags = 0;
+    int length = 2;
+    if (verificationFailureDate != null) {
+      flags |= HAS_REVOKE_DATE;
+      length += 8;
+    }
+    if (verificationReason != null) {
+      flags |= HAS_REVOKE_REASON;
+      length += 4;
+    }
+    if (nextUpdate != null) {
+      flags |= HAS_NEXT_UPDATE;
+      length += 8;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    buffer.put((byte) getStatus());
+    buffer.put(flags);
+    if (verificationFailureDate != null) {
+      buffer.putLong(verificationFailureDate.getTime());
+    }
+    if (verificationReason != null) {
+      buffer.putInt(verificationReason);
+    }
+    if (nextUpdate != null) {
+      buffer.putLong(nextUpdate.getTime());
+    }
+    return buffer.array();
+  }
+
+  /**
+   * @param encoded the output of {@link #getEncoded()}
+   * @return the decoded status
+   * @throws IOException if the encoding is truncated
+   */
+  public static VerificationStatus fromEncoded(byte[] encoded) throws IOException {
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(encoded);
+      int status = buffer.get();
+      byte flags = buffer.get();
+      Date revokeDate = ((flags & HAS_REVOKE_DATE) != 0) ? new Date(buffer.getLong()) : null;
+      Integer reason = ((flags & HAS_REVOKE_REASON) != 0) ? buffer.getInt() : null;
+      Date nextUpdate = ((flags & HAS_NEXT_UPDATE) != 0) ? new Date(buffer.getLong()) : null;
+      VerificationStatus ret = new VerificationStatus(status, nextUpdate);
+      ret.setRevokeDate(revokeDate);
+      ret.setRevokeReason(reason);
+      return ret;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated VerificationStatus", e);
+    }
+  }
 }
@@ -23,28 +23,64 @@ package com.djp3.sslcert;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.InvalidParameterException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.djp3.sslcert.jfr.CacheLookupEvent;
+import com.djp3.sslcert.jfr.CheckEvent;
+import com.djp3.sslcert.metrics.MetricsRegistry;
+import com.djp3.sslcert.metrics.VerifierMetrics;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheStats;
+import com.google.common.cache.ForwardingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
 
 public abstract class Verifier<K extends Serializable, V extends Serializable> {
 
@@ -67,22 +103,297 @@ public abstract class Verifier<K extends Serializable, V extends Serializable> {
     /* Cache Cold Storage */
     public boolean loadCacheFromColdStorageOnStart = false;
     public String loadCacheColdStorageFileName = null;
+    /* Load the cold storage in the background instead of in the constructor. Checks made before it
+     * finishes are ordinary misses, and what they fetch isn't overwritten by the older cold data. */
+    public boolean loadCacheInBackground = false;
+    public int loadCacheParallelism = Runtime.getRuntime().availableProcessors();
     public boolean storeCacheToColdStorageOnQuit = false;
     public String storeCacheColdStorageFileName = null;
 
+    /* Journal cache insertions and invalidations so a restart recovers the cache. Null is off. The
+     * journal is replayed on top of the cold storage at start and is then compacted periodically */
+    public String journalFileName = null;
+    public long journalFlushDuration = 1;
+    public TimeUnit journalFlushTimeUnit = TimeUnit.SECONDS;
+    public long journalCompactionDuration = 60;
+    public TimeUnit journalCompactionTimeUnit = TimeUnit.MINUTES;
+
     /* Cache parameters */
     public Integer cacheMaxSize = 1000;
+    /* Bound the cache by the approximate bytes its entries hold instead of by cacheMaxSize. Null is
+     * off. The cache then has one segment, so that an entry of up to the whole budget, like a large
+     * CRL, can be cached */
+    public Long cacheMaxBytes = null;
+
+    /* Remember failed lookups, including OCSP answers that can't be recognized, for a short time so
+     * that an unreachable responder costs one timeout per interval instead of one per check. Zero is
+     * off */
+    public long negativeCacheDuration = 30;
+    public TimeUnit negativeCacheTimeUnit = TimeUnit.SECONDS;
+    public Integer negativeCacheMaxSize = 1000;
+
+    /* Keep entries for this long after their nextUpdate passes. A check that misses the cache is
+     * answered with the expired value, marked stale, while it is fetched again in the background.
+     * Checks keep getting answers through a responder outage, at the cost of answers up to this
+     * much out of date. Zero is off */
+    public long serveStaleDuration = 0;
+    public TimeUnit serveStaleTimeUnit = TimeUnit.HOURS;
+
+    /* Counters and timers are always kept in memory, see getMetrics(). They are also forwarded to
+     * the registry if one is supplied and published as an MXBean if publishMetricsToJMX is set */
+    public MetricsRegistry metricsRegistry = null;
+    public boolean publishMetricsToJMX = false;
+    /* Latency percentiles are computed over intervals of this length. Zero is off */
+    public long latencySnapshotDuration = 1;
+    public TimeUnit latencySnapshotTimeUnit = TimeUnit.MINUTES;
+
+    /* Hedge requests across a certificate's responder URLs. If a URL hasn't answered after the
+     * delay the next one is tried as well and the first answer wins. Zero is off, so URLs are only
+     * tried one after another. If the host's hedgeLatencyPercentile fetch latency over the last
+     * latency snapshot interval is known it is used as the delay instead. Zero percentile is off */
+    public long hedgeDelay = 500;
+    public TimeUnit hedgeTimeUnit = TimeUnit.MILLISECONDS;
+    public double hedgeLatencyPercentile = 95.0;
+
+    /* Stop waiting on a check that hasn't finished after this long, across every URL it tries.
+     * Zero is no limit. Only the check gives up at its deadline. Its fetches don't share the
+     * budget: splitting it across their connects and reads would abort fetches that other checks
+     * are waiting on too, and leave nothing cached. Each fetch is limited by fetchDeadline and the
+     * connect and read timeouts below instead */
+    public long checkDeadline = 0;
+    public TimeUnit checkDeadlineTimeUnit = TimeUnit.MILLISECONDS;
+    /* What a check whose deadline passes answers with. Null fails the check instead. Fetches that
+     * are still running carry on in the background and cache what they get */
+    public Integer deadlineStatus = VerificationStatus.UNKNOWN;
+    /* Give up on a fetch that hasn't finished after this long, whether or not a check is still
+     * waiting for it. Zero is no limit beyond the connect and read timeouts */
+    public long fetchDeadline = 0;
+    public TimeUnit fetchDeadlineTimeUnit = TimeUnit.MILLISECONDS;
+    /* The longest any one connect or read may take, deadline or not. Zero is no limit */
+    public int connectTimeoutMillis = 5000;
+    public int readTimeoutMillis = 10000;
+
+    /* Pooled HTTP connections to responders, see OCSPVerifier. A connection is kept alive for as
+     * long as the responder allows, or httpKeepAlive if it doesn't say, and is closed once it has
+     * been idle that long */
+    public int httpMaxConnections = 64;
+    public int httpMaxConnectionsPerRoute = 8;
+    public long httpKeepAlive = 30;
+    public TimeUnit httpKeepAliveTimeUnit = TimeUnit.SECONDS;
+    /* Make OCSP requests for async checks with java.net.http, so that no thread is blocked while
+     * a responder answers. Blocking checks keep using the pooled client above */
+    public boolean useAsyncHttp = false;
+    /* RFC 5019 lightweight OCSP: requests carry no nonce, and are sent as GET requests when the
+     * URL is under 255 bytes, so that HTTP caches between here and the CA can answer them */
+    public boolean ocspLightweight = false;
+    /* Keep up to this many answers to GET requests, for the max-age of their Cache-Control
+     * header, then revalidate them with their ETag. Zero is off */
+    public long ocspResponseCacheMaxSize = 0;
+    /* Ask an OCSP responder about up to this many certificates of a batch in one request. Those
+     * it doesn't answer for are then asked about on their own. One is off, and so is the
+     * lightweight profile, since RFC 5019 requests are about a single certificate */
+    public int ocspMaxCertsPerRequest = 10;
+
+    /* Stop asking a responder host after this many consecutive failures, until a probe request
+     * succeeds. Probes are made circuitBreakerOpenDuration apart. Zero is off. Checks then fall
+     * back to the certificate's other URLs, or fail fast so that other sources can answer */
+    public int circuitBreakerFailureThreshold = 5;
+    public long circuitBreakerOpenDuration = 30;
+    public TimeUnit circuitBreakerOpenTimeUnit = TimeUnit.SECONDS;
 
     /* Check validity of cache entries periodically */
     public long duration = 60;
     public TimeUnit timeUnit = TimeUnit.MINUTES;
+
+    /* Remove entries whose nextUpdate has passed, checked at this granularity */
+    public long expiryCheckDuration = 1;
+    public TimeUnit expiryCheckTimeUnit = TimeUnit.SECONDS;
+
+    /* Refresh entries that have been used in the background, this long before their nextUpdate */
+    public boolean refreshAhead = false;
+    public long refreshAheadDuration = 10;
+    public TimeUnit refreshAheadTimeUnit = TimeUnit.MINUTES;
+    /* Fraction of refreshAheadDuration by which each entry's refresh time is randomly moved later */
+    public double refreshAheadJitter = 0.5;
+
+    /* Threads for periodic cache maintenance and for fetches. Null means use the ones shared by all
+     * verifiers. Verifiers don't shut down executors that are supplied here. */
+    public ScheduledExecutorService scheduler = null;
+    public Executor fetchExecutor = null;
+    /* If no fetchExecutor is supplied, do fetches on virtual threads when the JVM supports them */
+    public boolean useVirtualThreadsForFetches = false;
+  }
+
+  /** What is needed to refresh a cache entry ahead of its nextUpdate */
+  private static class RefreshState<V> {
+    final Callable<V> loader;
+    /* The nextUpdate of the entry the refresh is scheduled for */
+    final long nextUpdate;
+    /* Set when the entry is read from the cache, so that only entries in use are refreshed */
+    volatile boolean hot = false;
+    /* Set when the refresh time has passed but the entry hadn't been read yet */
+    volatile boolean due = false;
+
+    RefreshState(Callable<V> loader, long nextUpdate) {
+      this.loader = loader;
+      this.nextUpdate = nextUpdate;
+    }
+  }
+
+  /** Keeps the expiry index up to date with everything that is put in the cache */
+  private class IndexedCache extends ForwardingCache.SimpleForwardingCache<K, V> {
+
+    IndexedCache(Cache<K, V> delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public V get(K key, final Callable<? extends V> valueLoader) throws ExecutionException {
+      //Only what the loader adds is new, hits are already indexed and journaled
+      final boolean[] loaded = {false};
+      V value =
+          super.get(
+              key,
+              new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                  V v = valueLoader.call();
+                  loaded[0] = true;
+                  return v;
+                }
+              });
+      if (loaded[0]) {
+        onInsert(key, value);
+      }
+      return value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+      super.put(key, value);
+      onInsert(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+      super.putAll(m);
+      for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+        onInsert(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  /* Threads shared by all verifiers, created when first needed */
+  private static volatile ScheduledExecutorService sharedScheduler = null;
+  private static volatile ExecutorService sharedFetchExecutor = null;
+  private static volatile ExecutorService sharedVirtualFetchExecutor = null;
+
+  private static ThreadFactory makeDaemonThreadFactory(final String name) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.setName(name + " " + count.incrementAndGet());
+        return t;
+      }
+    };
+  }
+
+  /** One daemon thread that runs the cache maintenance of every verifier */
+  public static ScheduledExecutorService getSharedScheduler() {
+    if (sharedScheduler == null) {
+      synchronized (Verifier.class) {
+        if (sharedScheduler == null) {
+          ScheduledThreadPoolExecutor executor =
+              new ScheduledThreadPoolExecutor(
+                  1, makeDaemonThreadFactory("SSL Verifier Cache Maintenance"));
+          //Verifiers cancel their tasks on reset, don't keep them around until they would have run
+          executor.setRemoveOnCancelPolicy(true);
+          sharedScheduler = executor;
+        }
+      }
+    }
+    return sharedScheduler;
+  }
+
+  /** Daemon threads that do network fetches for every verifier. Idle threads time out. */
+  public static ExecutorService getSharedFetchExecutor() {
+    if (sharedFetchExecutor == null) {
+      synchronized (Verifier.class) {
+        if (sharedFetchExecutor == null) {
+          sharedFetchExecutor =
+              Executors.newCachedThreadPool(makeDaemonThreadFactory("SSL Verifier Fetch"));
+        }
+      }
+    }
+    return sharedFetchExecutor;
+  }
+
+  /**
+   * A virtual thread per fetch, shared by every verifier. Falls back to the shared platform thread
+   * executor if this JVM doesn't have virtual threads enabled.
+   */
+  public static ExecutorService getSharedVirtualFetchExecutor() {
+    if (sharedVirtualFetchExecutor == null) {
+      synchronized (Verifier.class) {
+        if (sharedVirtualFetchExecutor == null) {
+          try {
+            //Looked up by reflection because virtual threads are a preview feature before Java 21
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            sharedVirtualFetchExecutor = (ExecutorService) m.invoke(null);
+          } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            getLog().warn("Virtual threads are not available, using platform threads\n" + e);
+            sharedVirtualFetchExecutor = getSharedFetchExecutor();
+          }
+        }
+      }
+    }
+    return sharedVirtualFetchExecutor;
+  }
+
+  /** The executor that network fetches are run on */
+  protected Executor getFetchExecutor() {
+    if (config.fetchExecutor != null) {
+      return config.fetchExecutor;
+    }
+    if (config.useVirtualThreadsForFetches) {
+      return getSharedVirtualFetchExecutor();
+    }
+    return getSharedFetchExecutor();
   }
 
   protected final Configuration config;
+  /* Created on first use, since the name it is published under is up to the subclass */
+  private volatile VerifierMetrics metrics = null;
+  private final Object metricsLock = new Object();
   private Cache<K, V> cache;
+  /* Cache misses that are currently being fetched asynchronously, so concurrent callers share them */
+  private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight =
+      new ConcurrentHashMap<K, CompletableFuture<V>>();
   private CacheStats cacheStatsBaseline;
+  /* Circuit breakers keyed by responder host */
+  private final ConcurrentHashMap<String, CircuitBreaker> circuitBreakers =
+      new ConcurrentHashMap<String, CircuitBreaker>();
+  /* Recent failures, keyed by cache key or by responder location */
+  private volatile Cache<Object, Throwable> negativeCache;
+  /* Entries whose nextUpdate has passed, kept for serving stale */
+  private volatile Cache<K, V> staleEntries;
   protected ScheduledExecutorService scheduler;
   protected ScheduledFuture<?> validityCheckerHandle;
+  protected ScheduledFuture<?> expiryHandle;
+  protected ScheduledFuture<?> journalFlushHandle;
+  protected ScheduledFuture<?> journalCompactionHandle;
+  protected ScheduledFuture<?> latencySnapshotHandle;
+  private volatile CacheJournal<K, V> journal = null;
+  private CompletableFuture<Integer> warmUp = CompletableFuture.completedFuture(0);
+  private final ExpiryIndex<K> expiryIndex = new ExpiryIndex<K>();
+  private final ExpiryIndex<K> refreshIndex = new ExpiryIndex<K>();
+  private final ConcurrentHashMap<K, RefreshState<V>> refreshStates =
+      new ConcurrentHashMap<K, RefreshState<V>>();
+  private final Set<K> refreshing = ConcurrentHashMap.newKeySet();
 
   public Verifier(Configuration config)
       throws FileNotFoundException, ClassNotFoundException, IOException {
@@ -98,22 +409,390 @@ public abstract class Verifier<K extends Serializable, V extends Serializable> {
 
   protected abstract Runnable getValidityCheckerCode();
 
+  /** The name this verifier's metrics are published under */
+  protected String getMetricsName() {
+    return getClass().getSimpleName();
+  }
+
+  /** @return the counters and timers of this verifier */
+  public VerifierMetrics getMetrics() {
+    VerifierMetrics m = metrics;
+    if (m == null) {
+      synchronized (metricsLock) {
+        m = metrics;
+        if (m == null) {
+          m = new VerifierMetrics(getMetricsName(), config.metricsRegistry);
+          metrics = m;
+        }
+      }
+    }
+    return m;
+  }
+
+  /** How a check ended, for flight recordings */
+  protected static String getOutcome(VerificationStatus status) {
+    if (status == null) {
+      return "error";
+    }
+    if (status.getStatus() == VerificationStatus.UNKNOWN) {
+      return "unknown";
+    }
+    return (status.getStatus() == VerificationStatus.GOOD) ? "good" : "bad";
+  }
+
+  /** Starts a flight recorder event for a revocation check */
+  protected CheckEvent beginCheck() {
+    CheckEvent event = new CheckEvent();
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Ends a flight recorder event for a revocation check
+   *
+   * @param event from {@link #beginCheck()}
+   * @param peerCert the checked certificate
+   * @param status the result, or null if the check failed
+   */
+  protected void endCheck(CheckEvent event, X509Certificate peerCert, VerificationStatus status) {
+    event.finish(getMetricsName(), peerCert.getSerialNumber(), getOutcome(status));
+  }
+
+  /** Ends a flight recorder event for a revocation check when the check completes */
+  protected CompletableFuture<VerificationStatus> endCheck(
+      final CheckEvent event,
+      final X509Certificate peerCert,
+      CompletableFuture<VerificationStatus> check) {
+    return check.whenComplete(
+        new BiConsumer<VerificationStatus, Throwable>() {
+          @Override
+          public void accept(VerificationStatus status, Throwable t) {
+            endCheck(event, peerCert, (t == null) ? status : null);
+          }
+        });
+  }
+
+  /**
+   * The time after which the revocation information in a cache entry is out of date
+   *
+   * @param value a cache entry
+   * @return the nextUpdate of the revocation information, or null if it is unknown
+   */
+  protected abstract Date getNextUpdate(V value);
+
+  /** How this verifier's cache entries are written to and read from cold storage */
+  protected abstract ColdStorageCodec<K, V> getColdStorageCodec();
+
+  /* A rough allowance for the cache entry, key and value objects around the encoded bytes */
+  protected static final int ENTRY_OVERHEAD_BYTES = 128;
+
+  /**
+   * The approximate number of bytes a cache entry holds, used when cacheMaxBytes is set. By default
+   * this is the size of the entry's cold storage encoding, subclasses with large values should
+   * override it with something cheaper.
+   *
+   * @param key a cache key
+   * @param value a cache entry
+   * @return the weight of the entry in bytes
+   */
+  protected int getWeight(K key, V value) {
+    ColdStorageCodec<K, V> codec = getColdStorageCodec();
+    try {
+      long weight =
+          (long) ENTRY_OVERHEAD_BYTES
+              + codec.encodeKey(key).length
+              + codec.encodeValue(value).length;
+      return (int) Math.min(weight, Integer.MAX_VALUE);
+    } catch (IOException e) {
+      return ENTRY_OVERHEAD_BYTES;
+    }
+  }
+
   protected Cache<K, V> getCache() {
     return cache;
   }
 
   private void setCache(Cache<K, V> newCache) {
-    this.cache = newCache;
+    this.cache = (newCache == null) ? null : new IndexedCache(newCache);
+  }
+
+  private void onInsert(K key, V value) {
+    index(key, value);
+    CacheJournal<K, V> j = journal;
+    if (j != null) {
+      j.appendPut(key, value);
+    }
+  }
+
+  /* Entries without a nextUpdate are due for removal right away */
+  private void index(K key, V value) {
+    Date nextUpdate = getNextUpdate(value);
+    expiryIndex.schedule(key, (nextUpdate == null) ? 0 : nextUpdate.getTime());
+  }
+
+  private Function<V, Date> getNextUpdateFunction() {
+    return new Function<V, Date>() {
+      @Override
+      public Date apply(V value) {
+        return getNextUpdate(value);
+      }
+    };
+  }
+
+  /**
+   * Invalidates the cache entries whose nextUpdate has passed. Uses the expiry index so the cost is
+   * proportional to the number of expired entries, not to the size of the cache.
+   *
+   * @return the number of entries that were invalidated
+   */
+  protected synchronized int expireEntries() {
+    Cache<K, V> cache = getCache();
+    if (!config.useCache || (cache == null)) {
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    int count = 0;
+    for (K key : expiryIndex.pollDue(now)) {
+      V value = cache.asMap().get(key);
+      if (value == null) {
+        continue;
+      }
+      Date nextUpdate = getNextUpdate(value);
+      if ((nextUpdate == null) || (nextUpdate.getTime() <= now)) {
+        //Only remove the value we found to have expired, not one that just replaced it
+        if (cache.asMap().remove(key, value)) {
+          count++;
+          Cache<K, V> stale = staleEntries;
+          if (stale != null) {
+            stale.put(key, value);
+          }
+        }
+      } else {
+        expiryIndex.schedule(key, nextUpdate.getTime());
+      }
+    }
+    getMetrics().expired(count);
+    return count;
+  }
+
+  /** This is run frequently to remove expired entries and to start refreshes that are due */
+  private Runnable getExpiryCode() {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          expireEntries();
+          if (config.refreshAhead) {
+            refreshDueEntries();
+          }
+        } catch (RuntimeException e) {
+          //Keep the scheduled task alive
+          getLog().error("Problem expiring cache entries\n" + e);
+        }
+      }
+    };
   }
 
-  @SuppressWarnings("unchecked")
   private void loadCache() {
+    Path path = Paths.get(config.loadCacheColdStorageFileName);
+    try {
+      if (!ColdStorage.isColdStorageFile(path)) {
+        loadLegacyCache();
+        return;
+      }
+      final Cache<K, V> cache = getCache();
+      int count =
+          ColdStorage.read(
+              path,
+              getColdStorageCodec(),
+              new BiConsumer<K, V>() {
+                @Override
+                public void accept(K key, V value) {
+                  cache.put(key, value);
+                }
+              });
+      getLog()
+          .info("Loaded " + count + " cache entries from " + config.loadCacheColdStorageFileName);
+    } catch (NoSuchFileException e) {
+      getLog()
+          .error(
+              "Unable to find file to load cache from (First load?): "
+                  + config.loadCacheColdStorageFileName
+                  + "\n"
+                  + e);
+    } catch (IOException e) {
+      getLog()
+          .error(
+              "Unable to load objects into cache from: "
+                  + config.loadCacheColdStorageFileName
+                  + "\n"
+                  + e);
+    }
+  }
+
+  /**
+   * @return a future that completes with the number of entries loaded when a background load of
+   *     the cold storage finishes. It is already complete if there is no background load.
+   */
+  public CompletableFuture<Integer> getCacheWarmUp() {
+    return warmUp;
+  }
+
+  /* Records are read from the file on one thread and decoded in batches on the others */
+  private static final int WARM_UP_BATCH_RECORDS = 256;
+  private static final int WARM_UP_BATCH_BYTES = 1024 * 1024;
+
+  /**
+   * Loads the cold storage into the cache on other threads. Decoding, which for CRLs is most of the
+   * work, is spread over loadCacheParallelism threads. Entries are only added if the key isn't
+   * already cached so that fresher results fetched during the load win.
+   */
+  private CompletableFuture<Integer> loadCacheInBackground() {
+    final Cache<K, V> target = getCache();
+    final Path path = Paths.get(config.loadCacheColdStorageFileName);
+    return fetchAsync(
+        new Callable<Integer>() {
+          @Override
+          public Integer call() throws IOException, InterruptedException {
+            long start = System.currentTimeMillis();
+            int count;
+            try {
+              if (!ColdStorage.isColdStorageFile(path)) {
+                loadLegacyCache();
+                return (int) target.size();
+              }
+              count = warmUp(target, path);
+            } catch (NoSuchFileException e) {
+              getLog()
+                  .error(
+                      "Unable to find file to load cache from (First load?): "
+                          + config.loadCacheColdStorageFileName
+                          + "\n"
+                          + e);
+              return 0;
+            } catch (IOException e) {
+              getLog()
+                  .error(
+                      "Unable to load objects into cache from: "
+                          + config.loadCacheColdStorageFileName
+                          + "\n"
+                          + e);
+              throw e;
+            }
+            getLog()
+                .info(
+                    "Loaded "
+                        + count
+                        + " cache entries in the background from "
+                        + config.loadCacheColdStorageFileName
+                        + " in "
+                        + (System.currentTimeMillis() - start)
+                        + "ms");
+            return count;
+          }
+        });
+  }
+
+  private int warmUp(final Cache<K, V> target, Path path)
+      throws IOException, InterruptedException {
+    final ColdStorageCodec<K, V> codec = getColdStorageCodec();
+    final int parallelism = Math.max(1, config.loadCacheParallelism);
+    final ExecutorService decoders =
+        Executors.newFixedThreadPool(
+            parallelism, makeDaemonThreadFactory("SSL Verifier Cache Warm Up"));
+    //Don't read much further ahead than the decoders can keep up with
+    final Semaphore batchesInFlight = new Semaphore(parallelism * 2);
+    final AtomicInteger count = new AtomicInteger();
+    try {
+      final List<byte[][]> batch = new ArrayList<byte[][]>();
+      final AtomicInteger batchBytes = new AtomicInteger();
+      ColdStorage.readRaw(
+          path,
+          new ColdStorage.RawRecordSink() {
+            @Override
+            public void accept(long nextUpdate, byte[] key, byte[] value) throws IOException {
+              if (getCache() != target) {
+                throw new IOException("Cache was reset during warm up");
+              }
+              batch.add(new byte[][] {key, value});
+              if ((batch.size() >= WARM_UP_BATCH_RECORDS)
+                  || (batchBytes.addAndGet(key.length + value.length) >= WARM_UP_BATCH_BYTES)) {
+                decodeBatch(new ArrayList<byte[][]>(batch));
+                batch.clear();
+                batchBytes.set(0);
+              }
+            }
+
+            private void decodeBatch(final List<byte[][]> records) {
+              batchesInFlight.acquireUninterruptibly();
+              decoders.execute(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      try {
+                        for (byte[][] record : records) {
+                          warmPut(target, codec.decodeKey(record[0]), codec.decodeValue(record[1]));
+                          count.incrementAndGet();
+                        }
+                      } catch (IOException e) {
+                        getLog().warn("Unable to decode cold storage record\n" + e);
+                      } finally {
+                        batchesInFlight.release();
+                      }
+                    }
+                  });
+            }
+          });
+      for (byte[][] record : batch) {
+        warmPut(target, codec.decodeKey(record[0]), codec.decodeValue(record[1]));
+        count.incrementAndGet();
+      }
+    } finally {
+      decoders.shutdown();
+      decoders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    return count.get();
+  }
+
+  /* Add a cold entry unless a check has already put a fresher one in the cache */
+  private void warmPut(Cache<K, V> target, K key, V value) {
+    if (target.asMap().putIfAbsent(key, value) == null) {
+      index(key, value);
+    }
+  }
+
+  /*
+   * Caches saved before the binary cold storage format were Java serialized maps. Their keys may be
+   * of a type the cache no longer uses, like the serial numbers OCSP and CT caches were keyed by,
+   * so only entries the codec can store again are loaded.
+   */
+  @SuppressWarnings("unchecked")
+  private void loadLegacyCache() {
     try {
       try (FileInputStream fis = new FileInputStream(config.loadCacheColdStorageFileName)) {
         try (ObjectInputStream ois = new ObjectInputStream(fis)) {
-          Map<? extends K, ? extends V> cacheLoad =
-              (Map<? extends K, ? extends V>) ois.readObject();
-          getCache().putAll(cacheLoad);
+          Map<?, ?> cacheLoad = (Map<?, ?>) ois.readObject();
+          ColdStorageCodec<K, V> codec = getColdStorageCodec();
+          int dropped = 0;
+          for (Map.Entry<?, ?> e : cacheLoad.entrySet()) {
+            try {
+              codec.encodeKey((K) e.getKey());
+              codec.encodeValue((V) e.getValue());
+            } catch (IOException | RuntimeException ex) {
+              //A key or value of another type fails the codec's cast
+              dropped++;
+              continue;
+            }
+            warmPut(getCache(), (K) e.getKey(), (V) e.getValue());
+          }
+          if (dropped > 0) {
+            getLog()
+                .warn(
+                    "Dropped "
+                        + dropped
+                        + " entries of an older cache format from "
+                        + config.loadCacheColdStorageFileName);
+          }
         }
       }
     } catch (FileNotFoundException e) {
@@ -142,20 +821,104 @@ public abstract class Verifier<K extends Serializable, V extends Serializable> {
   }
 
   protected void saveCache() throws FileNotFoundException, IOException {
-    try (FileOutputStream fos = new FileOutputStream(config.storeCacheColdStorageFileName)) {
-      try (ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-        HashMap<K, V> hashMap = new HashMap<K, V>(getCache().asMap());
-        oos.writeObject(hashMap);
-      }
+    int count =
+        ColdStorage.write(
+            Paths.get(config.storeCacheColdStorageFileName),
+            getCache().asMap(),
+            getColdStorageCodec(),
+            getNextUpdateFunction());
+    getLog().info("Saved " + count + " cache entries to " + config.storeCacheColdStorageFileName);
+  }
+
+  /* Replay the journal into the cache, then start journaling from a compacted copy of the result */
+  private void openJournal() {
+    final Cache<K, V> cache = getCache();
+    CacheJournal<K, V> j =
+        new CacheJournal<K, V>(
+            Paths.get(config.journalFileName), getColdStorageCodec(), getNextUpdateFunction());
+    try {
+      int count =
+          j.replay(
+              new BiConsumer<K, V>() {
+                @Override
+                public void accept(K key, V value) {
+                  cache.put(key, value);
+                }
+              },
+              new Consumer<K>() {
+                @Override
+                public void accept(K key) {
+                  cache.invalidate(key);
+                }
+              });
+      j.compact(cache.asMap());
+      journal = j;
+      getLog().info("Recovered " + count + " journal records from " + config.journalFileName);
+    } catch (IOException e) {
+      getLog().error("Unable to use cache journal: " + config.journalFileName + "\n" + e);
     }
-    getLog().info("Saved cache to " + config.storeCacheColdStorageFileName);
+  }
+
+  private Runnable getJournalFlushCode() {
+    return new Runnable() {
+      @Override
+      public void run() {
+        CacheJournal<K, V> j = journal;
+        if (j != null) {
+          try {
+            j.flush();
+          } catch (IOException e) {
+            getLog().error("Unable to flush cache journal: " + config.journalFileName + "\n" + e);
+          }
+        }
+      }
+    };
+  }
+
+  private Runnable getJournalCompactionCode() {
+    return new Runnable() {
+      @Override
+      public void run() {
+        CacheJournal<K, V> j = journal;
+        Cache<K, V> cache = getCache();
+        if ((j != null) && (cache != null)) {
+          try {
+            j.compact(cache.asMap());
+          } catch (IOException e) {
+            getLog()
+                .error("Unable to compact cache journal: " + config.journalFileName + "\n" + e);
+          }
+        }
+      }
+    };
   }
 
   public synchronized void shutdown() throws FileNotFoundException, IOException {
+    getMetrics().unregisterMBean();
+    if (latencySnapshotHandle != null) {
+      latencySnapshotHandle.cancel(false);
+      latencySnapshotHandle = null;
+    }
     if (config.useCache && (getCache() != null)) {
+      if (expiryHandle != null) {
+        expiryHandle.cancel(false);
+      }
+      if (journalFlushHandle != null) {
+        journalFlushHandle.cancel(false);
+      }
+      if (journalCompactionHandle != null) {
+        journalCompactionHandle.cancel(false);
+      }
+      if (journal != null) {
+        try {
+          journal.close();
+        } finally {
+          journal = null;
+        }
+      }
+      //The scheduler is shared so only this verifier's tasks are stopped
       if (validityCheckerHandle != null) {
         validityCheckerHandle.cancel(false);
-        scheduler.shutdownNow();
       }
       if (config.storeCacheToColdStorageOnQuit && (config.storeCacheColdStorageFileName != null)) {
         saveCache();
@@ -186,32 +949,387 @@ public abstract class Verifier<K extends Serializable, V extends Serializable> {
       }
     }
     cacheStatsBaseline = null;
+    negativeCache = null;
+    staleEntries = null;
+    warmUp = CompletableFuture.completedFuture(0);
     scheduler = null;
     validityCheckerHandle = null;
+    expiryHandle = null;
+    journalFlushHandle = null;
+    journalCompactionHandle = null;
+    expiryIndex.clear();
+    refreshIndex.clear();
+    refreshStates.clear();
 
     if (config.useCache) {
       CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder();
-      cacheBuilder = cacheBuilder.maximumSize(config.cacheMaxSize);
+      if (config.cacheMaxBytes != null) {
+        //Guava splits the weight budget across segments, and evicts an entry heavier than its
+        //segment's share as soon as it is put
+        cacheBuilder =
+            cacheBuilder
+                .concurrencyLevel(1)
+                .maximumWeight(config.cacheMaxBytes)
+                .weigher(
+                    new Weigher<Object, Object>() {
+                      @SuppressWarnings("unchecked")
+                      @Override
+                      public int weigh(Object key, Object value) {
+                        return getWeight((K) key, (V) value);
+                      }
+                    });
+      } else {
+        cacheBuilder = cacheBuilder.maximumSize(config.cacheMaxSize);
+      }
       if (config.trackCacheStats) {
         cacheBuilder.recordStats();
       }
-      setCache(cacheBuilder.build());
+      setCache(
+          cacheBuilder
+              .removalListener(
+                  new RemovalListener<K, V>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<K, V> notification) {
+                      if (notification.getCause() != RemovalCause.REPLACED) {
+                        expiryIndex.remove(notification.getKey());
+                        CacheJournal<K, V> j = journal;
+                        if (j != null) {
+                          j.appendRemove(notification.getKey());
+                        }
+                        refreshIndex.remove(notification.getKey());
+                        refreshStates.remove(notification.getKey());
+                      }
+                    }
+                  })
+              .build());
 
       //Load the cache from disk
       if (config.loadCacheFromColdStorageOnStart && (config.loadCacheColdStorageFileName != null)) {
-        loadCache();
+        if (config.loadCacheInBackground) {
+          warmUp = loadCacheInBackground();
+        } else {
+          loadCache();
+        }
+      }
+
+      if (config.journalFileName != null) {
+        openJournal();
       }
 
       //Set up a periodic cleaner
-      scheduler = Executors.newScheduledThreadPool(1);
+      scheduler = (config.scheduler != null) ? config.scheduler : getSharedScheduler();
 
       //Launch cleaner immediately to deal with possible stale data in the cold loaded file, then periodically
       validityCheckerHandle =
           scheduler.scheduleAtFixedRate(
               getValidityCheckerCode(), 0, config.duration, config.timeUnit);
 
+      //Expiring through the index is cheap so it can run much more often than the validity checker
+      expiryHandle =
+          scheduler.scheduleWithFixedDelay(
+              getExpiryCode(),
+              config.expiryCheckDuration,
+              config.expiryCheckDuration,
+              config.expiryCheckTimeUnit);
+
+      if (journal != null) {
+        journalFlushHandle =
+            scheduler.scheduleWithFixedDelay(
+                getJournalFlushCode(),
+                config.journalFlushDuration,
+                config.journalFlushDuration,
+                config.journalFlushTimeUnit);
+        journalCompactionHandle =
+            scheduler.scheduleWithFixedDelay(
+                getJournalCompactionCode(),
+                config.journalCompactionDuration,
+                config.journalCompactionDuration,
+                config.journalCompactionTimeUnit);
+      }
+
+      if (config.negativeCacheDuration > 0) {
+        negativeCache =
+            CacheBuilder.newBuilder()
+                .maximumSize(config.negativeCacheMaxSize)
+                .expireAfterWrite(config.negativeCacheDuration, config.negativeCacheTimeUnit)
+                .recordStats()
+                .build();
+      }
+
+      if (config.serveStaleDuration > 0) {
+        staleEntries =
+            CacheBuilder.newBuilder()
+                .maximumSize((config.cacheMaxSize != null) ? config.cacheMaxSize : 1000)
+                .expireAfterWrite(config.serveStaleDuration, config.serveStaleTimeUnit)
+                .build();
+      }
+
       cacheStatsBaseline = getCache().stats();
     }
+
+    if (config.publishMetricsToJMX) {
+      getMetrics().registerMBean();
+    }
+
+    if (latencySnapshotHandle != null) {
+      latencySnapshotHandle.cancel(false);
+      latencySnapshotHandle = null;
+    }
+    if (config.latencySnapshotDuration > 0) {
+      ScheduledExecutorService s =
+          (config.scheduler != null) ? config.scheduler : getSharedScheduler();
+      latencySnapshotHandle =
+          s.scheduleAtFixedRate(
+              new Runnable() {
+                @Override
+                public void run() {
+                  getMetrics().snapshotLatencies();
+                }
+              },
+              config.latencySnapshotDuration,
+              config.latencySnapshotDuration,
+              config.latencySnapshotTimeUnit);
+    }
+  }
+
+  /**
+   * @param key a cache key or a responder location
+   * @return the failure recently recorded for the key, or null if there isn't one
+   */
+  protected Throwable getCachedFailure(Object key) {
+    Cache<Object, Throwable> failures = negativeCache;
+    return (failures == null) ? null : failures.getIfPresent(key);
+  }
+
+  /**
+   * Remembers that a lookup failed so that it isn't retried until the negative cache entry
+   * expires.
+   *
+   * @param key a cache key or a responder location
+   * @param failure what went wrong
+   */
+  protected void cacheFailure(Object key, Throwable failure) {
+    Cache<Object, Throwable> failures = negativeCache;
+    if (failures != null) {
+      if (failure instanceof CompletionException && (failure.getCause() != null)) {
+        failure = failure.getCause();
+      }
+      failures.put(key, failure);
+    }
+  }
+
+  /**
+   * Gets a value from the cache, loading it on a miss. Verifiers should use this instead of reading
+   * the cache directly so that refresh ahead knows which entries are in use and how to reload them.
+   *
+   * @param key the cache key
+   * @param loader fetches the value on a miss
+   * @return the cached or loaded value
+   * @throws ExecutionException if the loader threw a checked exception
+   */
+  protected V getCached(final K key, final Callable<V> loader) throws ExecutionException {
+    CacheLookupEvent event = new CacheLookupEvent();
+    event.begin();
+    long start = System.nanoTime();
+    V stale = getStale(key);
+    if (stale != null) {
+      getMetrics().checked(true, System.nanoTime() - start);
+      event.finish(getMetricsName(), key, "stale");
+      revalidate(
+          key,
+          new Supplier<CompletableFuture<V>>() {
+            @Override
+            public CompletableFuture<V> get() {
+              return fetchAsync(loader);
+            }
+          });
+      return stale;
+    }
+    final AtomicBoolean loaded = new AtomicBoolean(false);
+    V value;
+    try {
+      value =
+          getCache()
+              .get(
+                  key,
+                  new Callable<V>() {
+                    @Override
+                    public V call() throws Exception {
+                      Throwable failure = getCachedFailure(key);
+                      if (failure instanceof Exception) {
+                        throw (Exception) failure;
+                      } else if (failure != null) {
+                        throw new ExecutionException("Failed recently, not retrying", failure);
+                      }
+                      loaded.set(true);
+                      return loader.call();
+                    }
+                  });
+    } catch (ExecutionException e) {
+      if (loaded.get()) {
+        getMetrics().miss();
+        cacheFailure(key, e.getCause());
+      }
+      getMetrics().failed();
+      event.finish(getMetricsName(), key, "failed");
+      throw e;
+    }
+    if (loaded.get()) {
+      getMetrics().miss();
+    } else {
+      getMetrics().hit();
+    }
+    getMetrics().checked(!loaded.get(), System.nanoTime() - start);
+    event.finish(getMetricsName(), key, loaded.get() ? "miss" : "hit");
+    if (loaded.get()) {
+      trackRefresh(key, value, loader);
+    } else {
+      markHot(key);
+    }
+    return value;
+  }
+
+  private void markHot(K key) {
+    if (config.refreshAhead) {
+      RefreshState<V> state = refreshStates.get(key);
+      if (state != null) {
+        state.hot = true;
+        if (state.due) {
+          state.due = false;
+          startRefresh(key, state);
+        }
+      }
+    }
+  }
+
+  /* Remember how to reload a freshly loaded entry and pick a jittered time to do it */
+  private void trackRefresh(K key, V value, Callable<V> loader) {
+    if (!config.refreshAhead) {
+      return;
+    }
+    Date nextUpdate = getNextUpdate(value);
+    if (nextUpdate == null) {
+      return;
+    }
+    long window = config.refreshAheadTimeUnit.toMillis(config.refreshAheadDuration);
+    long jitter = (long) (window * config.refreshAheadJitter * r.nextDouble());
+    refreshStates.put(key, new RefreshState<V>(loader, nextUpdate.getTime()));
+    refreshIndex.schedule(key, nextUpdate.getTime() - window + jitter);
+  }
+
+  /**
+   * Reloads entries that are in use and whose refresh time has passed. Entries that haven't been
+   * read yet are marked so that they are reloaded when they are next read. The old entry keeps being
+   * served until the reload finishes and replaces it.
+   */
+  private void refreshDueEntries() {
+    int count = 0;
+    for (K key : refreshIndex.pollDue(System.currentTimeMillis())) {
+      RefreshState<V> state = refreshStates.get(key);
+      if (state == null) {
+        continue;
+      }
+      if (state.hot) {
+        count++;
+        startRefresh(key, state);
+      } else {
+        state.due = true;
+      }
+    }
+    if (count > 0) {
+      getLog().debug("Refreshing " + count + " cache entries ahead of their nextUpdate");
+    }
+  }
+
+  private void startRefresh(final K key, final RefreshState<V> state) {
+    final Cache<K, V> cache = getCache();
+    if ((cache == null) || !refreshing.add(key)) {
+      return;
+    }
+    fetchAsync(state.loader)
+        .whenComplete(
+            new BiConsumer<V, Throwable>() {
+              @Override
+              public void accept(V value, Throwable t) {
+                try {
+                  if (t != null) {
+                    getLog().debug("Unable to refresh cache entry " + key + "\n" + t);
+                  } else if ((value != null) && cache.asMap().containsKey(key)) {
+                    cache.put(key, value);
+                    //A responder with nothing newer yet, like a CRL that is only republished at
+                    //its nextUpdate, answers with the same nextUpdate. Its refresh time has
+                    //already passed, so leave the entry to expire rather than fetch it again
+                    Date nextUpdate = getNextUpdate(value);
+                    if ((nextUpdate != null) && (nextUpdate.getTime() > state.nextUpdate)) {
+                      trackRefresh(key, value, state.loader);
+                    }
+                  }
+                } finally {
+                  refreshing.remove(key);
+                }
+              }
+            });
+  }
+
+  /**
+   * Marks a value that is served after its nextUpdate. The cached value must not be changed, so
+   * mark a copy.
+   *
+   * @param value an expired value
+   * @return the value, marked as stale if the value type can be
+   */
+  protected V markStale(V value) {
+    return value;
+  }
+
+  /* The expired value of a key that isn't in the cache any more, marked stale, or null */
+  private V getStale(K key) {
+    Cache<K, V> stale = staleEntries;
+    if (stale == null) {
+      return null;
+    }
+    V value = stale.asMap().get(key);
+    if (value == null) {
+      return null;
+    }
+    Cache<K, V> cache = getCache();
+    if ((cache != null) && cache.asMap().containsKey(key)) {
+      //It has been fetched again since it expired
+      stale.asMap().remove(key, value);
+      return null;
+    }
+    getMetrics().servedStale();
+    return markStale(value);
+  }
+
+  /* Fetches a key that is being served stale in the background, once at a time */
+  private void revalidate(final K key, Supplier<CompletableFuture<V>> loader) {
+    final Cache<K, V> cache = getCache();
+    if ((cache == null) || !refreshing.add(key)) {
+      return;
+    }
+    final Callable<V> reloader = asCallable(loader);
+    startLoad(loader)
+        .whenComplete(
+            new BiConsumer<V, Throwable>() {
+              @Override
+              public void accept(V value, Throwable t) {
+                try {
+                  if (t != null) {
+                    getLog().debug("Unable to revalidate stale cache entry " + key + "\n" + t);
+                  } else if (value != null) {
+                    cache.put(key, value);
+                    trackRefresh(key, value, reloader);
+                    Cache<K, V> stale = staleEntries;
+                    if (stale != null) {
+                      stale.invalidate(key);
+                    }
+                  }
+                } finally {
+                  refreshing.remove(key);
+                }
+              }
+            });
   }
 
   public CacheStats getCacheStats() {
@@ -222,6 +1340,15 @@ public abstract class Verifier<K extends Serializable, V extends Serializable> {
     return null;
   }
 
+  /**
+   * @return statistics of the negative cache. Hits are lookups that failed fast because of a recent
+   *     failure. Null if there is no negative cache.
+   */
+  public CacheStats getNegativeCacheStats() {
+    Cache<Object, Throwable> failures = negativeCache;
+    return (failures == null) ? null : failures.stats();
+  }
+
   public void triggerGarbageCollection() {
     if (config.useCache && (getCache() != null)) {
       Runnable code = getValidityCheckerCode();
@@ -247,4 +1374,612 @@ public abstract class Verifier<K extends Serializable, V extends Serializable> {
       final X509Certificate issuerCert,
       final X509Certificate[] fullChain)
       throws CertificateVerificationException, ExecutionException;
+
+  /**
+   * Gets the revocation status of the given peer certificate without blocking the calling thread on
+   * network fetches. Uses the cache if it has been configured. A cache hit completes immediately.
+   *
+   * @param peerCert The certificate we want to check if revoked.
+   * @param issuerCert Needed to create OCSP request.
+   * @return a future holding the revocation status of the peer certificate. It completes
+   *     exceptionally with a CertificateVerificationException if the status can't be determined.
+   */
+  public abstract CompletableFuture<VerificationStatus> checkRevocationStatusAsync(
+      final X509Certificate peerCert,
+      final X509Certificate issuerCert,
+      final X509Certificate[] fullChain);
+
+  /**
+   * Gets the revocation status of many certificates at once. Certificates are grouped by their
+   * first responder location (see {@link #getResponderLocations(X509Certificate)}) so that work
+   * against the same responder, like parsing the certificate extensions or fetching a CRL, is done
+   * once per group. Groups are checked concurrently.
+   *
+   * @param certs the certificates to check
+   * @return the revocation status of each certificate, iterated in the order of certs.
+   *     Certificates whose status could not be determined are not in the map.
+   */
+  public Map<CertAndIssuer, VerificationStatus> checkRevocationStatusBatch(
+      Collection<CertAndIssuer> certs) {
+    if (certs == null) {
+      throw new InvalidParameterException("certs must not be null");
+    }
+
+    Map<String, Map<CertAndIssuer, List<String>>> groups =
+        new LinkedHashMap<String, Map<CertAndIssuer, List<String>>>();
+    List<CertAndIssuer> ungrouped = new ArrayList<CertAndIssuer>();
+    for (CertAndIssuer c : certs) {
+      List<String> locations = null;
+      try {
+        locations = getResponderLocations(c.getPeerCert());
+      } catch (CertificateVerificationException e) {
+        getLog().debug("Unable to find responder locations, checking individually\n" + e);
+      }
+      if ((locations == null) || locations.isEmpty()) {
+        ungrouped.add(c);
+      } else {
+        Map<CertAndIssuer, List<String>> group = groups.get(locations.get(0));
+        if (group == null) {
+          group = new LinkedHashMap<CertAndIssuer, List<String>>();
+          groups.put(locations.get(0), group);
+        }
+        group.put(c, locations);
+      }
+    }
+
+    List<CompletableFuture<Map<CertAndIssuer, VerificationStatus>>> pending =
+        new ArrayList<CompletableFuture<Map<CertAndIssuer, VerificationStatus>>>();
+    for (Map.Entry<String, Map<CertAndIssuer, List<String>>> group : groups.entrySet()) {
+      pending.add(checkRevocationStatusGroupAsync(group.getKey(), group.getValue()));
+    }
+    if (!ungrouped.isEmpty()) {
+      pending.add(checkEachAsync(ungrouped));
+    }
+
+    Map<CertAndIssuer, VerificationStatus> statuses =
+        new HashMap<CertAndIssuer, VerificationStatus>();
+    for (CompletableFuture<Map<CertAndIssuer, VerificationStatus>> p : pending) {
+      statuses.putAll(p.join());
+    }
+    //Groups finish in any order, so put the answers back in the order they were asked for
+    Map<CertAndIssuer, VerificationStatus> results =
+        new LinkedHashMap<CertAndIssuer, VerificationStatus>();
+    for (CertAndIssuer c : certs) {
+      VerificationStatus status = statuses.get(c);
+      if (status != null) {
+        results.put(c, status);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * The locations of the responders that can answer for the given certificate, in the order they
+   * should be tried. Used to group certificates in {@link #checkRevocationStatusBatch(Collection)}.
+   *
+   * @param peerCert The certificate we want to check if revoked.
+   * @return the responder locations, empty if the verifier doesn't contact a responder
+   * @throws CertificateVerificationException if the certificate's locations can't be read
+   */
+  protected List<String> getResponderLocations(X509Certificate peerCert)
+      throws CertificateVerificationException {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Checks a group of certificates that share the same first responder location. The default
+   * checks each certificate on its own.
+   *
+   * @param location the first responder location shared by the group
+   * @param group the certificates mapped to all of their responder locations
+   * @return a future holding the statuses that could be determined
+   */
+  protected CompletableFuture<Map<CertAndIssuer, VerificationStatus>>
+      checkRevocationStatusGroupAsync(
+          String location, Map<CertAndIssuer, List<String>> group) {
+    return checkEachAsync(group.keySet());
+  }
+
+  private CompletableFuture<Map<CertAndIssuer, VerificationStatus>> checkEachAsync(
+      Collection<CertAndIssuer> certs) {
+    Map<CertAndIssuer, CompletableFuture<VerificationStatus>> pending =
+        new LinkedHashMap<CertAndIssuer, CompletableFuture<VerificationStatus>>();
+    for (CertAndIssuer c : certs) {
+      CompletableFuture<VerificationStatus> status;
+      try {
+        status =
+            checkRevocationStatusAsync(c.getPeerCert(), c.getIssuerCert(), c.getFullChain());
+      } catch (RuntimeException e) {
+        status = CompletableFuture.failedFuture(e);
+      }
+      pending.put(c, status);
+    }
+    return collectStatuses(pending);
+  }
+
+  /**
+   * Waits for all of the statuses and gathers the ones that completed normally into a map. Failures
+   * are logged and left out.
+   */
+  protected static CompletableFuture<Map<CertAndIssuer, VerificationStatus>> collectStatuses(
+      final Map<CertAndIssuer, CompletableFuture<VerificationStatus>> pending) {
+    return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[0]))
+        .handle(
+            new BiFunction<Void, Throwable, Map<CertAndIssuer, VerificationStatus>>() {
+              @Override
+              public Map<CertAndIssuer, VerificationStatus> apply(Void v, Throwable ignored) {
+                Map<CertAndIssuer, VerificationStatus> results =
+                    new HashMap<CertAndIssuer, VerificationStatus>();
+                for (Map.Entry<CertAndIssuer, CompletableFuture<VerificationStatus>> e :
+                    pending.entrySet()) {
+                  try {
+                    VerificationStatus status = e.getValue().join();
+                    if (status != null) {
+                      results.put(e.getKey(), status);
+                    }
+                  } catch (CompletionException | CancellationException t) {
+                    getLog()
+                        .info(
+                            "Unable to determine revocation status of "
+                                + e.getKey().getPeerCert().getSerialNumber()
+                                + "\n"
+                                + t.getCause());
+                  }
+                }
+                return results;
+              }
+            });
+  }
+
+  /**
+   * Runs a blocking task on the fetch executor.
+   *
+   * @param task the work to do, usually a network fetch
+   * @return a future which is completed with the result of the task, or with the exception it threw
+   */
+  protected <T> CompletableFuture<T> fetchAsync(final Callable<T> task) {
+    final CompletableFuture<T> result = new CompletableFuture<T>();
+    getFetchExecutor()
+        .execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  result.complete(task.call());
+                } catch (Throwable t) {
+                  result.completeExceptionally(t);
+                }
+              }
+            });
+    return result;
+  }
+
+  /** @return the circuit breaker of the URL's host, or null if circuit breaking is off */
+  protected CircuitBreaker getCircuitBreaker(String url) {
+    if (config.circuitBreakerFailureThreshold <= 0) {
+      return null;
+    }
+    final String host = VerifierMetrics.getHost(url);
+    CircuitBreaker breaker = circuitBreakers.get(host);
+    if (breaker == null) {
+      circuitBreakers.putIfAbsent(
+          host,
+          new CircuitBreaker(
+              host,
+              config.circuitBreakerFailureThreshold,
+              config.circuitBreakerOpenDuration,
+              config.circuitBreakerOpenTimeUnit) {
+            @Override
+            protected void onStateChange(State from, State to) {
+              getLog()
+                  .info("Circuit for " + getMetricsName() + " responder " + host + " is " + to);
+              getMetrics().circuitChanged(host, to.name());
+            }
+          });
+      breaker = circuitBreakers.get(host);
+    }
+    return breaker;
+  }
+
+  /**
+   * Call before fetching from a URL. Report the outcome of the fetch to the returned breaker.
+   *
+   * @return the circuit breaker of the URL's host, or null if circuit breaking is off
+   * @throws CertificateVerificationException if the host's circuit is open
+   */
+  protected CircuitBreaker enterCircuit(String url) throws CertificateVerificationException {
+    CircuitBreaker breaker = getCircuitBreaker(url);
+    if ((breaker != null) && !breaker.allowRequest()) {
+      getMetrics().circuitRejected(url);
+      throw new CertificateVerificationException(
+          "Circuit open for responder:\"" + url + "\", not asking it");
+    }
+    return breaker;
+  }
+
+  /** @return the state of the circuit breaker of every responder host that has been asked */
+  public Map<String, CircuitBreaker.State> getCircuitStates() {
+    Map<String, CircuitBreaker.State> states = new TreeMap<String, CircuitBreaker.State>();
+    for (CircuitBreaker breaker : circuitBreakers.values()) {
+      states.put(breaker.getHost(), breaker.getState());
+    }
+    return states;
+  }
+
+  /** @return a deadline for a check starting now */
+  protected Deadline newDeadline() {
+    return Deadline.after(config.checkDeadline, config.checkDeadlineTimeUnit);
+  }
+
+  /**
+   * @return a deadline for a fetch starting now. It is separate from the deadline of the check that
+   *     started the fetch, so that a fetch which outlasts the check can still be cached.
+   */
+  protected Deadline newFetchDeadline() {
+    return Deadline.after(config.fetchDeadline, config.fetchDeadlineTimeUnit);
+  }
+
+  /**
+   * Answers with the configured deadline status if the check hasn't finished by the deadline. The
+   * check itself isn't cancelled, so a fetch that finishes late is still cached.
+   *
+   * @param check the check in progress
+   * @param deadline when to stop waiting for it
+   * @return a future that completes with the check's result or when the deadline passes
+   */
+  protected CompletableFuture<VerificationStatus> withDeadline(
+      CompletableFuture<VerificationStatus> check, Deadline deadline) {
+    if (!deadline.isBounded() || check.isDone()) {
+      return check;
+    }
+    if (config.deadlineStatus == null) {
+      return check.copy().orTimeout(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+    }
+    return check
+        .copy()
+        .completeOnTimeout(
+            new VerificationStatus(config.deadlineStatus, null),
+            deadline.remainingNanos(),
+            TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Blocks until an asynchronous check or fetch finishes, so that a blocking check can be held to
+   * its deadline.
+   *
+   * @throws CertificateVerificationException if the check failed
+   */
+  protected <T> T await(CompletableFuture<T> check) throws CertificateVerificationException {
+    try {
+      return check.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CertificateVerificationException) {
+        throw (CertificateVerificationException) e.getCause();
+      }
+      throw new CertificateVerificationException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CertificateVerificationException(e);
+    }
+  }
+
+  /**
+   * Runs a task when the deadline passes, to abort a request that is still going.
+   *
+   * @return a handle to cancel the task with when the request is done, or null if there is no
+   *     deadline
+   */
+  protected ScheduledFuture<?> atDeadline(Deadline deadline, Runnable task) {
+    if (!deadline.isBounded()) {
+      return null;
+    }
+    ScheduledExecutorService s = (scheduler != null) ? scheduler : getSharedScheduler();
+    return s.schedule(task, deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  /** Starts a request to one of several URLs that can each answer it */
+  protected interface HedgedRequest<T> {
+    /**
+     * @param url the URL to ask
+     * @return a future for the answer, null if the URL had no usable answer
+     */
+    CompletableFuture<T> start(String url);
+  }
+
+  /** Makes a blocking request to one of several URLs that can each answer it */
+  protected interface BlockingHedgedRequest<T> {
+    /**
+     * @param url the URL to ask
+     * @return the answer, null if the URL had no usable answer
+     */
+    T call(String url) throws Exception;
+  }
+
+  /** Tries URLs in order, starting the next early if the ones before it are slow */
+  private class Hedge<T> {
+    private final List<String> urls;
+    private final HedgedRequest<T> request;
+    private final CompletableFuture<T> result = new CompletableFuture<T>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger finished = new AtomicInteger();
+    private final List<ScheduledFuture<?>> timers =
+        Collections.synchronizedList(new ArrayList<ScheduledFuture<?>>());
+    private volatile Throwable failure = null;
+
+    Hedge(List<String> urls, HedgedRequest<T> request) {
+      this.urls = urls;
+      this.request = request;
+    }
+
+    void launchNext() {
+      if (result.isDone()) {
+        return;
+      }
+      int index = next.getAndIncrement();
+      if (index >= urls.size()) {
+        return;
+      }
+      String url = urls.get(index);
+      if ((index + 1 < urls.size()) && (config.hedgeDelay > 0)) {
+        ScheduledExecutorService s = (scheduler != null) ? scheduler : getSharedScheduler();
+        timers.add(
+            s.schedule(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    launchNext();
+                  }
+                },
+                getHedgeDelayNanos(url),
+                TimeUnit.NANOSECONDS));
+      }
+
+      CompletableFuture<T> attempt;
+      try {
+        attempt = request.start(url);
+      } catch (RuntimeException e) {
+        attempt = CompletableFuture.failedFuture(e);
+      }
+      attempt.whenComplete(
+          new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable t) {
+              finishedOne(value, t);
+            }
+          });
+    }
+
+    private void finishedOne(T value, Throwable t) {
+      if ((t == null) && (value != null)) {
+        if (result.complete(value)) {
+          cancelTimers();
+        }
+        return;
+      }
+      if (t != null) {
+        failure = (t instanceof CompletionException) ? t.getCause() : t;
+      }
+      //This URL gave up, so don't wait for the hedge delay to try the next one
+      launchNext();
+      if (finished.incrementAndGet() == urls.size()) {
+        cancelTimers();
+        if (failure != null) {
+          result.completeExceptionally(failure);
+        } else {
+          result.complete(null);
+        }
+      }
+    }
+
+    private void cancelTimers() {
+      synchronized (timers) {
+        for (ScheduledFuture<?> timer : timers) {
+          timer.cancel(false);
+        }
+      }
+    }
+  }
+
+  /* How long to wait for a URL before also trying the next one */
+  private long getHedgeDelayNanos(String url) {
+    if (config.hedgeLatencyPercentile > 0) {
+      long nanos = getMetrics().getFetchLatencyNanos(url, config.hedgeLatencyPercentile);
+      if (nanos > 0) {
+        return nanos;
+      }
+    }
+    return config.hedgeTimeUnit.toNanos(config.hedgeDelay);
+  }
+
+  /**
+   * Asks several URLs for the same answer. The first URL is asked straight away. The next is asked
+   * when the one before it fails, has no answer, or hasn't answered within the hedge delay. The
+   * first non-null answer wins and no further URLs are asked. Requests that are already running are
+   * left to finish, so that loads shared through the cache aren't cancelled for other callers.
+   *
+   * @param urls the URLs in order of preference
+   * @param request starts the request to one URL
+   * @return a future for the first answer. It is null if no URL had one, or fails with the last
+   *     failure if none had an answer and some failed
+   */
+  protected <T> CompletableFuture<T> hedgeAsync(List<String> urls, HedgedRequest<T> request) {
+    if (urls.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    Hedge<T> hedge = new Hedge<T>(urls, request);
+    hedge.launchNext();
+    return hedge.result;
+  }
+
+  /**
+   * Blocks until {@link #hedgeAsync(List, HedgedRequest)} has an answer
+   *
+   * @throws CertificateVerificationException if no URL had an answer and some failed
+   */
+  protected <T> T hedge(List<String> urls, HedgedRequest<T> request)
+      throws CertificateVerificationException {
+    return await(hedgeAsync(urls, request));
+  }
+
+  /**
+   * Like {@link #hedgeAsync(List, HedgedRequest)}, making each blocking request on the fetch
+   * executor. The thread that makes a request is the only one it ties up.
+   */
+  protected <T> CompletableFuture<T> hedgeBlockingAsync(
+      List<String> urls, final BlockingHedgedRequest<T> request) {
+    return hedgeAsync(
+        urls,
+        new HedgedRequest<T>() {
+          @Override
+          public CompletableFuture<T> start(final String url) {
+            return fetchAsync(
+                new Callable<T>() {
+                  @Override
+                  public T call() throws Exception {
+                    return request.call(url);
+                  }
+                });
+          }
+        });
+  }
+
+  /**
+   * Blocks until {@link #hedgeBlockingAsync(List, BlockingHedgedRequest)} has an answer. With one
+   * URL there is nothing to hedge, so the request is made on the calling thread rather than on a
+   * fetch thread that the caller would only wait on.
+   *
+   * @throws CertificateVerificationException if no URL had an answer and some failed
+   */
+  protected <T> T hedgeBlocking(List<String> urls, BlockingHedgedRequest<T> request)
+      throws CertificateVerificationException {
+    if (urls.size() != 1) {
+      return await(hedgeBlockingAsync(urls, request));
+    }
+    try {
+      return request.call(urls.get(0));
+    } catch (CertificateVerificationException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new CertificateVerificationException(e);
+    }
+  }
+
+  /**
+   * Looks up a key in the cache and, on a miss, starts the loader. Concurrent misses on the same key
+   * share one load. Successful non-null results are put in the cache.
+   *
+   * @param key the cache key
+   * @param loader starts the fetch of the value and returns a future for it
+   * @return a future for the value
+   */
+  protected CompletableFuture<V> loadAsync(final K key, final Supplier<CompletableFuture<V>> loader) {
+    final Cache<K, V> cache = getCache();
+    if (!config.useCache || (cache == null)) {
+      return startLoad(loader);
+    }
+
+    final CacheLookupEvent event = new CacheLookupEvent();
+    event.begin();
+    final long start = System.nanoTime();
+    V cached = cache.getIfPresent(key);
+    if (cached != null) {
+      getMetrics().hit();
+      getMetrics().checked(true, System.nanoTime() - start);
+      event.finish(getMetricsName(), key, "hit");
+      markHot(key);
+      return CompletableFuture.completedFuture(cached);
+    }
+
+    V stale = getStale(key);
+    if (stale != null) {
+      getMetrics().checked(true, System.nanoTime() - start);
+      event.finish(getMetricsName(), key, "stale");
+      revalidate(key, loader);
+      return CompletableFuture.completedFuture(stale);
+    }
+
+    Throwable failure = getCachedFailure(key);
+    if (failure != null) {
+      getMetrics().failed();
+      event.finish(getMetricsName(), key, "failed");
+      return CompletableFuture.failedFuture(failure);
+    }
+
+    getMetrics().miss();
+
+    final CompletableFuture<V> pending = new CompletableFuture<V>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, pending);
+    if (existing != null) {
+      event.finish(getMetricsName(), key, "miss");
+      return existing;
+    }
+
+    startLoad(loader)
+        .whenComplete(
+            new BiConsumer<V, Throwable>() {
+              @Override
+              public void accept(V value, Throwable t) {
+                try {
+                  if ((t == null) && (value != null)) {
+                    getMetrics().checked(false, System.nanoTime() - start);
+                    cache.put(key, value);
+                    trackRefresh(key, value, asCallable(loader));
+                  } else if (t != null) {
+                    getMetrics().failed();
+                    cacheFailure(key, t);
+                  }
+                  event.finish(getMetricsName(), key, (t == null) ? "miss" : "failed");
+                } finally {
+                  inFlight.remove(key, pending);
+                }
+                if (t != null) {
+                  pending.completeExceptionally(t);
+                } else {
+                  pending.complete(value);
+                }
+              }
+            });
+    return pending;
+  }
+
+  /**
+   * Looks up a key in the cache and, on a miss, runs the blocking loader on the fetch executor.
+   *
+   * @see #loadAsync(Object, Supplier)
+   */
+  protected CompletableFuture<V> loadAsync(final K key, final Callable<V> loader) {
+    return loadAsync(
+        key,
+        new Supplier<CompletableFuture<V>>() {
+          @Override
+          public CompletableFuture<V> get() {
+            return fetchAsync(loader);
+          }
+        });
+  }
+
+  /* Turns an asynchronous loader back into a blocking one so that it can be refreshed later */
+  private Callable<V> asCallable(final Supplier<CompletableFuture<V>> loader) {
+    return new Callable<V>() {
+      @Override
+      public V call() throws Exception {
+        try {
+          return loader.get().get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+          }
+          throw e;
+        }
+      }
+    };
+  }
+
+  private CompletableFuture<V> startLoad(Supplier<CompletableFuture<V>> loader) {
+    try {
+      return loader.get();
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
 }
@@ -21,11 +21,15 @@
 
 package com.djp3.sslcert.crl;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
 import java.security.cert.CRLException;
 import java.security.cert.CertificateException;
@@ -34,10 +38,16 @@ import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -52,11 +62,19 @@ import org.bouncycastle.asn1.x509.Extension;
 import org.bouncycastle.asn1.x509.GeneralName;
 import org.bouncycastle.asn1.x509.GeneralNames;
 
+import com.djp3.sslcert.CertAndIssuer;
 import com.djp3.sslcert.CertificateVerificationException;
+import com.djp3.sslcert.CircuitBreaker;
+import com.djp3.sslcert.ColdStorageCodec;
+import com.djp3.sslcert.Deadline;
 import com.djp3.sslcert.VerificationStatus;
 import com.djp3.sslcert.Verifier;
+import com.djp3.sslcert.jfr.CheckEvent;
+import com.djp3.sslcert.jfr.FetchEvent;
+import com.djp3.sslcert.jfr.ParseEvent;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheStats;
+import com.google.common.io.ByteStreams;
 
 /**
  * This is used to check if an SSL Certificate is revoked or not by using the Certificate Revocation
@@ -119,18 +137,7 @@ public class CRLVerifier extends Verifier<String, X509CRLWrapper> {
 							+ "\t       Request Count: " 
 							+ stats.requestCount() 
 							+ "\n";
-					Date now = new Date();
-					for (Entry<String, X509CRLWrapper> x : cache.asMap().entrySet()) {
-						X509CRL resp = x.getValue().getX509CRL();
-						if (resp == null) {
-							cache.invalidate(x.getKey());
-						} else {
-							Date nextUpdate = resp.getNextUpdate();
-							if ((nextUpdate == null) || (nextUpdate.before(now))) {
-								cache.invalidate(x.getKey());
-							}
-						}
-					}
+					expireEntries();
 					info.append("\tPre Size: " + presize + "\tPost Size: " + cache.size());
 					info.append(chunk);
 					getLog().debug(info.toString());
@@ -139,6 +146,52 @@ public class CRLVerifier extends Verifier<String, X509CRLWrapper> {
 		};
 	}
 
+  @Override
+  protected Date getNextUpdate(X509CRLWrapper value) {
+    X509CRL crl = value.getX509CRL();
+    return (crl == null) ? null : crl.getNextUpdate();
+  }
+
+  @Override
+  protected X509CRLWrapper markStale(X509CRLWrapper value) {
+    return value.asStale();
+  }
+
+  /* The key and CRL dominate, and the CRL's length is cached by the wrapper */
+  @Override
+  protected int getWeight(String key, X509CRLWrapper value) {
+    return ENTRY_OVERHEAD_BYTES + (key.length() * 2) + value.getEncodedLength();
+  }
+
+  /** CRLs are cold stored as their DER encoding, keyed by the UTF-8 distribution point URL */
+  private static final ColdStorageCodec<String, X509CRLWrapper> CODEC =
+      new ColdStorageCodec<String, X509CRLWrapper>() {
+        @Override
+        public byte[] encodeKey(String key) {
+          return key.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decodeKey(byte[] encoded) {
+          return new String(encoded, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public byte[] encodeValue(X509CRLWrapper value) throws IOException {
+          return value.getEncoded();
+        }
+
+        @Override
+        public X509CRLWrapper decodeValue(byte[] encoded) throws IOException {
+          return X509CRLWrapper.fromEncoded(encoded);
+        }
+      };
+
+  @Override
+  protected ColdStorageCodec<String, X509CRLWrapper> getColdStorageCodec() {
+    return CODEC;
+  }
+
   /**
    * Checks revocation status (Good, Revoked) of the peer certificate.
    *
@@ -152,45 +205,222 @@ public class CRLVerifier extends Verifier<String, X509CRLWrapper> {
       final X509Certificate issuerCert,
       final X509Certificate[] fullChain)
       throws CertificateVerificationException {
+    if (config.checkDeadline > 0) {
+      //Wait on the fetch from here, so that the check can give up on it in time
+      return await(checkRevocationStatusAsync(peerCert, issuerCert, fullChain));
+    }
 
+    CheckEvent event = beginCheck();
+    VerificationStatus status = null;
+    try {
+      status = checkDistributionPoints(peerCert, fullChain);
+    } finally {
+      endCheck(event, peerCert, status);
+    }
+    return status;
+  }
+
+  private VerificationStatus checkDistributionPoints(
+      final X509Certificate peerCert, final X509Certificate[] fullChain)
+      throws CertificateVerificationException {
     List<String> list = getCrlDistributionPoints(peerCert);
-    //check with distributions points in the list one by one. if one fails go to the other.
-    for (String crlUrl : list) {
-      getLog().debug("Trying to get CRL for URL: " + crlUrl);
+    if (list.isEmpty()) {
+      return getNoCRLStatus(peerCert);
+    }
+    //check the distribution points in the list in order. if one fails or is slow go to the next.
+    X509CRLWrapper x509CRLWrapper =
+        hedgeBlocking(
+            list,
+            new BlockingHedgedRequest<X509CRLWrapper>() {
+              @Override
+              public X509CRLWrapper call(String crlUrl) {
+                return getCRL(crlUrl);
+              }
+            });
+    return getRevocationStatus(x509CRLWrapper, peerCert, fullChain);
+  }
 
-      //TODO: Do we need to check if URL has the same domain name as issuerCert?
-      X509CRLWrapper x509CRLWrapper = null;
-      try {
-        Cache<String, X509CRLWrapper> cache = getCache();
-        if (config.useCache && (cache != null)) {
-          x509CRLWrapper =
-              cache.get(
+  /** @return the CRL at the URL, or null if it can't be fetched */
+  private X509CRLWrapper getCRL(final String crlUrl) {
+    getLog().debug("Trying to get CRL for URL: " + crlUrl);
+
+    //TODO: Do we need to check if URL has the same domain name as issuerCert?
+    X509CRLWrapper x509CRLWrapper = null;
+    try {
+      Cache<String, X509CRLWrapper> cache = getCache();
+      if (config.useCache && (cache != null)) {
+        x509CRLWrapper =
+            getCached(
+                crlUrl,
+                new Callable<X509CRLWrapper>() {
+                  public X509CRLWrapper call()
+                      throws IOException, CertificateVerificationException {
+                    return downloadCRLFromWeb(crlUrl);
+                  }
+                });
+      } else {
+        x509CRLWrapper = downloadCRLFromWeb(crlUrl);
+      }
+    } catch (IOException | ExecutionException | CertificateVerificationException e) {
+      getLog()
+          .debug(
+              "Either the url is bad or cannot build X509CRL. Check with the next url in the list.",
+              e);
+    }
+    return ((x509CRLWrapper != null) && (x509CRLWrapper.getX509CRL() != null))
+        ? x509CRLWrapper
+        : null;
+  }
+
+  /** Loads the CRL at a URL without blocking. A URL that fails or has no CRL has no answer */
+  private final HedgedRequest<X509CRLWrapper> loadCRL =
+      new HedgedRequest<X509CRLWrapper>() {
+        @Override
+        public CompletableFuture<X509CRLWrapper> start(final String crlUrl) {
+          getLog().debug("Trying to get CRL for URL: " + crlUrl);
+          return loadAsync(
                   crlUrl,
                   new Callable<X509CRLWrapper>() {
                     public X509CRLWrapper call()
                         throws IOException, CertificateVerificationException {
                       return downloadCRLFromWeb(crlUrl);
                     }
+                  })
+              .handle(
+                  new BiFunction<X509CRLWrapper, Throwable, X509CRLWrapper>() {
+                    @Override
+                    public X509CRLWrapper apply(X509CRLWrapper x509CRLWrapper, Throwable t) {
+                      if (t != null) {
+                        getLog()
+                            .debug(
+                                "Either the url is bad or cannot build X509CRL. Check with the next url in the list.",
+                                t);
+                        return null;
+                      }
+                      return (x509CRLWrapper.getX509CRL() != null) ? x509CRLWrapper : null;
+                    }
                   });
-        } else {
-          x509CRLWrapper = downloadCRLFromWeb(crlUrl);
         }
-      } catch (IOException | ExecutionException e) {
-        getLog()
-            .debug(
-                "Either the url is bad or cannot build X509CRL. Check with the next url in the list.",
-                e);
-      }
-      if (x509CRLWrapper != null && x509CRLWrapper.getX509CRL() != null) {
-        return getRevocationStatus(x509CRLWrapper.getX509CRL(), peerCert, fullChain);
-      }
+      };
+
+  /**
+   * Checks revocation status (Good, Revoked) of the peer certificate without blocking the calling
+   * thread. CRL downloads are made on the fetch executor. Distribution points are tried in order,
+   * and hedged, as in {@link #checkRevocationStatus(X509Certificate, X509Certificate,
+   * X509Certificate[])}.
+   *
+   * @param peerCert peer certificate
+   * @param issuerCert issuer certificate of the peer. not used currently.
+   * @return a future holding the revocation status of the peer certificate.
+   */
+  @Override
+  public CompletableFuture<VerificationStatus> checkRevocationStatusAsync(
+      final X509Certificate peerCert,
+      final X509Certificate issuerCert,
+      final X509Certificate[] fullChain) {
+    CheckEvent event = beginCheck();
+    Deadline deadline = newDeadline();
+    List<String> list;
+    try {
+      list = getCrlDistributionPoints(peerCert);
+    } catch (CertificateVerificationException e) {
+      return endCheck(event, peerCert, CompletableFuture.<VerificationStatus>failedFuture(e));
+    }
+    return endCheck(
+        event,
+        peerCert,
+        withDeadline(checkDistributionPointsAsync(list, peerCert, fullChain), deadline));
+  }
+
+  private CompletableFuture<VerificationStatus> checkDistributionPointsAsync(
+      final List<String> list, final X509Certificate peerCert, final X509Certificate[] fullChain) {
+    if (list.isEmpty()) {
+      return CompletableFuture.completedFuture(getNoCRLStatus(peerCert));
+    }
+    return hedgeAsync(list, loadCRL)
+        .thenApply(
+            new Function<X509CRLWrapper, VerificationStatus>() {
+              @Override
+              public VerificationStatus apply(X509CRLWrapper x509CRLWrapper) {
+                return getRevocationStatus(x509CRLWrapper, peerCert, fullChain);
+              }
+            });
+  }
+
+  /** The CRL distribution points of the certificate, so that batches are grouped by CRL */
+  @Override
+  protected List<String> getResponderLocations(X509Certificate peerCert)
+      throws CertificateVerificationException {
+    return getCrlDistributionPoints(peerCert);
+  }
+
+  /**
+   * Checks a group of certificates that share a first CRL distribution point. The CRL is fetched
+   * once for the whole group. Certificates fall back to their other distribution points if it can't
+   * be fetched.
+   */
+  @Override
+  protected CompletableFuture<Map<CertAndIssuer, VerificationStatus>>
+      checkRevocationStatusGroupAsync(
+          final String location, final Map<CertAndIssuer, List<String>> group) {
+    getLog().debug("Trying to get CRL for URL: " + location + " for " + group.size() + " certs");
+    final CompletableFuture<X509CRLWrapper> crl =
+        loadAsync(
+            location,
+            new Callable<X509CRLWrapper>() {
+              public X509CRLWrapper call() throws IOException, CertificateVerificationException {
+                return downloadCRLFromWeb(location);
+              }
+            });
+
+    Map<CertAndIssuer, CompletableFuture<VerificationStatus>> pending =
+        new LinkedHashMap<CertAndIssuer, CompletableFuture<VerificationStatus>>();
+    for (Entry<CertAndIssuer, List<String>> e : group.entrySet()) {
+      final X509Certificate peerCert = e.getKey().getPeerCert();
+      final X509Certificate[] fullChain = e.getKey().getFullChain();
+      final List<String> list = e.getValue();
+      pending.put(
+          e.getKey(),
+          crl.handle(
+                  new BiFunction<X509CRLWrapper, Throwable, X509CRLWrapper>() {
+                    @Override
+                    public X509CRLWrapper apply(X509CRLWrapper x509CRLWrapper, Throwable t) {
+                      return (t == null) ? x509CRLWrapper : null;
+                    }
+                  })
+              .thenCompose(
+                  new Function<X509CRLWrapper, CompletableFuture<VerificationStatus>>() {
+                    @Override
+                    public CompletableFuture<VerificationStatus> apply(
+                        X509CRLWrapper x509CRLWrapper) {
+                      if (x509CRLWrapper != null && x509CRLWrapper.getX509CRL() != null) {
+                        return CompletableFuture.completedFuture(
+                            getRevocationStatus(x509CRLWrapper, peerCert, fullChain));
+                      }
+                      if (list.size() <= 1) {
+                        return CompletableFuture.completedFuture(
+                            getRevocationStatus(null, peerCert, fullChain));
+                      }
+                      return checkDistributionPointsAsync(
+                          list.subList(Math.min(1, list.size()), list.size()), peerCert, fullChain);
+                    }
+                  }));
     }
-    //If there is no CRL then it is not revoked by CRL
+    return collectStatuses(pending);
+  }
+
+  /** A certificate without CRL distribution points can't be revoked by CRL while it is valid */
+  private static VerificationStatus getNoCRLStatus(X509Certificate peerCert) {
     return new VerificationStatus(VerificationStatus.GOOD, peerCert.getNotAfter());
   }
 
   private VerificationStatus getRevocationStatus(
-      X509CRL x509CRL, X509Certificate peerCert, X509Certificate[] fullChain) {
+      X509CRLWrapper x509CRLWrapper, X509Certificate peerCert, X509Certificate[] fullChain) {
+    if (x509CRLWrapper == null) {
+      //If there is no CRL then it is not revoked by CRL, but only until the CRL can be fetched
+      return new VerificationStatus(VerificationStatus.GOOD, null);
+    }
+    X509CRL x509CRL = x509CRLWrapper.getX509CRL();
     if (x509CRL == null) {
       throw new InvalidParameterException("Can't check revocation status of null");
     }
@@ -199,32 +429,118 @@ public class CRLVerifier extends Verifier<String, X509CRLWrapper> {
       throw new InvalidParameterException("Can't check revocation status of null");
     }
 
+    //A revocation holds until the certificate expires, anything else only until the next CRL
+    VerificationStatus ret;
     if (x509CRL.isRevoked(peerCert)) {
-      VerificationStatus ret =
-          new VerificationStatus(VerificationStatus.BAD, peerCert.getNotAfter());
+      ret = new VerificationStatus(VerificationStatus.BAD, peerCert.getNotAfter());
       ret.setRevokeDate(x509CRL.getRevokedCertificate(peerCert).getRevocationDate());
-      return ret;
     } else {
-      return new VerificationStatus(VerificationStatus.GOOD, peerCert.getNotAfter());
+      Date nextUpdate = getNextUpdate(x509CRLWrapper);
+      if ((nextUpdate != null) && nextUpdate.after(peerCert.getNotAfter())) {
+        nextUpdate = peerCert.getNotAfter();
+      }
+      ret = new VerificationStatus(VerificationStatus.GOOD, nextUpdate);
     }
+    ret.setStale(x509CRLWrapper.isStale());
+    return ret;
   }
 
   /** Downloads CRL from the crlUrl. Does not support HTTPS */
   protected X509CRLWrapper downloadCRLFromWeb(String crlURL)
       throws IOException, CertificateVerificationException {
+    return downloadCRLFromWeb(crlURL, newFetchDeadline());
+  }
+
+  /**
+   * Downloads CRL from the crlUrl, giving up when the deadline passes. The connect and each read
+   * are also limited by the configured timeouts. Does not support HTTPS
+   */
+  protected X509CRLWrapper downloadCRLFromWeb(String crlURL, Deadline deadline)
+      throws IOException, CertificateVerificationException {
+    deadline.check("downloading CRL:" + crlURL);
+    // Don't wait on a host that is down
+    CircuitBreaker breaker = enterCircuit(crlURL);
     InputStream crlStream = null;
+    ScheduledFuture<?> abort = null;
+    byte[] body;
+    FetchEvent fetchEvent = new FetchEvent();
+    fetchEvent.begin();
+    long start = System.nanoTime();
     try {
       URL url = new URL(crlURL);
-      crlStream = url.openStream();
-      return new X509CRLWrapper(extractX509CRLFromStream(crlStream));
+      final URLConnection connection = url.openConnection();
+      connection.setConnectTimeout(deadline.timeoutMillis(config.connectTimeoutMillis));
+      connection.setReadTimeout(deadline.timeoutMillis(config.readTimeoutMillis));
+      //Timeouts limit each step, so close the connection if the steps add up past the deadline
+      if (connection instanceof HttpURLConnection) {
+        abort =
+            atDeadline(
+                deadline,
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    ((HttpURLConnection) connection).disconnect();
+                  }
+                });
+      }
+      if (connection instanceof HttpURLConnection) {
+        int code = ((HttpURLConnection) connection).getResponseCode();
+        if ((code >= 400) && (code < 500)) {
+          //The host answered, it just doesn't have this CRL, so don't hold it against the host
+          if (breaker != null) {
+            breaker.succeeded();
+          }
+          getMetrics().fetchFailed(crlURL);
+          fetchEvent.finish(getMetricsName(), crlURL, 0, "HTTP " + code);
+          throw new CertificateVerificationException(
+              "CRL not available from " + crlURL + " - HTTP " + code);
+        }
+      }
+      crlStream = connection.getInputStream();
+      body = ByteStreams.toByteArray(crlStream);
     } catch (MalformedURLException e) {
+      //The host isn't at fault, but a probe let through must still report back or the circuit
+      //stays half open
+      if (breaker != null) {
+        breaker.succeeded();
+      }
+      getMetrics().fetchFailed(crlURL);
+      fetchEvent.finish(getMetricsName(), crlURL, 0, "malformed URL");
       throw new CertificateVerificationException("CRL Url is malformed", e);
     } catch (IOException e) {
+      if (breaker != null) {
+        breaker.failed();
+      }
+      getMetrics().fetchFailed(crlURL);
+      fetchEvent.finish(getMetricsName(), crlURL, 0, "error");
       throw new CertificateVerificationException(
           "Cant reach URI: " + crlURL + " - only support HTTP", e);
     } finally {
+      if (abort != null) {
+        abort.cancel(false);
+      }
       if (crlStream != null) crlStream.close();
     }
+    if (breaker != null) {
+      breaker.succeeded();
+    }
+    getMetrics().fetched(crlURL, System.nanoTime() - start, body.length);
+    fetchEvent.finish(getMetricsName(), crlURL, body.length, "ok");
+
+    ParseEvent parseEvent = new ParseEvent();
+    parseEvent.begin();
+    long parseStart = System.nanoTime();
+    try {
+      X509CRLWrapper x509CRLWrapper =
+          new X509CRLWrapper(extractX509CRLFromStream(new ByteArrayInputStream(body)));
+      getMetrics().parsed(crlURL, System.nanoTime() - parseStart);
+      parseEvent.finish(getMetricsName(), crlURL, body.length, "ok");
+      return x509CRLWrapper;
+    } catch (CertificateVerificationException e) {
+      getMetrics().fetchFailed(crlURL);
+      parseEvent.finish(getMetricsName(), crlURL, body.length, "error");
+      throw e;
+    }
   }
 
   /**
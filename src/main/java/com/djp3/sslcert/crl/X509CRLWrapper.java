@@ -38,6 +38,10 @@ public class X509CRLWrapper implements Serializable {
   private static final long serialVersionUID = 6399203416305063378L;
 
   private X509CRL data;
+  /* Zero until computed, a DER encoding is never empty */
+  private transient int encodedLength;
+  /* Served after the CRL's nextUpdate because a fresh one wasn't available */
+  private transient boolean stale;
 
   public X509CRLWrapper(X509CRL data) {
     this.data = data;
@@ -47,6 +51,65 @@ public class X509CRLWrapper implements Serializable {
     return this.data;
   }
 
+  public boolean isStale() {
+    return stale;
+  }
+
+  /** @return a wrapper of the same CRL marked as stale */
+  public X509CRLWrapper asStale() {
+    X509CRLWrapper ret = new X509CRLWrapper(data);
+    ret.encodedLength = encodedLength;
+    ret.stale = true;
+    return ret;
+  }
+
+  /**
+   * @return the DER encoding of the CRL
+   * @throws IOException if there is no CRL or it can't be encoded
+   */
+  public byte[] getEncoded() throws IOException {
+    if (data == null) {
+      throw new IOException("No CRL to encode");
+    }
+    try {
+      return data.getEncoded();
+    } catch (CRLException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return the length of the DER encoding of the CRL, or 0 if there is no CRL. Computed once
+   *     because encoding a large CRL copies it.
+   */
+  public int getEncodedLength() {
+    if ((encodedLength == 0) && (data != null)) {
+      try {
+        encodedLength = data.getEncoded().length;
+      } catch (CRLException e) {
+        return 0;
+      }
+    }
+    return encodedLength;
+  }
+
+  /**
+   * @param encoded the DER encoding of a CRL
+   * @return the wrapped CRL
+   * @throws IOException if the CRL can't be parsed
+   */
+  public static X509CRLWrapper fromEncoded(byte[] encoded) throws IOException {
+    try {
+      X509CRLWrapper wrapper =
+          new X509CRLWrapper(
+              CRLVerifier.extractX509CRLFromStream(new ByteArrayInputStream(encoded)));
+      wrapper.encodedLength = encoded.length;
+      return wrapper;
+    } catch (CertificateVerificationException e) {
+      throw new IOException(e);
+    }
+  }
+
   private void readObject(ObjectInputStream objectinputStream)
       throws ClassNotFoundException, IOException {
     try {
@@ -23,7 +23,6 @@ package com.djp3.sslcert.ct;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -37,8 +36,8 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.logging.log4j.LogManager;
@@ -56,9 +55,15 @@ import org.certificatetransparency.ctlog.LogSignatureVerifier;
 import org.certificatetransparency.ctlog.proto.Ct;
 import org.certificatetransparency.ctlog.utils.VerifySignature;
 
+import com.djp3.sslcert.CertID;
 import com.djp3.sslcert.CertificateVerificationException;
+import com.djp3.sslcert.ColdStorage;
+import com.djp3.sslcert.ColdStorageCodec;
 import com.djp3.sslcert.VerificationStatus;
 import com.djp3.sslcert.Verifier;
+import com.djp3.sslcert.jfr.CheckEvent;
+import com.djp3.sslcert.jfr.ParseEvent;
+import com.djp3.sslcert.jfr.SignatureVerificationEvent;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheStats;
 
@@ -84,7 +89,7 @@ import com.google.common.cache.CacheStats;
  * https://github.com/google/certificate-transparency-java and this pull request on it
  * https://github.com/google/certificate-transparency-java/pull/28
  */
-public class CTVerifier extends Verifier<BigInteger, VerificationStatus> {
+public class CTVerifier extends Verifier<CertID, VerificationStatus> {
 
   private static transient volatile Logger log = null;
 
@@ -154,7 +159,7 @@ public class CTVerifier extends Verifier<BigInteger, VerificationStatus> {
 		return new Runnable() {
 			@Override
 			public void run() {
-				Cache<BigInteger, VerificationStatus> cache = getCache();
+				Cache<CertID, VerificationStatus> cache = getCache();
 				if (config.useCache && (cache != null)) {
 					StringBuffer info = new StringBuffer();
 					info.append("\nRunning validity check on CT Cache");
@@ -170,14 +175,7 @@ public class CTVerifier extends Verifier<BigInteger, VerificationStatus> {
 							+ "\t       Request Count: " 
 							+ stats.requestCount() 
 							+ "\n";
-					Date now = new Date();
-					for (Entry<BigInteger, VerificationStatus> x : cache.asMap().entrySet()) {
-						VerificationStatus resp = x.getValue();
-						Date nextUpdate = resp.getNextUpdate();
-						if ((nextUpdate == null) || (nextUpdate.before(now))) {
-							cache.invalidate(x.getKey());
-						}
-					}
+					expireEntries();
 					info.append("\tPre Size: " + presize + "\tPost Size: " + cache.size());
 					info.append(chunk);
 					getLog().debug(info.toString());
@@ -186,6 +184,21 @@ public class CTVerifier extends Verifier<BigInteger, VerificationStatus> {
 		};
 	}
 
+  @Override
+  protected Date getNextUpdate(VerificationStatus value) {
+    return value.getNextUpdate();
+  }
+
+  @Override
+  protected VerificationStatus markStale(VerificationStatus value) {
+    return value.asStale();
+  }
+
+  @Override
+  protected ColdStorageCodec<CertID, VerificationStatus> getColdStorageCodec() {
+    return ColdStorage.CERT_ID_CODEC;
+  }
+
   private VerificationStatus getCTValidationDirect(
       X509Certificate certificate, X509Certificate[] chain)
       throws CertificateVerificationException {
@@ -195,9 +208,17 @@ public class CTVerifier extends Verifier<BigInteger, VerificationStatus> {
       return new VerificationStatus(VerificationStatus.BAD, certificate.getNotAfter());
     }
 
+    ParseEvent parseEvent = new ParseEvent();
+    parseEvent.begin();
     try {
-      List<Ct.SignedCertificateTimestamp> sctsInCertificate =
-          VerifySignature.parseSCTsFromCert(certificate);
+      List<Ct.SignedCertificateTimestamp> sctsInCertificate;
+      try {
+        sctsInCertificate = VerifySignature.parseSCTsFromCert(certificate);
+        parseEvent.finish(getMetricsName(), null, 0, "ok");
+      } catch (IOException e) {
+        parseEvent.finish(getMetricsName(), null, 0, "error");
+        throw e;
+      }
       if (sctsInCertificate.size() < MIN_VALID_SCTS) {
         getLog()
             .info(
@@ -214,7 +235,12 @@ public class CTVerifier extends Verifier<BigInteger, VerificationStatus> {
         String logId = Base64.toBase64String(sct.getId().getKeyId().toByteArray());
         if (verifiers.containsKey(logId)) {
           getLog().debug("SCT trusted log " + logId);
-          if (verifiers.get(logId).verifySignature(sct, certificateList)) {
+          SignatureVerificationEvent signatureEvent = new SignatureVerificationEvent();
+          signatureEvent.begin();
+          boolean valid = verifiers.get(logId).verifySignature(sct, certificateList);
+          signatureEvent.signer = logId;
+          signatureEvent.finish(getMetricsName(), valid ? "valid" : "invalid");
+          if (valid) {
             ++validSctCount;
             /** TODO: validate proof with the log authority * */
           }
@@ -260,7 +286,7 @@ public class CTVerifier extends Verifier<BigInteger, VerificationStatus> {
    * configured
    *
    * @param peerCert The certificate we want to check if revoked.
-   * @param issuerCert Not needed for a Certificate Transparency check
+   * @param issuerCert Not needed for a Certificate Transparency check, only used to key the cache
    * @return revocation status of the peer certificate.
    * @throws CertificateVerificationException
    */
@@ -269,28 +295,65 @@ public class CTVerifier extends Verifier<BigInteger, VerificationStatus> {
       final X509Certificate peerCert, final X509Certificate issuerCert, X509Certificate[] fullchain)
       throws CertificateVerificationException {
 
-    VerificationStatus status;
-
-    // check cache
-    Cache<BigInteger, VerificationStatus> cache = getCache();
-    if (config.useCache && (cache != null)) {
-      try {
-        status =
-            cache.get(
-                peerCert.getSerialNumber(),
-                new Callable<VerificationStatus>() {
-                  public VerificationStatus call() throws CertificateVerificationException {
-                    getLog().debug("Cache miss ");
-                    return getCTValidationDirect(peerCert, fullchain);
-                  }
-                });
-      } catch (ExecutionException e) {
-        throw new CertificateVerificationException(e);
+    CheckEvent event = beginCheck();
+    VerificationStatus status = null;
+    try {
+      // check cache
+      Cache<CertID, VerificationStatus> cache = getCache();
+      if (config.useCache && (cache != null)) {
+        try {
+          status =
+              getCached(
+                  CertID.of(peerCert, issuerCert),
+                  new Callable<VerificationStatus>() {
+                    public VerificationStatus call() throws CertificateVerificationException {
+                      getLog().debug("Cache miss ");
+                      return getCTValidationDirect(peerCert, fullchain);
+                    }
+                  });
+        } catch (ExecutionException e) {
+          throw new CertificateVerificationException(e);
+        }
+      } else {
+        status = getCTValidationDirect(peerCert, fullchain);
       }
-    } else {
-      status = getCTValidationDirect(peerCert, fullchain);
+    } finally {
+      endCheck(event, peerCert, status);
     }
 
     return status;
   }
+
+  /**
+   * Gets the revocation status of the given peer certificate without blocking the calling thread.
+   * The SCT signatures are checked on the fetch executor. Uses the cache if it has been configured.
+   *
+   * @param peerCert The certificate we want to check if revoked.
+   * @param issuerCert Not needed for a Certificate Transparency check, only used to key the cache
+   * @return a future holding the revocation status of the peer certificate.
+   */
+  @Override
+  public CompletableFuture<VerificationStatus> checkRevocationStatusAsync(
+      final X509Certificate peerCert,
+      final X509Certificate issuerCert,
+      final X509Certificate[] fullchain) {
+    CheckEvent event = beginCheck();
+    CertID key;
+    try {
+      key = CertID.of(peerCert, issuerCert);
+    } catch (CertificateVerificationException e) {
+      return endCheck(event, peerCert, CompletableFuture.<VerificationStatus>failedFuture(e));
+    }
+    return endCheck(
+        event,
+        peerCert,
+        loadAsync(
+            key,
+            new Callable<VerificationStatus>() {
+              public VerificationStatus call() throws CertificateVerificationException {
+                getLog().debug("Cache miss ");
+                return getCTValidationDirect(peerCert, fullchain);
+              }
+            }));
+  }
 }
@@ -0,0 +1,50 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.djp3.sslcert.CacheLookup")
+@Label("Revocation Cache Lookup")
+@Description("A lookup in a verifier's cache. On a miss it lasts until the value has been loaded")
+public class CacheLookupEvent extends RevocationEvent {
+
+  @Label("Key")
+  public String key;
+
+  /**
+   * @param verifier the name of the verifier
+   * @param key the cache key, only turned into a string if the event is committed
+   * @param outcome hit, miss or failed
+   */
+  public void finish(String verifier, Object key, String outcome) {
+    end();
+    if (shouldCommit()) {
+      this.verifier = verifier;
+      this.key = String.valueOf(key);
+      this.outcome = outcome;
+      commit();
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert.jfr;
+
+import java.math.BigInteger;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.djp3.sslcert.Check")
+@Label("Revocation Check")
+@Description("A revocation check of one certificate, from the call until the status is known")
+public class CheckEvent extends RevocationEvent {
+
+  @Label("Serial Number")
+  public String serialNumber;
+
+  /**
+   * @param verifier the name of the verifier
+   * @param serialNumber the serial number of the checked certificate
+   * @param outcome the status found, or why there is none
+   */
+  public void finish(String verifier, BigInteger serialNumber, String outcome) {
+    end();
+    if (shouldCommit()) {
+      this.verifier = verifier;
+      this.serialNumber = serialNumber.toString(16);
+      this.outcome = outcome;
+      commit();
+    }
+  }
+}
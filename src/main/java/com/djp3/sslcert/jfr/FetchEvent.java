@@ -0,0 +1,52 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.djp3.sslcert.Fetch")
+@Label("Revocation Fetch")
+@Description("A request to an OCSP responder or a CRL download, until the response has been read")
+public class FetchEvent extends RevocationEvent {
+
+  @Label("URL")
+  public String url;
+
+  @Label("Bytes")
+  @DataAmount
+  public long bytes;
+
+  /**
+   * @param verifier the name of the verifier
+   * @param url where the response came from
+   * @param bytes the size of the response
+   * @param outcome what happened
+   */
+  public void finish(String verifier, String url, long bytes, String outcome) {
+    this.url = url;
+    this.bytes = bytes;
+    finish(verifier, outcome);
+  }
+}
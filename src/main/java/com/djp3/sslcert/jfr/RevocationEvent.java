@@ -0,0 +1,57 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * The fields shared by the Java Flight Recorder events of the verifiers. Events are cheap when no
+ * recording is running, fields are only filled in when the event is going to be committed.
+ */
+@Category({"SSL Revocation Manager"})
+@StackTrace(false)
+public abstract class RevocationEvent extends Event {
+
+  @Label("Verifier")
+  public String verifier;
+
+  @Label("Outcome")
+  public String outcome;
+
+  /**
+   * Ends the event and commits it if it is enabled and over its threshold
+   *
+   * @param verifier the name of the verifier
+   * @param outcome what happened
+   */
+  public void finish(String verifier, String outcome) {
+    end();
+    if (shouldCommit()) {
+      this.verifier = verifier;
+      this.outcome = outcome;
+      commit();
+    }
+  }
+}
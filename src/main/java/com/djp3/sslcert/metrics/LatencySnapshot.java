@@ -0,0 +1,93 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert.metrics;
+
+import javax.management.ConstructorParameters;
+
+import org.HdrHistogram.Histogram;
+
+/** Percentiles of the latencies recorded during one snapshot interval, in milliseconds */
+public class LatencySnapshot {
+
+  public static final LatencySnapshot EMPTY = new LatencySnapshot(0, 0.0, 0.0, 0.0, 0.0);
+
+  private final long count;
+  private final double p50Millis;
+  private final double p99Millis;
+  private final double p999Millis;
+  private final double maxMillis;
+
+  @ConstructorParameters({"count", "p50Millis", "p99Millis", "p999Millis", "maxMillis"})
+  public LatencySnapshot(
+      long count, double p50Millis, double p99Millis, double p999Millis, double maxMillis) {
+    this.count = count;
+    this.p50Millis = p50Millis;
+    this.p99Millis = p99Millis;
+    this.p999Millis = p999Millis;
+    this.maxMillis = maxMillis;
+  }
+
+  /** @param histogram latencies recorded in microseconds */
+  static LatencySnapshot of(Histogram histogram) {
+    return new LatencySnapshot(
+        histogram.getTotalCount(),
+        histogram.getValueAtPercentile(50.0) / 1000.0,
+        histogram.getValueAtPercentile(99.0) / 1000.0,
+        histogram.getValueAtPercentile(99.9) / 1000.0,
+        histogram.getMaxValue() / 1000.0);
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getP50Millis() {
+    return p50Millis;
+  }
+
+  public double getP99Millis() {
+    return p99Millis;
+  }
+
+  public double getP999Millis() {
+    return p999Millis;
+  }
+
+  public double getMaxMillis() {
+    return maxMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "count="
+        + count
+        + " p50="
+        + p50Millis
+        + "ms p99="
+        + p99Millis
+        + "ms p999="
+        + p999Millis
+        + "ms max="
+        + maxMillis
+        + "ms";
+  }
+}
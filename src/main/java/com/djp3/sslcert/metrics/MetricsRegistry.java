@@ -0,0 +1,51 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert.metrics;
+
+/**
+ * Receives every measurement a verifier makes, so that it can be forwarded to a metrics library
+ * such as Micrometer or Dropwizard. Counters and timers are identified by a name from {@link
+ * VerifierMetrics} and tagged with the verifier and, for network metrics, the responder URL.
+ * Implementations are called on the threads doing the checks and must be thread safe and fast.
+ */
+public interface MetricsRegistry {
+
+  /**
+   * Adds to a counter
+   *
+   * @param name the counter, for example {@link VerifierMetrics#HITS}
+   * @param verifier the name of the verifier, for example "OCSPVerifier"
+   * @param responder the responder URL, or null if the counter isn't per responder
+   * @param amount how much to add
+   */
+  void increment(String name, String verifier, String responder, long amount);
+
+  /**
+   * Records how long something took
+   *
+   * @param name the timer, for example {@link VerifierMetrics#FETCH}
+   * @param verifier the name of the verifier, for example "OCSPVerifier"
+   * @param responder the responder URL, or null if the timer isn't per responder
+   * @param nanos the duration in nanoseconds
+   */
+  void record(String name, String verifier, String responder, long nanos);
+}
@@ -0,0 +1,98 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert.metrics;
+
+import javax.management.ConstructorParameters;
+
+/** A snapshot of the network metrics of one responder URL */
+public class ResponderMetrics {
+
+  private final long fetches;
+  private final long fetchFailures;
+  private final long bytesDownloaded;
+  private final double fetchTimeMeanMillis;
+  private final double fetchTimeMaxMillis;
+  private final long parses;
+  private final double parseTimeMeanMillis;
+  private final double parseTimeMaxMillis;
+
+  @ConstructorParameters({
+    "fetches",
+    "fetchFailures",
+    "bytesDownloaded",
+    "fetchTimeMeanMillis",
+    "fetchTimeMaxMillis",
+    "parses",
+    "parseTimeMeanMillis",
+    "parseTimeMaxMillis"
+  })
+  public ResponderMetrics(
+      long fetches,
+      long fetchFailures,
+      long bytesDownloaded,
+      double fetchTimeMeanMillis,
+      double fetchTimeMaxMillis,
+      long parses,
+      double parseTimeMeanMillis,
+      double parseTimeMaxMillis) {
+    this.fetches = fetches;
+    this.fetchFailures = fetchFailures;
+    this.bytesDownloaded = bytesDownloaded;
+    this.fetchTimeMeanMillis = fetchTimeMeanMillis;
+    this.fetchTimeMaxMillis = fetchTimeMaxMillis;
+    this.parses = parses;
+    this.parseTimeMeanMillis = parseTimeMeanMillis;
+    this.parseTimeMaxMillis = parseTimeMaxMillis;
+  }
+
+  public long getFetches() {
+    return fetches;
+  }
+
+  public long getFetchFailures() {
+    return fetchFailures;
+  }
+
+  public long getBytesDownloaded() {
+    return bytesDownloaded;
+  }
+
+  public double getFetchTimeMeanMillis() {
+    return fetchTimeMeanMillis;
+  }
+
+  public double getFetchTimeMaxMillis() {
+    return fetchTimeMaxMillis;
+  }
+
+  public long getParses() {
+    return parses;
+  }
+
+  public double getParseTimeMeanMillis() {
+    return parseTimeMeanMillis;
+  }
+
+  public double getParseTimeMaxMillis() {
+    return parseTimeMaxMillis;
+  }
+}
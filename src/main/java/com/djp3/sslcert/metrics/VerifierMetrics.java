@@ -0,0 +1,539 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Counters and timers for one verifier, kept in memory and forwarded to a {@link MetricsRegistry}
+ * if one is configured. Network metrics are also kept per responder URL. Recording a measurement
+ * only updates striped counters, so it is cheap enough to do on every check.
+ *
+ * <p>Latency distributions are recorded in HdrHistogram recorders, per responder host for fetches
+ * and split by cache hit and miss for lookups. Recording is wait free. {@link #snapshotLatencies()}
+ * swaps out the histograms of the interval since the last snapshot and keeps their percentiles.
+ */
+public class VerifierMetrics implements VerifierMetricsMXBean {
+
+  private static transient volatile Logger log = null;
+
+  public static Logger getLog() {
+    if (log == null) {
+      log = LogManager.getLogger(VerifierMetrics.class);
+    }
+    return log;
+  }
+
+  /* Names of the counters and timers passed to a MetricsRegistry */
+  public static final String HITS = "hits";
+  public static final String MISSES = "misses";
+  public static final String FAILURES = "failures";
+  public static final String EXPIRED = "expired";
+  public static final String STALE = "stale";
+  public static final String FETCH = "fetch";
+  public static final String FETCH_FAILURES = "fetch.failures";
+  public static final String BYTES_DOWNLOADED = "bytes.downloaded";
+  public static final String PARSE = "parse";
+  public static final String CIRCUIT_OPENED = "circuit.opened";
+  public static final String CIRCUIT_REJECTED = "circuit.rejected";
+
+  public static final String JMX_DOMAIN = "com.djp3.sslcert";
+
+  /** A count, total and maximum of durations */
+  private static class Timer {
+    final LongAdder count = new LongAdder();
+    final LongAdder totalNanos = new LongAdder();
+    final LongAccumulator maxNanos =
+        new LongAccumulator(
+            new LongBinaryOperator() {
+              @Override
+              public long applyAsLong(long left, long right) {
+                return Math.max(left, right);
+              }
+            },
+            0);
+
+    void record(long nanos) {
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulate(nanos);
+    }
+
+    double getMeanMillis() {
+      long n = count.sum();
+      return (n == 0) ? 0.0 : (totalNanos.sum() / (double) n) / 1000000.0;
+    }
+
+    double getMaxMillis() {
+      return maxNanos.get() / 1000000.0;
+    }
+  }
+
+  /** Network metrics of one responder */
+  private static class Responder {
+    final Timer fetch = new Timer();
+    final Timer parse = new Timer();
+    final LongAdder fetchFailures = new LongAdder();
+    final LongAdder bytesDownloaded = new LongAdder();
+  }
+
+  private final String verifier;
+  private final MetricsRegistry registry;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder expired = new LongAdder();
+  private final LongAdder stale = new LongAdder();
+  private final LongAdder circuitRejections = new LongAdder();
+  /* The last state of the circuit breaker of each responder host that has left CLOSED */
+  private final ConcurrentHashMap<String, String> circuits =
+      new ConcurrentHashMap<String, String>();
+  private final Responder total = new Responder();
+  private final ConcurrentHashMap<String, Responder> responders =
+      new ConcurrentHashMap<String, Responder>();
+
+  /* Latencies are recorded in microseconds, with three significant digits */
+  private static final int SIGNIFICANT_DIGITS = 3;
+
+  /** Collects one latency distribution and keeps the histogram of the last interval */
+  private static class Latency {
+    final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+    Histogram interval = null;
+
+    void record(long nanos) {
+      recorder.recordValue(Math.max(0, nanos / 1000));
+    }
+
+    synchronized Histogram snapshot() {
+      interval = recorder.getIntervalHistogram(interval);
+      return interval;
+    }
+
+    synchronized long getNanosAtPercentile(double percentile) {
+      if ((interval == null) || (interval.getTotalCount() == 0)) {
+        return -1;
+      }
+      return interval.getValueAtPercentile(percentile) * 1000;
+    }
+  }
+
+  private final Latency hitLatency = new Latency();
+  private final Latency missLatency = new Latency();
+  /* Fetch latency recorders by host, and the same recorders by URL so that URLs are parsed once */
+  private final ConcurrentHashMap<String, Latency> hostLatencies =
+      new ConcurrentHashMap<String, Latency>();
+  private final ConcurrentHashMap<String, Latency> urlLatencies =
+      new ConcurrentHashMap<String, Latency>();
+
+  private volatile LatencySnapshot hitSnapshot = LatencySnapshot.EMPTY;
+  private volatile LatencySnapshot missSnapshot = LatencySnapshot.EMPTY;
+  private volatile Map<String, LatencySnapshot> hostSnapshots =
+      new TreeMap<String, LatencySnapshot>();
+
+  private ObjectName objectName = null;
+
+  /**
+   * @param verifier the name the metrics are published under
+   * @param registry where to forward measurements, or null
+   */
+  public VerifierMetrics(String verifier, MetricsRegistry registry) {
+    this.verifier = verifier;
+    this.registry = registry;
+  }
+
+  private Responder getResponder(String responder) {
+    Responder r = responders.get(responder);
+    if (r == null) {
+      responders.putIfAbsent(responder, new Responder());
+      r = responders.get(responder);
+    }
+    return r;
+  }
+
+  /** @return the host of a responder URL, or the URL itself if it has none */
+  public static String getHost(String url) {
+    String host;
+    try {
+      host = new URI(url).getHost();
+    } catch (URISyntaxException e) {
+      host = null;
+    }
+    return (host == null) ? url : host;
+  }
+
+  private Latency getHostLatency(String url) {
+    Latency latency = urlLatencies.get(url);
+    if (latency == null) {
+      String host = getHost(url);
+      hostLatencies.putIfAbsent(host, new Latency());
+      latency = hostLatencies.get(host);
+      urlLatencies.putIfAbsent(url, latency);
+    }
+    return latency;
+  }
+
+  /**
+   * A revocation check was answered
+   *
+   * @param hit whether the answer was in the cache
+   * @param nanos how long the check took, including any fetch
+   */
+  public void checked(boolean hit, long nanos) {
+    (hit ? hitLatency : missLatency).record(nanos);
+  }
+
+  /**
+   * Takes the latencies recorded since the last snapshot, logs their percentiles and keeps them for
+   * {@link #getHitLatency()}, {@link #getMissLatency()} and {@link #getFetchLatencies()}.
+   */
+  public void snapshotLatencies() {
+    hitSnapshot = LatencySnapshot.of(hitLatency.snapshot());
+    missSnapshot = LatencySnapshot.of(missLatency.snapshot());
+    Map<String, LatencySnapshot> hosts = new TreeMap<String, LatencySnapshot>();
+    for (Entry<String, Latency> e : hostLatencies.entrySet()) {
+      hosts.put(e.getKey(), LatencySnapshot.of(e.getValue().snapshot()));
+    }
+    hostSnapshots = hosts;
+
+    if (getLog().isDebugEnabled()) {
+      StringBuilder info = new StringBuilder();
+      info.append("\n" + verifier + " latency\tHit: " + hitSnapshot + "\tMiss: " + missSnapshot);
+      for (Entry<String, LatencySnapshot> e : hosts.entrySet()) {
+        if (e.getValue().getCount() > 0) {
+          info.append("\n\tFetch " + e.getKey() + ": " + e.getValue());
+        }
+      }
+      getLog().debug(info.toString());
+    }
+  }
+
+  /**
+   * @param url a responder URL
+   * @param percentile between 0 and 100
+   * @return the percentile of fetch latency to the URL's host over the last snapshot interval, in
+   *     nanoseconds, or -1 if there were no fetches to it in that interval
+   */
+  public long getFetchLatencyNanos(String url, double percentile) {
+    return getHostLatency(url).getNanosAtPercentile(percentile);
+  }
+
+  /**
+   * @return the histograms of the last snapshot interval, in microseconds, for percentiles that
+   *     aren't in the snapshots. Keyed by host, and by "hit" and "miss" for lookups. The histograms
+   *     are reused by the next snapshot, so copy them if they are kept.
+   */
+  public Map<String, Histogram> getIntervalHistograms() {
+    Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+    for (Entry<String, Latency> e : hostLatencies.entrySet()) {
+      if (e.getValue().interval != null) {
+        histograms.put(e.getKey(), e.getValue().interval);
+      }
+    }
+    if (hitLatency.interval != null) {
+      histograms.put("hit", hitLatency.interval);
+    }
+    if (missLatency.interval != null) {
+      histograms.put("miss", missLatency.interval);
+    }
+    return histograms;
+  }
+
+  public void hit() {
+    hits.increment();
+    if (registry != null) {
+      registry.increment(HITS, verifier, null, 1);
+    }
+  }
+
+  public void miss() {
+    misses.increment();
+    if (registry != null) {
+      registry.increment(MISSES, verifier, null, 1);
+    }
+  }
+
+  /** A check couldn't be completed */
+  public void failed() {
+    failures.increment();
+    if (registry != null) {
+      registry.increment(FAILURES, verifier, null, 1);
+    }
+  }
+
+  /** Cache entries were removed because their nextUpdate passed */
+  public void expired(int count) {
+    if (count > 0) {
+      expired.add(count);
+      if (registry != null) {
+        registry.increment(EXPIRED, verifier, null, count);
+      }
+    }
+  }
+
+  /** An expired entry was served while it is fetched again */
+  public void servedStale() {
+    stale.increment();
+    if (registry != null) {
+      registry.increment(STALE, verifier, null, 1);
+    }
+  }
+
+  /**
+   * A response was downloaded
+   *
+   * @param responder the URL
+   * @param nanos how long the request took, up to having read the whole response
+   * @param bytes the size of the response
+   */
+  public void fetched(String responder, long nanos, long bytes) {
+    total.fetch.record(nanos);
+    total.bytesDownloaded.add(bytes);
+    Responder r = getResponder(responder);
+    r.fetch.record(nanos);
+    r.bytesDownloaded.add(bytes);
+    getHostLatency(responder).record(nanos);
+    if (registry != null) {
+      registry.record(FETCH, verifier, responder, nanos);
+      registry.increment(BYTES_DOWNLOADED, verifier, responder, bytes);
+    }
+  }
+
+  /** A request to a responder failed, or its response couldn't be parsed */
+  public void fetchFailed(String responder) {
+    total.fetchFailures.increment();
+    getResponder(responder).fetchFailures.increment();
+    if (registry != null) {
+      registry.increment(FETCH_FAILURES, verifier, responder, 1);
+    }
+  }
+
+  /**
+   * A downloaded response was parsed
+   *
+   * @param responder the URL
+   * @param nanos how long parsing took
+   */
+  public void parsed(String responder, long nanos) {
+    total.parse.record(nanos);
+    getResponder(responder).parse.record(nanos);
+    if (registry != null) {
+      registry.record(PARSE, verifier, responder, nanos);
+    }
+  }
+
+  /**
+   * The circuit breaker of a responder host changed state
+   *
+   * @param host the responder host
+   * @param state the new state
+   */
+  public void circuitChanged(String host, String state) {
+    circuits.put(host, state);
+    if ((registry != null) && "OPEN".equals(state)) {
+      registry.increment(CIRCUIT_OPENED, verifier, host, 1);
+    }
+  }
+
+  /** A request wasn't made because the circuit of the responder's host is open */
+  public void circuitRejected(String responder) {
+    circuitRejections.increment();
+    if (registry != null) {
+      registry.increment(CIRCUIT_REJECTED, verifier, responder, 1);
+    }
+  }
+
+  /** Publishes these metrics on the platform MBean server, if they aren't already */
+  public synchronized void registerMBean() {
+    if (objectName != null) {
+      return;
+    }
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName name =
+          new ObjectName(
+              JMX_DOMAIN
+                  + ":type=Verifier,name="
+                  + ObjectName.quote(verifier)
+                  + ",id="
+                  + Integer.toHexString(System.identityHashCode(this)));
+      server.registerMBean(this, name);
+      objectName = name;
+    } catch (InstanceAlreadyExistsException e) {
+      getLog().warn("Verifier metrics are already registered with JMX\n" + e);
+    } catch (JMException e) {
+      getLog().error("Unable to register verifier metrics with JMX\n" + e);
+    }
+  }
+
+  public synchronized void unregisterMBean() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      getLog().warn("Unable to unregister verifier metrics from JMX\n" + e);
+    } finally {
+      objectName = null;
+    }
+  }
+
+  /** @return the name these metrics are registered under in JMX, or null if they aren't */
+  public synchronized ObjectName getObjectName() {
+    return objectName;
+  }
+
+  @Override
+  public String getVerifier() {
+    return verifier;
+  }
+
+  @Override
+  public long getHits() {
+    return hits.sum();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  @Override
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  @Override
+  public long getEntriesExpired() {
+    return expired.sum();
+  }
+
+  @Override
+  public long getStaleServed() {
+    return stale.sum();
+  }
+
+  @Override
+  public long getFetches() {
+    return total.fetch.count.sum();
+  }
+
+  @Override
+  public long getFetchFailures() {
+    return total.fetchFailures.sum();
+  }
+
+  @Override
+  public long getBytesDownloaded() {
+    return total.bytesDownloaded.sum();
+  }
+
+  @Override
+  public double getFetchTimeMeanMillis() {
+    return total.fetch.getMeanMillis();
+  }
+
+  @Override
+  public double getFetchTimeMaxMillis() {
+    return total.fetch.getMaxMillis();
+  }
+
+  @Override
+  public long getParses() {
+    return total.parse.count.sum();
+  }
+
+  @Override
+  public double getParseTimeMeanMillis() {
+    return total.parse.getMeanMillis();
+  }
+
+  @Override
+  public double getParseTimeMaxMillis() {
+    return total.parse.getMaxMillis();
+  }
+
+  @Override
+  public LatencySnapshot getHitLatency() {
+    return hitSnapshot;
+  }
+
+  @Override
+  public LatencySnapshot getMissLatency() {
+    return missSnapshot;
+  }
+
+  @Override
+  public Map<String, LatencySnapshot> getFetchLatencies() {
+    return hostSnapshots;
+  }
+
+  @Override
+  public Map<String, String> getCircuits() {
+    return new TreeMap<String, String>(circuits);
+  }
+
+  @Override
+  public long getCircuitRejections() {
+    return circuitRejections.sum();
+  }
+
+  @Override
+  public Map<String, ResponderMetrics> getResponders() {
+    Map<String, ResponderMetrics> snapshot = new TreeMap<String, ResponderMetrics>();
+    for (Entry<String, Responder> e : responders.entrySet()) {
+      Responder r = e.getValue();
+      snapshot.put(
+          e.getKey(),
+          new ResponderMetrics(
+              r.fetch.count.sum(),
+              r.fetchFailures.sum(),
+              r.bytesDownloaded.sum(),
+              r.fetch.getMeanMillis(),
+              r.fetch.getMaxMillis(),
+              r.parse.count.sum(),
+              r.parse.getMeanMillis(),
+              r.parse.getMaxMillis()));
+    }
+    return snapshot;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert.metrics;
+
+import java.util.Map;
+
+/** The metrics of one verifier as published through JMX */
+public interface VerifierMetricsMXBean {
+
+  String getVerifier();
+
+  long getHits();
+
+  long getMisses();
+
+  /* Checks whose load failed, as opposed to failed requests to a responder */
+  long getFailures();
+
+  long getEntriesExpired();
+
+  /* Expired entries served while they were fetched again */
+  long getStaleServed();
+
+  long getFetches();
+
+  long getFetchFailures();
+
+  long getBytesDownloaded();
+
+  double getFetchTimeMeanMillis();
+
+  double getFetchTimeMaxMillis();
+
+  long getParses();
+
+  double getParseTimeMeanMillis();
+
+  double getParseTimeMaxMillis();
+
+  /* Percentiles from the last snapshot interval */
+  LatencySnapshot getHitLatency();
+
+  LatencySnapshot getMissLatency();
+
+  /* Keyed by responder host */
+  Map<String, LatencySnapshot> getFetchLatencies();
+
+  Map<String, ResponderMetrics> getResponders();
+
+  /* Circuit breaker state keyed by responder host, for hosts whose circuit has ever opened */
+  Map<String, String> getCircuits();
+
+  /* Requests that weren't made because a circuit was open */
+  long getCircuitRejections();
+}
@@ -0,0 +1,161 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert.ocsp;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+
+import com.djp3.sslcert.CertID;
+import com.djp3.sslcert.CertificateVerificationException;
+
+/**
+ * The parts of an OCSP CertID that only depend on the issuer: the SHA-1 hashes of its name and of
+ * its public key. They are hashed and DER encoded once per issuer, so that an OCSP request is put
+ * together from these bytes and the serial number without building an ASN.1 object graph.
+ *
+ * <pre>
+ * OCSPRequest ::= SEQUENCE { tbsRequest TBSRequest }
+ * TBSRequest ::= SEQUENCE { requestList SEQUENCE OF Request,
+ *                           requestExtensions [2] EXPLICIT Extensions OPTIONAL }
+ * Request ::= SEQUENCE { reqCert CertID }
+ * CertID ::= SEQUENCE { hashAlgorithm AlgorithmIdentifier, issuerNameHash OCTET STRING,
+ *                       issuerKeyHash OCTET STRING, serialNumber INTEGER }
+ * </pre>
+ */
+public final class IssuerHashes {
+
+  /* AlgorithmIdentifier for SHA-1 with NULL parameters */
+  private static final byte[] SHA1_ALGORITHM = {
+    0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00
+  };
+
+  /* The OID of the nonce extension, id-pkix-ocsp-nonce */
+  private static final byte[] NONCE_OID = {
+    0x06, 0x09, 0x2b, 0x06, 0x01, 0x05, 0x05, 0x07, 0x30, 0x01, 0x02
+  };
+
+  private static final int SEQUENCE = 0x30;
+  private static final int INTEGER = 0x02;
+  private static final int OCTET_STRING = 0x04;
+  private static final int REQUEST_EXTENSIONS = 0xa2;
+
+  private final byte[] issuerNameHash;
+  private final byte[] issuerKeyHash;
+  /* The hash algorithm, issuerNameHash and issuerKeyHash fields of a CertID */
+  private final byte[] certIDPrefix;
+
+  /**
+   * @param issuerCert the certificate of the issuer
+   * @throws CertificateVerificationException if the issuer can't be hashed
+   */
+  public IssuerHashes(X509Certificate issuerCert) throws CertificateVerificationException {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      issuerNameHash = sha1.digest(issuerCert.getSubjectX500Principal().getEncoded());
+      SubjectPublicKeyInfo info =
+          SubjectPublicKeyInfo.getInstance(issuerCert.getPublicKey().getEncoded());
+      issuerKeyHash = sha1.digest(info.getPublicKeyData().getBytes());
+    } catch (NoSuchAlgorithmException | IllegalArgumentException e) {
+      throw new CertificateVerificationException("Unable to hash the issuer", e);
+    }
+    ByteArrayOutputStream prefix = new ByteArrayOutputStream(64);
+    prefix.writeBytes(SHA1_ALGORITHM);
+    writeTLV(prefix, OCTET_STRING, issuerNameHash);
+    writeTLV(prefix, OCTET_STRING, issuerKeyHash);
+    certIDPrefix = prefix.toByteArray();
+  }
+
+  public byte[] getIssuerNameHash() {
+    return issuerNameHash.clone();
+  }
+
+  public byte[] getIssuerKeyHash() {
+    return issuerKeyHash.clone();
+  }
+
+  /** @return the key the certificate with this serial number is cached under */
+  public CertID getCertID(BigInteger serialNumber) {
+    return new CertID(issuerKeyHash, serialNumber);
+  }
+
+  /** @return the DER encoded OCSP CertID of the certificate with this serial number */
+  public byte[] encodeCertID(BigInteger serialNumber) {
+    byte[] serial = serialNumber.toByteArray();
+    ByteArrayOutputStream content =
+        new ByteArrayOutputStream(certIDPrefix.length + serial.length + 4);
+    content.writeBytes(certIDPrefix);
+    writeTLV(content, INTEGER, serial);
+    return toTLV(SEQUENCE, content.toByteArray());
+  }
+
+  /**
+   * Puts together an unsigned OCSP request
+   *
+   * @param certIDs the output of {@link #encodeCertID(BigInteger)} for each certificate asked about
+   * @param nonce the value of the nonce extension, or null to leave it out
+   * @return the DER encoded request
+   */
+  public static byte[] encodeRequest(List<byte[]> certIDs, byte[] nonce) {
+    ByteArrayOutputStream requestList = new ByteArrayOutputStream();
+    for (byte[] certID : certIDs) {
+      writeTLV(requestList, SEQUENCE, certID);
+    }
+    ByteArrayOutputStream tbsRequest = new ByteArrayOutputStream();
+    writeTLV(tbsRequest, SEQUENCE, requestList.toByteArray());
+    if (nonce != null) {
+      ByteArrayOutputStream extension = new ByteArrayOutputStream();
+      extension.writeBytes(NONCE_OID);
+      writeTLV(extension, OCTET_STRING, toTLV(OCTET_STRING, nonce));
+      byte[] extensions = toTLV(SEQUENCE, toTLV(SEQUENCE, extension.toByteArray()));
+      writeTLV(tbsRequest, REQUEST_EXTENSIONS, extensions);
+    }
+    return toTLV(SEQUENCE, toTLV(SEQUENCE, tbsRequest.toByteArray()));
+  }
+
+  private static byte[] toTLV(int tag, byte[] value) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(value.length + 4);
+    writeTLV(out, tag, value);
+    return out.toByteArray();
+  }
+
+  /** Writes a DER tag, definite length and value */
+  private static void writeTLV(ByteArrayOutputStream out, int tag, byte[] value) {
+    out.write(tag);
+    int length = value.length;
+    if (length < 0x80) {
+      out.write(length);
+    } else {
+      int octets = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+      out.write(0x80 | octets);
+      for (int i = octets - 1; i >= 0; i--) {
+        out.write(length >>> (8 * i));
+      }
+    }
+    out.writeBytes(value);
+  }
+}
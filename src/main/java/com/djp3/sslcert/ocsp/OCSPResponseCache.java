@@ -0,0 +1,149 @@
+/*
+	Copyright 2007-2018
+		Donald J. Patterson
+*/
+/*
+	This file is part of SSL Revocation Manager , i.e. "SSLRM"
+
+    SSLRM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    SSLRM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with SSLRM.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.djp3.sslcert.ocsp;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A small HTTP cache for the answers to RFC 5019 GET requests. A response is fresh for the
+ * max-age its Cache-Control header gives, less its Age. Once stale, a response that came with an
+ * ETag is revalidated with If-None-Match, and a 304 answer reuses it. Responses marked no-store,
+ * and those with neither a max-age nor an ETag, are not kept.
+ */
+public class OCSPResponseCache {
+
+  /** A cached response body and what is needed to revalidate it */
+  public static class Entry {
+    private final byte[] body;
+    private final String etag;
+    private final long freshUntil;
+
+    Entry(byte[] body, String etag, long freshUntil) {
+      this.body = body;
+      this.etag = etag;
+      this.freshUntil = freshUntil;
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    /** @return the ETag to revalidate with, or null if there wasn't one */
+    public String getEtag() {
+      return etag;
+    }
+
+    public boolean isFresh() {
+      return System.nanoTime() - freshUntil < 0;
+    }
+  }
+
+  private final Cache<URI, Entry> cache;
+
+  /** @param maxSize the most responses kept, the least recently used are dropped first */
+  public OCSPResponseCache(long maxSize) {
+    cache = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+  }
+
+  /** @return the response cached for the URI, fresh or not, or null if there isn't one */
+  public Entry get(URI uri) {
+    return cache.getIfPresent(uri);
+  }
+
+  /**
+   * Keeps a 200 response, or forgets the URI if the response can't be cached
+   *
+   * @param cacheControl the Cache-Control header of the response, or null
+   * @param age the Age header of the response, or null
+   * @param etag the ETag header of the response, or null
+   * @return the entry that was kept, or null
+   */
+  public Entry put(URI uri, byte[] body, String cacheControl, String age, String etag) {
+    long maxAge = getMaxAge(cacheControl);
+    if ((maxAge < 0) || ((maxAge == 0) && (etag == null))) {
+      cache.invalidate(uri);
+      return null;
+    }
+    long fresh = Math.max(0, maxAge - parseSeconds(age));
+    Entry entry = new Entry(body, etag, System.nanoTime() + TimeUnit.SECONDS.toNanos(fresh));
+    cache.put(uri, entry);
+    return entry;
+  }
+
+  /**
+   * Keeps a stale response again after a 304 answer, with the freshness and ETag of the answer if
+   * it gave them
+   *
+   * @return the entry that was kept, or null
+   */
+  public Entry revalidated(URI uri, Entry stale, String cacheControl, String age, String etag) {
+    return put(uri, stale.getBody(), cacheControl, age, (etag == null) ? stale.getEtag() : etag);
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  /** @return the max-age in seconds, 0 if there isn't one, or -1 if the response isn't storable */
+  static long getMaxAge(String cacheControl) {
+    if (cacheControl == null) {
+      return 0;
+    }
+    long maxAge = 0;
+    boolean noCache = false;
+    for (String directive : cacheControl.split(",")) {
+      String d = directive.trim().toLowerCase();
+      if (d.equals("no-store")) {
+        return -1;
+      } else if (d.equals("no-cache")) {
+        noCache = true;
+      } else if (d.startsWith("max-age=")) {
+        maxAge = parseSeconds(d.substring("max-age=".length()));
+      }
+    }
+    return noCache ? 0 : maxAge;
+  }
+
+  private static long parseSeconds(String value) {
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value.trim().replace("\"", "")));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
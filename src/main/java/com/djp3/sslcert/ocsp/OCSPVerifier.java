@@ -24,25 +24,50 @@ package com.djp3.sslcert.ocsp;
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.math.BigInteger;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bouncycastle.asn1.ASN1IA5String;
@@ -50,36 +75,38 @@ import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.ASN1String;
 import org.bouncycastle.asn1.DEROctetString;
-import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
 import org.bouncycastle.asn1.x509.AccessDescription;
 import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
 import org.bouncycastle.asn1.x509.Extension;
-import org.bouncycastle.asn1.x509.Extensions;
 import org.bouncycastle.asn1.x509.GeneralName;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
 import org.bouncycastle.cert.ocsp.BasicOCSPResp;
 import org.bouncycastle.cert.ocsp.CertificateID;
 import org.bouncycastle.cert.ocsp.OCSPException;
 import org.bouncycastle.cert.ocsp.OCSPReq;
-import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
 import org.bouncycastle.cert.ocsp.OCSPResp;
 import org.bouncycastle.cert.ocsp.SingleResp;
-import org.bouncycastle.operator.DigestCalculator;
-import org.bouncycastle.operator.DigestCalculatorProvider;
-import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 
+import com.djp3.sslcert.CertAndIssuer;
+import com.djp3.sslcert.CertID;
 import com.djp3.sslcert.CertificateVerificationException;
+import com.djp3.sslcert.CircuitBreaker;
+import com.djp3.sslcert.ColdStorage;
+import com.djp3.sslcert.ColdStorageCodec;
+import com.djp3.sslcert.Deadline;
 import com.djp3.sslcert.VerificationStatus;
 import com.djp3.sslcert.Verifier;
+import com.djp3.sslcert.jfr.CheckEvent;
+import com.djp3.sslcert.jfr.FetchEvent;
+import com.djp3.sslcert.jfr.ParseEvent;
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheStats;
 
 /**
  * This is used to check if an SSL Certificate is revoked or not by using its CA using the Online
  * CertificateStatus Protocol (OCSP).
  */
-public class OCSPVerifier extends Verifier<BigInteger, VerificationStatus> {
+public class OCSPVerifier extends Verifier<CertID, VerificationStatus> {
 
   private static transient volatile Logger log = null;
 
@@ -90,11 +117,128 @@ public class OCSPVerifier extends Verifier<BigInteger, VerificationStatus> {
     return log;
   }
 
+  /* Far more than the number of CAs a process usually sees */
+  private static final int ISSUER_HASHES_MAX_SIZE = 1000;
+
+  /* Shared by every request this verifier makes, so connections to responders are reused */
+  private volatile CloseableHttpClient httpClient = null;
+  private final Object httpClientLock = new Object();
+  /* Used instead if useAsyncHttp is set */
+  private volatile HttpClient asyncHttpClient = null;
+  /* The issuers OCSP requests have been built for, see getIssuerHashes() */
+  private final Cache<X509Certificate, IssuerHashes> issuerHashes =
+      CacheBuilder.newBuilder().maximumSize(ISSUER_HASHES_MAX_SIZE).build();
+  /* Answers to RFC 5019 GET requests, see getResponseCache() */
+  private volatile OCSPResponseCache responseCache = null;
+
+  /**
+   * A request failed because of the responder rather than the request: it couldn't be reached, or
+   * answered with a 5xx. Only these are negative cached for the responder, other failures are only
+   * negative cached for the certificate, when none of its responders answer.
+   */
+  private static class ResponderFailedException extends CertificateVerificationException {
+    private static final long serialVersionUID = 2941517402671953087L;
+
+    ResponderFailedException(String message) {
+      super(message);
+    }
+  }
+
   public OCSPVerifier(Configuration config)
       throws FileNotFoundException, ClassNotFoundException, IOException {
     super(config);
   }
 
+  /**
+   * @return the pooled HTTP client that OCSP requests are made with. It is created when first
+   *     needed, and again after {@link #shutdown()} closes it.
+   */
+  protected CloseableHttpClient getHttpClient() {
+    CloseableHttpClient client = httpClient;
+    if (client == null) {
+      synchronized (httpClientLock) {
+        client = httpClient;
+        if (client == null) {
+          PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+          pool.setMaxTotal(config.httpMaxConnections);
+          pool.setDefaultMaxPerRoute(config.httpMaxConnectionsPerRoute);
+          final long keepAlive = config.httpKeepAliveTimeUnit.toMillis(config.httpKeepAlive);
+          int timeout = Math.max(0, config.connectTimeoutMillis);
+          client =
+              HttpClients.custom()
+                  .setConnectionManager(pool)
+                  .setDefaultRequestConfig(
+                      RequestConfig.custom()
+                          .setConnectionRequestTimeout(timeout)
+                          .setConnectTimeout(timeout)
+                          .setSocketTimeout(Math.max(0, config.readTimeoutMillis))
+                          .build())
+                  .setKeepAliveStrategy(
+                      new ConnectionKeepAliveStrategy() {
+                        @Override
+                        public long getKeepAliveDuration(
+                            HttpResponse response, HttpContext context) {
+                          long offered =
+                              DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(
+                                  response, context);
+                          return (offered > 0) ? Math.min(offered, keepAlive) : keepAlive;
+                        }
+                      })
+                  .evictExpiredConnections()
+                  .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                  .build();
+          httpClient = client;
+        }
+      }
+    }
+    return client;
+  }
+
+  /**
+   * @return the client that OCSP requests for async checks are made with if useAsyncHttp is set.
+   *     It is created when first needed, and again after {@link #shutdown()} drops it.
+   */
+  protected HttpClient getAsyncHttpClient() {
+    HttpClient client = asyncHttpClient;
+    if (client == null) {
+      synchronized (httpClientLock) {
+        client = asyncHttpClient;
+        if (client == null) {
+          HttpClient.Builder builder =
+              HttpClient.newBuilder()
+                  .version(HttpClient.Version.HTTP_1_1)
+                  .followRedirects(HttpClient.Redirect.NEVER);
+          if (config.connectTimeoutMillis > 0) {
+            builder.connectTimeout(Duration.ofMillis(config.connectTimeoutMillis));
+          }
+          client = builder.build();
+          asyncHttpClient = client;
+        }
+      }
+    }
+    return client;
+  }
+
+  /** Also closes the pooled connections to responders */
+  @Override
+  public synchronized void shutdown() throws FileNotFoundException, IOException {
+    try {
+      super.shutdown();
+    } finally {
+      synchronized (httpClientLock) {
+        //The JDK client closes its idle connections itself once it is unreachable
+        asyncHttpClient = null;
+        if (httpClient != null) {
+          try {
+            httpClient.close();
+          } finally {
+            httpClient = null;
+          }
+        }
+      }
+    }
+  }
+
 	/**
 	 * This is run periodically by the cache to clean out any cache entries that have expired: Not according to cache
 	 * semantics but by virtue of the information associated with the revocation data.
@@ -103,7 +247,7 @@ public class OCSPVerifier extends Verifier<BigInteger, VerificationStatus> {
 		return new Runnable() {
 			@Override
 			public void run() {
-				Cache<BigInteger, VerificationStatus> cache = getCache();
+				Cache<CertID, VerificationStatus> cache = getCache();
 				if (config.useCache && (cache != null)) {
 					StringBuffer info = new StringBuffer();
 					info.append("\nRunning validity check on OCSP Cache");
@@ -119,14 +263,7 @@ public class OCSPVerifier extends Verifier<BigInteger, VerificationStatus> {
 							+ "\t       Request Count: " 
 							+ stats.requestCount() 
 							+ "\n";
-					Date now = new Date();
-					for (Entry<BigInteger, VerificationStatus> x : cache.asMap().entrySet()) {
-						VerificationStatus resp = x.getValue();
-						Date nextUpdate = resp.getNextUpdate();
-						if ((nextUpdate == null) || (nextUpdate.before(now))) {
-							cache.invalidate(x.getKey());
-						}
-					}
+					expireEntries();
 					info.append("\tPre Size: " + presize + "\tPost Size: " + cache.size());
 					info.append(chunk);
 					getLog().debug(info.toString());
@@ -135,55 +272,74 @@ public class OCSPVerifier extends Verifier<BigInteger, VerificationStatus> {
 		};
 	}
 
+  @Override
+  protected Date getNextUpdate(VerificationStatus value) {
+    return value.getNextUpdate();
+  }
+
+  @Override
+  protected VerificationStatus markStale(VerificationStatus value) {
+    return value.asStale();
+  }
+
+  @Override
+  protected ColdStorageCodec<CertID, VerificationStatus> getColdStorageCodec() {
+    return ColdStorage.CERT_ID_CODEC;
+  }
+
   /**
-   * This method generates an OCSP Request to be sent to an OCSP endpoint.
+   * This method generates an OCSP Request to be sent to an OCSP endpoint. The request is put
+   * together from the issuer's precomputed hashes, see {@link IssuerHashes}.
    *
    * @param issuerCert is the Certificate of the Issuer of the peer certificate we are interested
    *     in.
    * @param serialNumber of the peer certificate.
-   * @return generated OCSP request.
+   * @return generated OCSP request, DER encoded.
    * @throws CertificateVerificationException
    */
-  private OCSPReq generateOCSPRequest(X509Certificate issuerCert, BigInteger serialNumber)
+  private byte[] generateOCSPRequest(X509Certificate issuerCert, BigInteger serialNumber)
       throws CertificateVerificationException {
+    List<byte[]> certIDs =
+        Collections.singletonList(getIssuerHashes(issuerCert).encodeCertID(serialNumber));
+
+    if (config.ocspLightweight) {
+      //RFC 5019 requests leave the nonce out so that caches can answer them
+      return IssuerHashes.encodeRequest(certIDs, null);
+    }
 
+    // The nonce extension is used to bind a request to a response to prevent replay attacks. As
+    // the name implies, the nonce value is something that the client should only use once within
+    // a reasonably small period.
+    byte[] nonce = BigInteger.valueOf(r.nextLong()).toByteArray();
+    return IssuerHashes.encodeRequest(certIDs, nonce);
+  }
+
+  /**
+   * @param issuerCert the certificate of an issuer
+   * @return the hashes OCSP requests about the certificates it issued are built from. They are
+   *     computed the first time the issuer is seen.
+   * @throws CertificateVerificationException if the issuer is null or can't be hashed
+   */
+  protected IssuerHashes getIssuerHashes(final X509Certificate issuerCert)
+      throws CertificateVerificationException {
+    if (issuerCert == null) {
+      throw new CertificateVerificationException("OCSP requests need the issuer certificate");
+    }
     try {
-      JcaDigestCalculatorProviderBuilder digestCalculatorProviderBuilder =
-          new JcaDigestCalculatorProviderBuilder();
-      DigestCalculatorProvider digestCalculatorProvider = digestCalculatorProviderBuilder.build();
-      DigestCalculator digestCalculator = digestCalculatorProvider.get(CertificateID.HASH_SHA1);
-
-      // Generate the id for the certificate we are looking for
-      CertificateID id =
-          new CertificateID(
-              digestCalculator, new JcaX509CertificateHolder(issuerCert), serialNumber);
-
-      // basic request generation with nonce
-      OCSPReqBuilder builder = new OCSPReqBuilder();
-
-      builder.addRequest(id);
-
-      // create details for nonce extension. The nonce extension is used to bind
-      // a request to a response to prevent replay attacks. As the name implies,
-      // the nonce value is something that the client should only use once within a
-      // reasonably
-      // small period.
-      // create details for nonce extension
-      BigInteger nonce = BigInteger.valueOf(r.nextLong());
-      Extension ext =
-          new Extension(
-              OCSPObjectIdentifiers.id_pkix_ocsp_nonce,
-              false,
-              new DEROctetString(nonce.toByteArray()).getEncoded());
-      builder.setRequestExtensions(new Extensions(new Extension[] {ext}));
-
-      return builder.build();
-    } catch (OCSPException
-        | OperatorCreationException
-        | CertificateEncodingException
-        | IOException e) {
+      return issuerHashes.get(
+          issuerCert,
+          new Callable<IssuerHashes>() {
+            @Override
+            public IssuerHashes call() throws CertificateVerificationException {
+              return new IssuerHashes(issuerCert);
+            }
+          });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CertificateVerificationException) {
+        throw (CertificateVerificationException) e.getCause();
+      }
       throw new CertificateVerificationException(
-          "Cannot generate OCSP Request with the given certificate", e);
+          "Cannot generate OCSP Request with the given certificate", e.getCause());
     }
   }
 
@@ -198,7 +354,417 @@ public class OCSPVerifier extends Verifier<BigInteger, VerificationStatus> {
    */
   protected OCSPResp getOCSPResponse(String serviceUrl, OCSPReq request)
       throws CertificateVerificationException {
+    return getOCSPResponse(serviceUrl, request, newFetchDeadline());
+  }
+
+  /**
+   * Gets an ASN.1 encoded OCSP response from the given service URL, giving up when the deadline
+   * passes. The connect and each read are also limited by the configured timeouts.
+   *
+   * @param serviceUrl URL of the OCSP endpoint.
+   * @param request an OCSP request object.
+   * @param deadline when the check this request is part of must be done
+   * @return OCSP response encoded in ASN.1 structure.
+   * @throws CertificateVerificationException
+   */
+  protected OCSPResp getOCSPResponse(String serviceUrl, OCSPReq request, Deadline deadline)
+      throws CertificateVerificationException {
+    return getOCSPResponse(serviceUrl, getEncoded(request), deadline);
+  }
+
+  /**
+   * Like {@link #getOCSPResponse(String, OCSPReq, Deadline)}, for a request that is already
+   * encoded.
+   *
+   * @param serviceUrl URL of the OCSP endpoint.
+   * @param encoded a DER encoded OCSP request.
+   * @param deadline when the check this request is part of must be done
+   * @return OCSP response encoded in ASN.1 structure.
+   * @throws CertificateVerificationException
+   */
+  protected OCSPResp getOCSPResponse(String serviceUrl, byte[] encoded, Deadline deadline)
+      throws CertificateVerificationException {
+
+    URI uri = getServiceURI(serviceUrl, encoded);
+    final URI getUri = config.ocspLightweight ? getLightweightURI(uri, encoded) : null;
+    final HttpRequestBase httpRequest;
+    OCSPResponseCache.Entry cached = null;
+    if (getUri != null) {
+      // Build HTTP Get, unless the local HTTP cache has a fresh answer
+      cached = getCachedResponse(getUri);
+      if ((cached != null) && cached.isFresh()) {
+        return parseOCSPResponse(serviceUrl, cached.getBody());
+      }
+      httpRequest = new HttpGet(getUri);
+      if ((cached != null) && (cached.getEtag() != null)) {
+        httpRequest.setHeader("If-None-Match", cached.getEtag());
+      }
+    } else {
+      // Build HTTP Post
+      HttpPost httpPost = new HttpPost(uri);
+      httpPost.setHeader("Content-Type", "application/ocsp-request");
+      httpPost.setEntity(new ByteArrayEntity(encoded));
+      httpRequest = httpPost;
+    }
+    httpRequest.setHeader("Accept", "application/ocsp-response");
+    int connectTimeout = deadline.timeoutMillis(config.connectTimeoutMillis);
+    httpRequest.setConfig(
+        RequestConfig.custom()
+            .setConnectionRequestTimeout(connectTimeout)
+            .setConnectTimeout(connectTimeout)
+            .setSocketTimeout(deadline.timeoutMillis(config.readTimeoutMillis))
+            .build());
+
+    // Don't wait on a host that is down
+    CircuitBreaker breaker = enterCircuit(serviceUrl);
+
+    // Send request out
+    FetchEvent fetchEvent = new FetchEvent();
+    fetchEvent.begin();
+    long start = System.nanoTime();
+    byte[] body;
+    //Timeouts limit each step, so abort the request if the steps add up past the deadline
+    ScheduledFuture<?> abort =
+        atDeadline(
+            deadline,
+            new Runnable() {
+              @Override
+              public void run() {
+                httpRequest.abort();
+              }
+            });
+    try (CloseableHttpResponse httpResponse = getHttpClient().execute(httpRequest)) {
+      // Evaluate response
+      int code = httpResponse.getStatusLine().getStatusCode();
+      if ((code == 304) && (cached != null)) {
+        //The cached answer is still good
+        EntityUtils.consumeQuietly(httpResponse.getEntity());
+        if (breaker != null) {
+          breaker.succeeded();
+        }
+        getMetrics().fetched(serviceUrl, System.nanoTime() - start, 0);
+        fetchEvent.finish(getMetricsName(), serviceUrl, 0, "not modified");
+        rememberResponse(
+            getUri,
+            cached.getBody(),
+            cached,
+            getHeader(httpResponse, "Cache-Control"),
+            getHeader(httpResponse, "Age"),
+            getHeader(httpResponse, "ETag"));
+        return parseOCSPResponse(serviceUrl, cached.getBody());
+      }
+      // Check errors in response:
+      if (code / 100 != 2) {
+        if (breaker != null) {
+          if (code / 100 == 5) {
+            breaker.failed();
+          } else {
+            breaker.succeeded();
+          }
+        }
+        //Read the error so the connection can be reused
+        EntityUtils.consumeQuietly(httpResponse.getEntity());
+        getMetrics().fetchFailed(serviceUrl);
+        fetchEvent.finish(getMetricsName(), serviceUrl, 0, "HTTP " + code);
+        String message = "Error getting ocsp response. Response code is " + code + " to " + uri;
+        if (code / 100 == 5) {
+          throw new ResponderFailedException(message);
+        }
+        throw new CertificateVerificationException(message);
+      }
+
+      body = EntityUtils.toByteArray(httpResponse.getEntity());
+      if (getUri != null) {
+        rememberResponse(
+            getUri,
+            body,
+            null,
+            getHeader(httpResponse, "Cache-Control"),
+            getHeader(httpResponse, "Age"),
+            getHeader(httpResponse, "ETag"));
+      }
+    } catch (IOException | IllegalStateException e) {
+      //The pool throws IllegalStateException if the verifier is shut down during the request
+      if (breaker != null) {
+        breaker.failed();
+      }
+      getMetrics().fetchFailed(serviceUrl);
+      fetchEvent.finish(getMetricsName(), serviceUrl, 0, "error");
+      String message = "Unable to execute request:\"" + serviceUrl + "\"\n" + e;
+      if ((e instanceof IOException) && !deadline.isExpired()) {
+        throw new ResponderFailedException(message);
+      }
+      throw new CertificateVerificationException(message);
+    } finally {
+      if (abort != null) {
+        abort.cancel(false);
+      }
+    }
+    if (breaker != null) {
+      breaker.succeeded();
+    }
+    getMetrics().fetched(serviceUrl, System.nanoTime() - start, body.length);
+    fetchEvent.finish(getMetricsName(), serviceUrl, body.length, "ok");
+    return parseOCSPResponse(serviceUrl, body);
+  }
+
+  private static String getHeader(HttpResponse httpResponse, String name) {
+    Header header = httpResponse.getFirstHeader(name);
+    return (header == null) ? null : header.getValue();
+  }
+
+  /**
+   * RFC 5019 GET requests put the base64 encoded request in the URL path, but only if the result is
+   * under 255 bytes.
+   *
+   * @return the URL to GET the request from, or null if the request must be POSTed
+   */
+  static URI getLightweightURI(URI uri, byte[] encodedRequest) {
+    String base = uri.toString();
+    if (!base.endsWith("/")) {
+      base = base + "/";
+    }
+    String encoded = Base64.getEncoder().encodeToString(encodedRequest);
+    String path = URLEncoder.encode(encoded, StandardCharsets.UTF_8);
+    if (base.length() + path.length() >= 255) {
+      return null;
+    }
+    try {
+      return new URI(base + path);
+    } catch (URISyntaxException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the local HTTP cache for GET requests, or null if ocspResponseCacheMaxSize is zero
+   */
+  public OCSPResponseCache getResponseCache() {
+    if (config.ocspResponseCacheMaxSize <= 0) {
+      return null;
+    }
+    OCSPResponseCache cache = responseCache;
+    if (cache == null) {
+      synchronized (httpClientLock) {
+        cache = responseCache;
+        if (cache == null) {
+          cache = new OCSPResponseCache(config.ocspResponseCacheMaxSize);
+          responseCache = cache;
+        }
+      }
+    }
+    return cache;
+  }
+
+  /** @return the answer the local HTTP cache has to the GET request, fresh or not, or null */
+  private OCSPResponseCache.Entry getCachedResponse(URI getUri) {
+    OCSPResponseCache cache = getResponseCache();
+    return (cache == null) ? null : cache.get(getUri);
+  }
+
+  /** Keeps the answer to a GET request if it is cacheable, stale is the entry a 304 refreshed */
+  private void rememberResponse(
+      URI getUri,
+      byte[] body,
+      OCSPResponseCache.Entry stale,
+      String cacheControl,
+      String age,
+      String etag) {
+    OCSPResponseCache cache = getResponseCache();
+    if (cache == null) {
+      return;
+    }
+    if (stale != null) {
+      cache.revalidated(getUri, stale, cacheControl, age, etag);
+    } else {
+      cache.put(getUri, body, cacheControl, age, etag);
+    }
+  }
+
+  private static byte[] getEncoded(OCSPReq request) throws CertificateVerificationException {
+    if (request == null) {
+      return null;
+    }
+    try {
+      return request.getEncoded();
+    } catch (IOException e) {
+      throw new CertificateVerificationException(
+          "Unable to parse request:\"" + request + "\"\n" + e);
+    }
+  }
+
+  /** Parses a downloaded OCSP response */
+  private OCSPResp parseOCSPResponse(String serviceUrl, byte[] body)
+      throws CertificateVerificationException {
+    ParseEvent parseEvent = new ParseEvent();
+    parseEvent.begin();
+    long parseStart = System.nanoTime();
+    try {
+      OCSPResp ocspResponse = new OCSPResp(body);
+      getMetrics().parsed(serviceUrl, System.nanoTime() - parseStart);
+      parseEvent.finish(getMetricsName(), serviceUrl, body.length, "ok");
+      return ocspResponse;
+    } catch (IOException e) {
+      getMetrics().fetchFailed(serviceUrl);
+      parseEvent.finish(getMetricsName(), serviceUrl, body.length, "error");
+      throw new CertificateVerificationException(
+          "Unable to parse response from:\"" + serviceUrl + "\"\n" + e);
+    }
+  }
+
+  /**
+   * Gets an ASN.1 encoded OCSP response from the given service URL without blocking a thread while
+   * waiting for it. Used instead of {@link #getOCSPResponse(String, OCSPReq, Deadline)} if
+   * useAsyncHttp is set.
+   *
+   * @param serviceUrl URL of the OCSP endpoint.
+   * @param request an OCSP request object.
+   * @param deadline when the check this request is part of must be done
+   * @return a future for the OCSP response
+   */
+  protected CompletableFuture<OCSPResp> getOCSPResponseAsync(
+      final String serviceUrl, OCSPReq request, Deadline deadline) {
+    try {
+      return getOCSPResponseAsync(serviceUrl, getEncoded(request), deadline);
+    } catch (CertificateVerificationException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Like {@link #getOCSPResponseAsync(String, OCSPReq, Deadline)}, for a request that is already
+   * encoded.
+   *
+   * @param serviceUrl URL of the OCSP endpoint.
+   * @param encoded a DER encoded OCSP request.
+   * @param deadline when the check this request is part of must be done
+   * @return a future for the OCSP response
+   */
+  protected CompletableFuture<OCSPResp> getOCSPResponseAsync(
+      final String serviceUrl, byte[] encoded, Deadline deadline) {
+    final CircuitBreaker breaker;
+    final URI getUri;
+    final OCSPResponseCache.Entry cached;
+    HttpRequest.Builder httpRequest;
+    try {
+      URI uri = getServiceURI(serviceUrl, encoded);
+      getUri = config.ocspLightweight ? getLightweightURI(uri, encoded) : null;
+      cached = (getUri == null) ? null : getCachedResponse(getUri);
+      if (getUri != null) {
+        // Build HTTP Get, unless the local HTTP cache has a fresh answer
+        if ((cached != null) && cached.isFresh()) {
+          return CompletableFuture.completedFuture(
+              parseOCSPResponse(serviceUrl, cached.getBody()));
+        }
+        httpRequest = HttpRequest.newBuilder(getUri).GET();
+        if ((cached != null) && (cached.getEtag() != null)) {
+          httpRequest.header("If-None-Match", cached.getEtag());
+        }
+      } else {
+        // Build HTTP Post
+        httpRequest =
+            HttpRequest.newBuilder(uri)
+                .header("Content-Type", "application/ocsp-request")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(encoded));
+      }
+      httpRequest.header("Accept", "application/ocsp-response");
+      // Don't wait on a host that is down
+      breaker = enterCircuit(serviceUrl);
+    } catch (CertificateVerificationException | RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    //The response must have started within the read timeout, and the deadline
+    int timeout = deadline.timeoutMillis(config.readTimeoutMillis);
+    if (timeout > 0) {
+      httpRequest.timeout(Duration.ofMillis(timeout));
+    }
+
+    // Send request out
+    final FetchEvent fetchEvent = new FetchEvent();
+    fetchEvent.begin();
+    final long start = System.nanoTime();
+    return getAsyncHttpClient()
+        .sendAsync(httpRequest.build(), java.net.http.HttpResponse.BodyHandlers.ofByteArray())
+        .handle(
+            new BiFunction<java.net.http.HttpResponse<byte[]>, Throwable, OCSPResp>() {
+              @Override
+              public OCSPResp apply(
+                  java.net.http.HttpResponse<byte[]> httpResponse, Throwable t) {
+                try {
+                  if (t != null) {
+                    if (breaker != null) {
+                      breaker.failed();
+                    }
+                    getMetrics().fetchFailed(serviceUrl);
+                    fetchEvent.finish(getMetricsName(), serviceUrl, 0, "error");
+                    String message =
+                        "Unable to execute request:\""
+                            + serviceUrl
+                            + "\"\n"
+                            + ((t instanceof CompletionException) ? t.getCause() : t);
+                    if (deadline.isExpired()) {
+                      throw new CertificateVerificationException(message);
+                    }
+                    throw new ResponderFailedException(message);
+                  }
+                  int code = httpResponse.statusCode();
+                  if (breaker != null) {
+                    if (code / 100 == 5) {
+                      breaker.failed();
+                    } else {
+                      breaker.succeeded();
+                    }
+                  }
+                  java.net.http.HttpHeaders headers = httpResponse.headers();
+                  if ((code == 304) && (cached != null)) {
+                    //The cached answer is still good
+                    getMetrics().fetched(serviceUrl, System.nanoTime() - start, 0);
+                    fetchEvent.finish(getMetricsName(), serviceUrl, 0, "not modified");
+                    rememberResponse(
+                        getUri,
+                        cached.getBody(),
+                        cached,
+                        headers.firstValue("Cache-Control").orElse(null),
+                        headers.firstValue("Age").orElse(null),
+                        headers.firstValue("ETag").orElse(null));
+                    return parseOCSPResponse(serviceUrl, cached.getBody());
+                  }
+                  byte[] body = httpResponse.body();
+                  if (code / 100 != 2) {
+                    getMetrics().fetchFailed(serviceUrl);
+                    fetchEvent.finish(getMetricsName(), serviceUrl, 0, "HTTP " + code);
+                    String message =
+                        "Error getting ocsp response. Response code is "
+                            + code
+                            + " to "
+                            + serviceUrl;
+                    if (code / 100 == 5) {
+                      throw new ResponderFailedException(message);
+                    }
+                    throw new CertificateVerificationException(message);
+                  }
+                  if (getUri != null) {
+                    rememberResponse(
+                        getUri,
+                        body,
+                        null,
+                        headers.firstValue("Cache-Control").orElse(null),
+                        headers.firstValue("Age").orElse(null),
+                        headers.firstValue("ETag").orElse(null));
+                  }
+                  getMetrics().fetched(serviceUrl, System.nanoTime() - start, body.length);
+                  fetchEvent.finish(getMetricsName(), serviceUrl, body.length, "ok");
+                  return parseOCSPResponse(serviceUrl, body);
+                } catch (CertificateVerificationException e) {
+                  throw new CompletionException(e);
+                }
+              }
+            });
+  }
 
+  /** Checks the parameters of an OCSP request and parses its URL */
+  private static URI getServiceURI(String serviceUrl, byte[] request)
+      throws CertificateVerificationException {
     // Make sure we got good input
     if ((serviceUrl == null) || (request == null)) {
       throw new InvalidParameterException(
@@ -213,7 +779,6 @@ public class OCSPVerifier extends Verifier<BigInteger, VerificationStatus> {
           "Only http: supported for serviceUrl:\"" + serviceUrl + "\"");
     }
 
-    // Build HTTP Post
     URI uri;
     try {
       uri = new URI(serviceUrl);
@@ -221,76 +786,176 @@ public class OCSPVerifier extends Verifier<BigInteger, VerificationStatus> {
       throw new CertificateVerificationException(
           "Unable to parse serviceUrl:\"" + serviceUrl + "\"");
     }
-    HttpPost httpPost = new HttpPost(uri);
-    httpPost.setHeader("Content-Type", "application/ocsp-request");
-    httpPost.setHeader("Accept", "application/ocsp-response");
-    ByteArrayEntity byteArrayEntity;
-    try {
-      byteArrayEntity = new ByteArrayEntity(request.getEncoded());
-    } catch (IOException e) {
-      throw new CertificateVerificationException(
-          "Unable to parse request:\"" + request + "\"\n" + e);
-    }
-    httpPost.setEntity(byteArrayEntity);
+    return uri;
+  }
 
-    // Send request out
-    try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-      try (CloseableHttpResponse httpResponse = httpClient.execute(httpPost)) {
-        // Evaluate response
-        int code = httpResponse.getStatusLine().getStatusCode();
-        // Check errors in response:
-        if (code / 100 != 2) {
-          throw new CertificateVerificationException(
-              "Error getting ocsp response. Response code is " + code + " to " + uri);
-        }
+  private VerificationStatus getOCSPResponseDirect(
+      X509Certificate peerCert, X509Certificate issuerCert)
+      throws CertificateVerificationException {
 
-        InputStream in = httpResponse.getEntity().getContent();
-        return new OCSPResp(in);
-      }
-    } catch (IOException e) {
-      throw new CertificateVerificationException(
-          "Unable to execute request:\"" + serviceUrl + "\"\n" + e);
+    // This list will sometimes have non ocsp urls as well.
+    List<String> locations = null;
+    try {
+      locations = getAIALocations(peerCert);
+    } catch (CertificateVerificationException e) {
+      //Some kind of problem getting AIA Locations
+      getLog().info("Problem finding AIA Locations\n" + e);
+      return new VerificationStatus(VerificationStatus.BAD, new Date());
     }
+
+    return getOCSPResponseDirect(peerCert, issuerCert, locations);
   }
 
   private VerificationStatus getOCSPResponseDirect(
-      X509Certificate peerCert, X509Certificate issuerCert)
+      X509Certificate peerCert, X509Certificate issuerCert, List<String> locations)
       throws CertificateVerificationException {
 
-    OCSPReq request = generateOCSPRequest(issuerCert, peerCert.getSerialNumber());
+    final byte[] request = generateOCSPRequest(issuerCert, peerCert.getSerialNumber());
+    final Deadline deadline = newFetchDeadline();
 
-    // This list will sometimes have non ocsp urls as well.
+    // Ask each location, moving on to the next early if one is slow
+    return hedgeBlocking(
+        locations,
+        new BlockingHedgedRequest<VerificationStatus>() {
+          @Override
+          public VerificationStatus call(String serviceUrl)
+              throws CertificateVerificationException {
+            return askResponder(serviceUrl, request, deadline);
+          }
+        });
+  }
+
+  /** Like {@link #getOCSPResponseDirect(X509Certificate, X509Certificate)} without blocking */
+  private CompletableFuture<VerificationStatus> getOCSPResponseDirectAsync(
+      X509Certificate peerCert, X509Certificate issuerCert) {
     List<String> locations = null;
     try {
       locations = getAIALocations(peerCert);
     } catch (CertificateVerificationException e) {
       //Some kind of problem getting AIA Locations
       getLog().info("Problem finding AIA Locations\n" + e);
-      return new VerificationStatus(VerificationStatus.BAD, new Date());
+      return CompletableFuture.completedFuture(
+          new VerificationStatus(VerificationStatus.BAD, new Date()));
     }
+    return getOCSPResponseDirectAsync(peerCert, issuerCert, locations);
+  }
 
-    // Check each location
-    for (String serviceUrl : locations) {
+  /**
+   * Asks each location with the configured transport. With useAsyncHttp no thread waits on the
+   * responders, otherwise each request ties up the one fetch thread that makes it
+   */
+  private CompletableFuture<VerificationStatus> getOCSPResponseDirectAsync(
+      X509Certificate peerCert, X509Certificate issuerCert, List<String> locations) {
+    final byte[] request;
+    try {
+      request = generateOCSPRequest(issuerCert, peerCert.getSerialNumber());
+    } catch (CertificateVerificationException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    final Deadline deadline = newFetchDeadline();
 
-      OCSPResp ocspResponse = null;
-      ocspResponse = getOCSPResponse(serviceUrl, request); // Possibly cached
+    // Ask each location, moving on to the next early if one is slow
+    if (!config.useAsyncHttp) {
+      return hedgeBlockingAsync(
+          locations,
+          new BlockingHedgedRequest<VerificationStatus>() {
+            @Override
+            public VerificationStatus call(String serviceUrl)
+                throws CertificateVerificationException {
+              return askResponder(serviceUrl, request, deadline);
+            }
+          });
+    }
+    return hedgeAsync(
+        locations,
+        new HedgedRequest<VerificationStatus>() {
+          @Override
+          public CompletableFuture<VerificationStatus> start(String serviceUrl) {
+            return askResponderAsync(serviceUrl, request, deadline);
+          }
+        });
+  }
 
-      if (ocspResponse.getStatus() != OCSPResp.SUCCESSFUL) {
-        continue; // Server didn't provide a response so try the next one
-      }
+  /** @return the status from one responder, or null if it didn't provide one */
+  private VerificationStatus askResponder(String serviceUrl, byte[] request, Deadline deadline)
+      throws CertificateVerificationException {
+    deadline.check("asking OCSP responder:\"" + serviceUrl + "\"");
 
-      BasicOCSPResp basicResponse;
-      try {
-        basicResponse = (BasicOCSPResp) ocspResponse.getResponseObject();
-      } catch (OCSPException e) {
-        throw new CertificateVerificationException("Unable to execute OCSP request:\n" + e);
-      }
+    //Don't wait on a responder that failed moments ago for another certificate
+    Throwable failure = getCachedFailure(serviceUrl);
+    if (failure != null) {
+      throw new CertificateVerificationException(
+          "OCSP responder failed recently:\"" + serviceUrl + "\"", failure);
+    }
 
-      SingleResp[] responses = (basicResponse == null) ? null : basicResponse.getResponses();
-      if (responses != null && responses.length == 1) {
-        VerificationStatus resp = new VerificationStatus(responses[0]);
-        return resp;
-      }
+    OCSPResp ocspResponse = null;
+    try {
+      ocspResponse = getOCSPResponse(serviceUrl, request, deadline); // Possibly cached
+    } catch (ResponderFailedException e) {
+      cacheFailure(serviceUrl, e);
+      throw e;
+    }
+    return getStatus(ocspResponse);
+  }
+
+  /** Like {@link #askResponder(String, byte[], Deadline)} but without blocking a thread */
+  private CompletableFuture<VerificationStatus> askResponderAsync(
+      final String serviceUrl, byte[] request, Deadline deadline) {
+    try {
+      deadline.check("asking OCSP responder:\"" + serviceUrl + "\"");
+    } catch (CertificateVerificationException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    //Don't wait on a responder that failed moments ago for another certificate
+    Throwable failure = getCachedFailure(serviceUrl);
+    if (failure != null) {
+      return CompletableFuture.failedFuture(
+          new CertificateVerificationException(
+              "OCSP responder failed recently:\"" + serviceUrl + "\"", failure));
+    }
+
+    return getOCSPResponseAsync(serviceUrl, request, deadline)
+        .handle(
+            new BiFunction<OCSPResp, Throwable, VerificationStatus>() {
+              @Override
+              public VerificationStatus apply(OCSPResp ocspResponse, Throwable t) {
+                Throwable cause = (t instanceof CompletionException) ? t.getCause() : t;
+                try {
+                  if (cause instanceof CertificateVerificationException) {
+                    if (cause instanceof ResponderFailedException) {
+                      cacheFailure(serviceUrl, cause);
+                    }
+                    throw (CertificateVerificationException) cause;
+                  } else if (cause != null) {
+                    throw new CertificateVerificationException(cause);
+                  }
+                  return getStatus(ocspResponse);
+                } catch (CertificateVerificationException e) {
+                  throw new CompletionException(e);
+                }
+              }
+            });
+  }
+
+  /** @return the status in a responder's answer, or null if it didn't provide one */
+  private static VerificationStatus getStatus(OCSPResp ocspResponse)
+      throws CertificateVerificationException {
+    if (ocspResponse.getStatus() != OCSPResp.SUCCESSFUL) {
+      return null; // Server didn't provide a response so try the next one
+    }
+
+    BasicOCSPResp basicResponse;
+    try {
+      basicResponse = (BasicOCSPResp) ocspResponse.getResponseObject();
+    } catch (OCSPException e) {
+      throw new CertificateVerificationException("Unable to execute OCSP request:\n" + e);
+    }
+
+    SingleResp[] responses = (basicResponse == null) ? null : basicResponse.getResponses();
+    if (responses != null && responses.length == 1) {
+      VerificationStatus resp = new VerificationStatus(responses[0]);
+      return resp;
     }
     return null;
   }
@@ -311,28 +976,295 @@ public class OCSPVerifier extends Verifier<BigInteger, VerificationStatus> {
       final X509Certificate[] fullChain)
       throws CertificateVerificationException {
 
-    VerificationStatus status;
+    if (config.checkDeadline > 0) {
+      //Wait on the fetch from here, so that the check can give up on it in time
+      return await(checkRevocationStatusAsync(peerCert, issuerCert, fullChain));
+    }
 
-    // check cache
-    Cache<BigInteger, VerificationStatus> cache = getCache();
-    if (config.useCache && (cache != null)) {
+    CheckEvent event = beginCheck();
+    VerificationStatus status = null;
+    try {
+      // check cache
+      Cache<CertID, VerificationStatus> cache = getCache();
+      if (config.useCache && (cache != null)) {
+        try {
+          status =
+              getCached(
+                  CertID.of(peerCert, issuerCert),
+                  new Callable<VerificationStatus>() {
+                    public VerificationStatus call() throws CertificateVerificationException {
+                      return getOCSPResponseDirect(peerCert, issuerCert);
+                    }
+                  });
+        } catch (ExecutionException e) {
+          throw new CertificateVerificationException(e);
+        }
+      } else {
+        status = getOCSPResponseDirect(peerCert, issuerCert);
+      }
+    } finally {
+      endCheck(event, peerCert, status);
+    }
+
+    return status;
+  }
+
+  /**
+   * Gets the revocation status of the given peer certificate without blocking the calling thread.
+   * The OCSP request is made on the fetch executor. Uses the cache if it has been configured.
+   *
+   * @param peerCert The certificate we want to check if revoked.
+   * @param issuerCert Needed to create OCSP request.
+   * @return a future holding the revocation status of the peer certificate.
+   */
+  @Override
+  public CompletableFuture<VerificationStatus> checkRevocationStatusAsync(
+      final X509Certificate peerCert,
+      final X509Certificate issuerCert,
+      final X509Certificate[] fullChain) {
+    CheckEvent event = beginCheck();
+    Deadline deadline = newDeadline();
+    CertID key;
+    try {
+      key = CertID.of(peerCert, issuerCert);
+    } catch (CertificateVerificationException e) {
+      return endCheck(event, peerCert, CompletableFuture.<VerificationStatus>failedFuture(e));
+    }
+    return endCheck(
+        event,
+        peerCert,
+        withDeadline(
+            loadAsync(
+                key,
+                new Supplier<CompletableFuture<VerificationStatus>>() {
+                  public CompletableFuture<VerificationStatus> get() {
+                    return getOCSPResponseDirectAsync(peerCert, issuerCert);
+                  }
+                }),
+            deadline));
+  }
+
+  /** The AIA locations of the certificate, so that batches are grouped by OCSP responder */
+  @Override
+  protected List<String> getResponderLocations(X509Certificate peerCert)
+      throws CertificateVerificationException {
+    return getAIALocations(peerCert);
+  }
+
+  /**
+   * Checks a group of certificates that share an OCSP responder. The AIA extension of each
+   * certificate has already been parsed, so it isn't parsed again for the request. The
+   * certificates that aren't cached are asked about together, see {@link MultiRequest}.
+   */
+  @Override
+  protected CompletableFuture<Map<CertAndIssuer, VerificationStatus>>
+      checkRevocationStatusGroupAsync(
+          String location, Map<CertAndIssuer, List<String>> group) {
+    final MultiRequest multiRequest =
+        (config.ocspLightweight || (config.ocspMaxCertsPerRequest <= 1))
+            ? null
+            : new MultiRequest(location);
+    Map<CertAndIssuer, CompletableFuture<VerificationStatus>> pending =
+        new LinkedHashMap<CertAndIssuer, CompletableFuture<VerificationStatus>>();
+    for (Entry<CertAndIssuer, List<String>> e : group.entrySet()) {
+      final X509Certificate peerCert = e.getKey().getPeerCert();
+      final X509Certificate issuerCert = e.getKey().getIssuerCert();
+      final List<String> locations = e.getValue();
+      CertID key;
       try {
-        status =
-            cache.get(
-                peerCert.getSerialNumber(),
-                new Callable<VerificationStatus>() {
-                  public VerificationStatus call() throws CertificateVerificationException {
-                    return getOCSPResponseDirect(peerCert, issuerCert);
+        key = CertID.of(peerCert, issuerCert);
+      } catch (CertificateVerificationException ex) {
+        pending.put(e.getKey(), CompletableFuture.<VerificationStatus>failedFuture(ex));
+        continue;
+      }
+      pending.put(
+          e.getKey(),
+          loadAsync(
+              key,
+              new Supplier<CompletableFuture<VerificationStatus>>() {
+                public CompletableFuture<VerificationStatus> get() {
+                  if (multiRequest != null) {
+                    return multiRequest.add(peerCert, issuerCert, locations);
+                  }
+                  return getOCSPResponseDirectAsync(peerCert, issuerCert, locations);
+                }
+              }));
+    }
+    if (multiRequest != null) {
+      multiRequest.send();
+    }
+    return collectStatuses(pending);
+  }
+
+  /**
+   * The certificates of a group that missed the cache, asked about in as few OCSP requests as
+   * ocspMaxCertsPerRequest allows. Each SingleResp in the answer completes the load of the
+   * certificate it is about, so it is cached like any other status. Certificates the responder
+   * doesn't answer for, or all of them if the request fails, are asked about on their own.
+   * Certificates added after the requests are sent, when the cache reloads one, are too.
+   */
+  private class MultiRequest {
+    private final String location;
+    private final List<X509Certificate> peerCerts = new ArrayList<X509Certificate>();
+    private final List<X509Certificate> issuerCerts = new ArrayList<X509Certificate>();
+    private final List<List<String>> locations = new ArrayList<List<String>>();
+    private final List<CompletableFuture<VerificationStatus>> answers =
+        new ArrayList<CompletableFuture<VerificationStatus>>();
+    private boolean sent = false;
+
+    MultiRequest(String location) {
+      this.location = location;
+    }
+
+    /** @return a future completed once the certificate's answer is in */
+    synchronized CompletableFuture<VerificationStatus> add(
+        X509Certificate peerCert, X509Certificate issuerCert, List<String> certLocations) {
+      if (sent) {
+        return getOCSPResponseDirectAsync(peerCert, issuerCert, certLocations);
+      }
+      CompletableFuture<VerificationStatus> answer = new CompletableFuture<VerificationStatus>();
+      peerCerts.add(peerCert);
+      issuerCerts.add(issuerCert);
+      locations.add(certLocations);
+      answers.add(answer);
+      return answer;
+    }
+
+    /** Sends the requests for the certificates added so far */
+    void send() {
+      synchronized (this) {
+        sent = true;
+      }
+      int size = Math.max(2, config.ocspMaxCertsPerRequest);
+      for (int from = 0; from < answers.size(); from += size) {
+        int to = Math.min(answers.size(), from + size);
+        if (to - from == 1) {
+          finishAlone(from);
+        } else {
+          send(from, to);
+        }
+      }
+    }
+
+    private void send(final int from, final int to) {
+      // Encode a CertID for each certificate, and remember which certificate each is about
+      final Map<CertID, Integer> asked = new LinkedHashMap<CertID, Integer>();
+      List<byte[]> certIDs = new ArrayList<byte[]>();
+      for (int i = from; i < to; i++) {
+        BigInteger serialNumber = peerCerts.get(i).getSerialNumber();
+        try {
+          IssuerHashes hashes = getIssuerHashes(issuerCerts.get(i));
+          asked.put(hashes.getCertID(serialNumber), i);
+          certIDs.add(hashes.encodeCertID(serialNumber));
+        } catch (CertificateVerificationException | RuntimeException e) {
+          //Fail the load, or it stays in flight for every later check of the certificate
+          answers.get(i).completeExceptionally(e);
+        }
+      }
+
+      //The certificates that couldn't be encoded have already failed, so there may be none left
+      if (certIDs.isEmpty()) {
+        return;
+      }
+
+      //Don't wait on a responder that failed moments ago for another certificate, and don't
+      //batch a lone certificate
+      if ((certIDs.size() == 1) || (getCachedFailure(location) != null)) {
+        finishAlone(asked.values());
+        return;
+      }
+
+      byte[] nonce = BigInteger.valueOf(r.nextLong()).toByteArray();
+      final byte[] request = IssuerHashes.encodeRequest(certIDs, nonce);
+      final Deadline deadline = newFetchDeadline();
+      CompletableFuture<OCSPResp> response;
+      if (config.useAsyncHttp) {
+        response = getOCSPResponseAsync(location, request, deadline);
+      } else {
+        response =
+            fetchAsync(
+                new Callable<OCSPResp>() {
+                  @Override
+                  public OCSPResp call() throws CertificateVerificationException {
+                    return getOCSPResponse(location, request, deadline);
                   }
                 });
-      } catch (ExecutionException e) {
-        throw new CertificateVerificationException(e);
       }
-    } else {
-      status = getOCSPResponseDirect(peerCert, issuerCert);
+      response.whenComplete(
+          new BiConsumer<OCSPResp, Throwable>() {
+            @Override
+            public void accept(OCSPResp ocspResponse, Throwable t) {
+              if (t != null) {
+                Throwable cause = (t instanceof CompletionException) ? t.getCause() : t;
+                if (cause instanceof ResponderFailedException) {
+                  cacheFailure(location, cause);
+                }
+              } else {
+                fanOut(ocspResponse, asked);
+              }
+              finishAlone(asked.values());
+            }
+          });
     }
 
-    return status;
+    /** Completes the load of each certificate the response has an answer for */
+    private void fanOut(OCSPResp ocspResponse, Map<CertID, Integer> asked) {
+      if (ocspResponse.getStatus() != OCSPResp.SUCCESSFUL) {
+        return; // Some responders only answer for one certificate at a time
+      }
+      SingleResp[] responses;
+      try {
+        BasicOCSPResp basicResponse = (BasicOCSPResp) ocspResponse.getResponseObject();
+        responses = (basicResponse == null) ? null : basicResponse.getResponses();
+      } catch (OCSPException | ClassCastException e) {
+        getLog().info("Unable to read multiple certificate OCSP response\n" + e);
+        return;
+      }
+      if (responses == null) {
+        return;
+      }
+      for (SingleResp singleResp : responses) {
+        CertificateID id = singleResp.getCertID();
+        if (!CertificateID.HASH_SHA1.getAlgorithm().equals(id.getHashAlgOID())) {
+          continue;
+        }
+        Integer i = asked.get(new CertID(id.getIssuerKeyHash(), id.getSerialNumber()));
+        if (i != null) {
+          try {
+            answers.get(i).complete(new VerificationStatus(singleResp));
+          } catch (CertificateVerificationException e) {
+            answers.get(i).completeExceptionally(e);
+          }
+        }
+      }
+    }
+
+    /** Asks about the certificates whose answers are still missing on their own */
+    private void finishAlone(Collection<Integer> indexes) {
+      for (Integer i : indexes) {
+        finishAlone(i);
+      }
+    }
+
+    private void finishAlone(int i) {
+      final CompletableFuture<VerificationStatus> answer = answers.get(i);
+      if (answer.isDone()) {
+        return;
+      }
+      getOCSPResponseDirectAsync(peerCerts.get(i), issuerCerts.get(i), locations.get(i))
+          .whenComplete(
+              new BiConsumer<VerificationStatus, Throwable>() {
+                @Override
+                public void accept(VerificationStatus status, Throwable t) {
+                  if (t != null) {
+                    answer.completeExceptionally(
+                        (t instanceof CompletionException) ? t.getCause() : t);
+                  } else {
+                    answer.complete(status);
+                  }
+                }
+              });
+    }
   }
 
   /**
@@ -6,13 +6,22 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.security.InvalidParameterException;
 import java.security.KeyManagementException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -23,13 +32,42 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.text.SimpleDateFormat;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
@@ -47,8 +85,42 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.jsse.provider.BouncyCastleJsseProvider;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -59,7 +131,15 @@ import com.djp3.sslcert.Verifier.Configuration;
 import com.djp3.sslcert.crl.CRLVerifier;
 import com.djp3.sslcert.crl.X509CRLWrapper;
 import com.djp3.sslcert.ct.CTVerifier;
+import com.djp3.sslcert.metrics.LatencySnapshot;
+import com.djp3.sslcert.metrics.MetricsRegistry;
+import com.djp3.sslcert.metrics.VerifierMetrics;
+import com.djp3.sslcert.ocsp.IssuerHashes;
+import com.djp3.sslcert.ocsp.OCSPResponseCache;
 import com.djp3.sslcert.ocsp.OCSPVerifier;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
@@ -72,6 +152,292 @@ public class VerifierTest {
   private static URI badURIRevoked_OCSP_ONLY = null;
   private static URI badURISCTFailed = null;
 
+  /* A cache key for certificates from a made up issuer */
+  private static CertID certID(long serialNumber) {
+    return new CertID(new byte[CertID.ISSUER_HASH_LENGTH], BigInteger.valueOf(serialNumber));
+  }
+
+  /* A CA and a leaf it issued, made up for tests that don't go to the network */
+  private static X509Certificate[] makeChain() throws Exception {
+    KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+    kpg.initialize(256);
+    KeyPair caKeys = kpg.generateKeyPair();
+    KeyPair leafKeys = kpg.generateKeyPair();
+    X500Name caName = new X500Name("CN=Test CA");
+    Date from = new Date(System.currentTimeMillis() - 3600000L);
+    Date to = new Date(System.currentTimeMillis() + 3600000L);
+    ContentSigner signer =
+        new JcaContentSignerBuilder("SHA256withECDSA").build(caKeys.getPrivate());
+    JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+    X509Certificate ca =
+        converter.getCertificate(
+            new JcaX509v3CertificateBuilder(
+                    caName, BigInteger.ONE, from, to, caName, caKeys.getPublic())
+                .build(signer));
+    X509Certificate leaf =
+        converter.getCertificate(
+            new JcaX509v3CertificateBuilder(
+                    caName,
+                    BigInteger.valueOf(new SecureRandom().nextInt(Integer.MAX_VALUE)),
+                    from,
+                    to,
+                    new X500Name("CN=leaf.test"),
+                    leafKeys.getPublic())
+                .build(signer));
+    return new X509Certificate[] {leaf, ca};
+  }
+
+  /* A CA whose leaves name a CRL distribution point, and which signs CRLs to serve locally */
+  private static class TestCA {
+    final X500Name name = new X500Name("CN=Test CA");
+    final Date from = new Date(System.currentTimeMillis() - 3600000L);
+    final Date to = new Date(System.currentTimeMillis() + 3600000L);
+    final KeyPairGenerator kpg;
+    final ContentSigner signer;
+    final X509Certificate cert;
+
+    TestCA() throws Exception {
+      kpg = KeyPairGenerator.getInstance("EC");
+      kpg.initialize(256);
+      KeyPair keys = kpg.generateKeyPair();
+      signer = new JcaContentSignerBuilder("SHA256withECDSA").build(keys.getPrivate());
+      cert =
+          new JcaX509CertificateConverter()
+              .getCertificate(
+                  new JcaX509v3CertificateBuilder(
+                          name, BigInteger.ONE, from, to, name, keys.getPublic())
+                      .build(signer));
+    }
+
+    /** @return the chain of a leaf whose CRL is at crlUrl */
+    X509Certificate[] issue(long serial, String crlUrl) throws Exception {
+      GeneralNames names =
+          new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, crlUrl));
+      return issue(
+          serial,
+          Extension.cRLDistributionPoints,
+          new CRLDistPoint(
+              new DistributionPoint[] {
+                new DistributionPoint(new DistributionPointName(names), null, null)
+              }));
+    }
+
+    /** @return the chain of a leaf whose OCSP responder is at ocspUrl */
+    X509Certificate[] issueOCSP(long serial, String ocspUrl) throws Exception {
+      return issue(
+          serial,
+          Extension.authorityInfoAccess,
+          new AuthorityInformationAccess(
+              new AccessDescription(
+                  AccessDescription.id_ad_ocsp,
+                  new GeneralName(GeneralName.uniformResourceIdentifier, ocspUrl))));
+    }
+
+    private X509Certificate[] issue(long serial, ASN1ObjectIdentifier oid, ASN1Encodable value)
+        throws Exception {
+      X509Certificate leaf =
+          new JcaX509CertificateConverter()
+              .getCertificate(
+                  new JcaX509v3CertificateBuilder(
+                          name,
+                          BigInteger.valueOf(serial),
+                          from,
+                          to,
+                          new X500Name("CN=leaf" + serial + ".test"),
+                          kpg.generateKeyPair().getPublic())
+                      .addExtension(oid, false, value)
+                      .build(signer));
+      return new X509Certificate[] {leaf, cert};
+    }
+
+    /** @return a signed OCSP response saying the certificates asked about are good, or revoked */
+    byte[] ocspResponse(byte[] request, long... revoked) throws Exception {
+      BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(name));
+      for (Req req : new OCSPReq(request).getRequestList()) {
+        CertificateStatus status = CertificateStatus.GOOD;
+        for (long serial : revoked) {
+          if (req.getCertID().getSerialNumber().longValue() == serial) {
+            status = new RevokedStatus(from, CRLReason.keyCompromise);
+          }
+        }
+        builder.addResponse(req.getCertID(), status, new Date(), to);
+      }
+      return new OCSPRespBuilder()
+          .build(OCSPRespBuilder.SUCCESSFUL, builder.build(signer, null, new Date()))
+          .getEncoded();
+    }
+
+    /** @return a DER encoded CRL valid until nextUpdate that revokes the given serials */
+    byte[] crl(Date nextUpdate, long... revoked) throws Exception {
+      X509v2CRLBuilder builder = new X509v2CRLBuilder(name, new Date());
+      builder.setNextUpdate(nextUpdate);
+      for (long serial : revoked) {
+        builder.addCRLEntry(BigInteger.valueOf(serial), from, CRLReason.keyCompromise);
+      }
+      return builder.build(signer).getEncoded();
+    }
+  }
+
+  /* Serves whatever body currently holds, after a delay, or a 404 while it holds null */
+  private static HttpServer serve(final AtomicReference<byte[]> body, final long delayMillis)
+      throws IOException {
+    HttpServer server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext(
+        "/",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            try {
+              Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            byte[] answer = body.get();
+            if (answer == null) {
+              exchange.sendResponseHeaders(404, -1);
+            } else {
+              exchange.sendResponseHeaders(200, answer.length);
+              exchange.getResponseBody().write(answer);
+            }
+            exchange.close();
+          }
+        });
+    server.start();
+    return server;
+  }
+
+  /* An OCSP responder for ca that counts the requests it answers */
+  private static HttpServer serveOCSP(
+      final TestCA ca, final AtomicInteger requests, final long... revoked) throws IOException {
+    HttpServer server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext(
+        "/",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            try {
+              byte[] answer = ca.ocspResponse(exchange.getRequestBody().readAllBytes(), revoked);
+              exchange.sendResponseHeaders(200, answer.length);
+              exchange.getResponseBody().write(answer);
+            } catch (Exception e) {
+              exchange.sendResponseHeaders(500, -1);
+            }
+            exchange.close();
+          }
+        });
+    server.start();
+    return server;
+  }
+
+  /* A verifier that answers every check with whatever the supplier returns */
+  private static class StubVerifier extends Verifier<CertID, VerificationStatus> {
+    private final Supplier<CompletableFuture<VerificationStatus>> answer;
+
+    StubVerifier(Supplier<CompletableFuture<VerificationStatus>> answer)
+        throws ClassNotFoundException, IOException {
+      this(answer, new Verifier.Configuration());
+    }
+
+    StubVerifier(Supplier<CompletableFuture<VerificationStatus>> answer, Configuration config)
+        throws ClassNotFoundException, IOException {
+      super(config);
+      this.answer = answer;
+    }
+
+    @Override
+    protected Runnable getValidityCheckerCode() {
+      return new Runnable() {
+        @Override
+        public void run() {}
+      };
+    }
+
+    @Override
+    protected Date getNextUpdate(VerificationStatus value) {
+      return value.getNextUpdate();
+    }
+
+    @Override
+    protected ColdStorageCodec<CertID, VerificationStatus> getColdStorageCodec() {
+      return ColdStorage.CERT_ID_CODEC;
+    }
+
+    @Override
+    protected VerificationStatus markStale(VerificationStatus value) {
+      return value.asStale();
+    }
+
+    @Override
+    public VerificationStatus checkRevocationStatus(
+        X509Certificate peerCert, X509Certificate issuerCert, X509Certificate[] fullChain)
+        throws CertificateVerificationException {
+      try {
+        return checkRevocationStatusAsync(peerCert, issuerCert, fullChain).get();
+      } catch (InterruptedException | ExecutionException e) {
+        throw new CertificateVerificationException(e);
+      }
+    }
+
+    @Override
+    public CompletableFuture<VerificationStatus> checkRevocationStatusAsync(
+        X509Certificate peerCert, X509Certificate issuerCert, X509Certificate[] fullChain) {
+      return answer.get();
+    }
+  }
+
+  private static Supplier<CompletableFuture<VerificationStatus>> answering(final int status) {
+    return new Supplier<CompletableFuture<VerificationStatus>>() {
+      @Override
+      public CompletableFuture<VerificationStatus> get() {
+        VerificationStatus s =
+            new VerificationStatus(status, new Date(System.currentTimeMillis() + 3600000L));
+        if (status == VerificationStatus.BAD) {
+          s.setRevokeDate(new Date());
+        }
+        return CompletableFuture.completedFuture(s);
+      }
+    };
+  }
+
+  private static Supplier<CompletableFuture<VerificationStatus>> failing() {
+    return new Supplier<CompletableFuture<VerificationStatus>>() {
+      @Override
+      public CompletableFuture<VerificationStatus> get() {
+        return CompletableFuture.failedFuture(
+            new CertificateVerificationException("Responder unreachable"));
+      }
+    };
+  }
+
+  private static Supplier<CompletableFuture<VerificationStatus>> hanging() {
+    return new Supplier<CompletableFuture<VerificationStatus>>() {
+      @Override
+      public CompletableFuture<VerificationStatus> get() {
+        return new CompletableFuture<VerificationStatus>();
+      }
+    };
+  }
+
+  /* Trusts every chain, so that only revocation decides */
+  private static final X509TrustManager TRUST_ALL =
+      new X509TrustManager() {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+          return new X509Certificate[0];
+        }
+      };
+
   @BeforeClass
   public static void setUpBeforeClass() throws Exception {
     //System.setProperty("log4j.configurationFile","src/test/resources/JustFatals.log4j.xml");
@@ -190,7 +556,7 @@ public class VerifierTest {
     }
 
     try {
-      ctVerifier.getCache().put(BigInteger.ONE, null); //null should not be allowed
+      ctVerifier.getCache().put(certID(1), null); //null should not be allowed
       fail("Should not allow null entries.  Code assumes this won't happen");
     } catch (NullPointerException e) {
       //okay
@@ -198,7 +564,7 @@ public class VerifierTest {
     ctVerifier
         .getCache()
         .put(
-            BigInteger.TEN,
+            certID(10),
             new VerificationStatus(VerificationStatus.BAD, null)); //null date should get cleaned up
     assertEquals(1, ctVerifier.getCache().size());
     ctVerifier.triggerGarbageCollection();
@@ -234,7 +600,7 @@ public class VerifierTest {
     }
 
     try {
-      ocspVerifier.getCache().put(BigInteger.ONE, null); //null should not be allowed
+      ocspVerifier.getCache().put(certID(1), null); //null should not be allowed
       fail("Should not allow null entries.  Code assumes this won't happen");
     } catch (NullPointerException e) {
       //okay
@@ -242,7 +608,7 @@ public class VerifierTest {
     ocspVerifier
         .getCache()
         .put(
-            BigInteger.TEN,
+            certID(10),
             new VerificationStatus(VerificationStatus.BAD, null)); //null date should get cleaned up
     assertEquals(1, ocspVerifier.getCache().size());
     ocspVerifier.triggerGarbageCollection();
@@ -1705,6 +2071,1928 @@ public class VerifierTest {
     }
   }
 
+  @Test
+  /** Expiry index only hands back keys that are due, and only their latest deadline */
+  public void test14() {
+    ExpiryIndex<String> index = new ExpiryIndex<String>();
+    index.schedule("a", 100);
+    index.schedule("b", 200);
+    index.schedule("c", 300);
+    index.schedule("b", 400); //rescheduled, the old deadline should be skipped
+    index.remove("c");
+    assertEquals(2, index.size());
+
+    assertTrue(index.pollDue(50).isEmpty());
+    List<String> due = index.pollDue(350);
+    assertEquals(1, due.size());
+    assertEquals("a", due.get(0));
+    due = index.pollDue(1000);
+    assertEquals(1, due.size());
+    assertEquals("b", due.get(0));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  /** Cold storage round trip through the binary format, expired entries aren't loaded */
+  public void test15() {
+    File file = null;
+    try {
+      file = File.createTempFile("OCSP", ".cache");
+
+      Configuration configurationOCSP = new OCSPVerifier.Configuration();
+      configurationOCSP.useCache = true;
+      configurationOCSP.storeCacheToColdStorageOnQuit = true;
+      configurationOCSP.storeCacheColdStorageFileName = file.getPath();
+      OCSPVerifier ocspVerifier = new OCSPVerifier(configurationOCSP);
+
+      Date future = new Date(System.currentTimeMillis() + 3600000L);
+      VerificationStatus good = new VerificationStatus(VerificationStatus.GOOD, future);
+      VerificationStatus bad = new VerificationStatus(VerificationStatus.BAD, future);
+      bad.setRevokeDate(new Date(1000L));
+      bad.setRevokeReason(1);
+      VerificationStatus expired =
+          new VerificationStatus(VerificationStatus.GOOD, new Date(System.currentTimeMillis() - 1));
+      ocspVerifier.getCache().put(certID(1), good);
+      ocspVerifier.getCache().put(certID(2), bad);
+      ocspVerifier.getCache().put(certID(10), expired);
+      ocspVerifier.shutdown(); //Save the cache
+      assertTrue(ColdStorage.isColdStorageFile(file.toPath()));
+
+      configurationOCSP = new OCSPVerifier.Configuration();
+      configurationOCSP.useCache = true;
+      configurationOCSP.loadCacheFromColdStorageOnStart = true;
+      configurationOCSP.loadCacheColdStorageFileName = file.getPath();
+      ocspVerifier = new OCSPVerifier(configurationOCSP);
+      assertEquals(2, ocspVerifier.getCache().size());
+
+      VerificationStatus loaded = ocspVerifier.getCache().getIfPresent(certID(1));
+      assertEquals(VerificationStatus.GOOD, loaded.getStatus());
+      assertEquals(future, loaded.getNextUpdate());
+      assertNull(loaded.getRevokeDate());
+      assertNull(loaded.getRevokeReason());
+
+      loaded = ocspVerifier.getCache().getIfPresent(certID(2));
+      assertEquals(VerificationStatus.BAD, loaded.getStatus());
+      assertEquals(new Date(1000L), loaded.getRevokeDate());
+      assertEquals(Integer.valueOf(1), loaded.getRevokeReason());
+      ocspVerifier.shutdown();
+    } catch (ClassNotFoundException | IOException e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (file != null) {
+        file.delete();
+      }
+    }
+  }
+
+  @Test
+  /** Cache recovered from the journal alone, with invalidations replayed */
+  public void test16() {
+    File file = null;
+    try {
+      file = File.createTempFile("OCSP", ".journal");
+      file.delete(); //Start without a journal
+
+      Configuration configurationOCSP = new OCSPVerifier.Configuration();
+      configurationOCSP.useCache = true;
+      configurationOCSP.journalFileName = file.getPath();
+      OCSPVerifier ocspVerifier = new OCSPVerifier(configurationOCSP);
+
+      Date future = new Date(System.currentTimeMillis() + 3600000L);
+      ocspVerifier
+          .getCache()
+          .put(certID(1), new VerificationStatus(VerificationStatus.GOOD, future));
+      ocspVerifier
+          .getCache()
+          .put(certID(2), new VerificationStatus(VerificationStatus.BAD, future));
+      ocspVerifier.getCache().invalidate(certID(1));
+      ocspVerifier.shutdown(); //Nothing stored to cold storage, only the journal
+
+      ocspVerifier = new OCSPVerifier(configurationOCSP);
+      assertEquals(1, ocspVerifier.getCache().size());
+      assertNull(ocspVerifier.getCache().getIfPresent(certID(1)));
+      assertEquals(
+          VerificationStatus.BAD, ocspVerifier.getCache().getIfPresent(certID(2)).getStatus());
+      ocspVerifier.shutdown();
+    } catch (ClassNotFoundException | IOException e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (file != null) {
+        file.delete();
+      }
+    }
+  }
+
+  @Test
+  /** Cold storage loaded in the background without replacing entries cached in the meantime */
+  public void test17() {
+    File file = null;
+    try {
+      file = File.createTempFile("OCSP", ".cache");
+
+      Configuration configurationOCSP = new OCSPVerifier.Configuration();
+      configurationOCSP.useCache = true;
+      configurationOCSP.storeCacheToColdStorageOnQuit = true;
+      configurationOCSP.storeCacheColdStorageFileName = file.getPath();
+      OCSPVerifier ocspVerifier = new OCSPVerifier(configurationOCSP);
+
+      Date future = new Date(System.currentTimeMillis() + 3600000L);
+      for (int i = 0; i < 500; i++) {
+        ocspVerifier
+            .getCache()
+            .put(certID(i), new VerificationStatus(VerificationStatus.GOOD, future));
+      }
+      ocspVerifier.shutdown(); //Save the cache
+
+      configurationOCSP = new OCSPVerifier.Configuration();
+      configurationOCSP.useCache = true;
+      configurationOCSP.loadCacheFromColdStorageOnStart = true;
+      configurationOCSP.loadCacheColdStorageFileName = file.getPath();
+      configurationOCSP.loadCacheInBackground = true;
+      configurationOCSP.loadCacheParallelism = 4;
+      ocspVerifier = new OCSPVerifier(configurationOCSP);
+      ocspVerifier
+          .getCache()
+          .put(certID(0), new VerificationStatus(VerificationStatus.BAD, future));
+
+      int loaded = ocspVerifier.getCacheWarmUp().get();
+      assertTrue(loaded >= 499);
+      assertEquals(500, ocspVerifier.getCache().size());
+      assertEquals(
+          VerificationStatus.BAD,
+          ocspVerifier.getCache().getIfPresent(certID(0)).getStatus());
+      ocspVerifier.shutdown();
+    } catch (ClassNotFoundException | ExecutionException | InterruptedException | IOException e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (file != null) {
+        file.delete();
+      }
+    }
+  }
+
+  @Test
+  /** Cache bounded by the bytes its entries hold */
+  public void test18() {
+    try {
+      Configuration configurationOCSP = new OCSPVerifier.Configuration();
+      configurationOCSP.useCache = true;
+      configurationOCSP.cacheMaxBytes = 8000L;
+      OCSPVerifier ocspVerifier = new OCSPVerifier(configurationOCSP);
+
+      Date future = new Date(System.currentTimeMillis() + 3600000L);
+      for (int i = 0; i < 500; i++) {
+        ocspVerifier
+            .getCache()
+            .put(certID(i), new VerificationStatus(VerificationStatus.GOOD, future));
+      }
+      assertTrue(ocspVerifier.getCache().size() > 0);
+      assertTrue(ocspVerifier.getCache().size() <= 8000 / Verifier.ENTRY_OVERHEAD_BYTES);
+      ocspVerifier.shutdown();
+    } catch (ClassNotFoundException | IOException e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** Failed lookups are not retried until the negative cache entry expires */
+  public void test19() {
+    try {
+      Configuration configurationOCSP = new OCSPVerifier.Configuration();
+      configurationOCSP.useCache = true;
+      OCSPVerifier ocspVerifier = new OCSPVerifier(configurationOCSP);
+
+      final AtomicInteger attempts = new AtomicInteger();
+      Callable<VerificationStatus> failing =
+          new Callable<VerificationStatus>() {
+            @Override
+            public VerificationStatus call() throws CertificateVerificationException {
+              attempts.incrementAndGet();
+              throw new CertificateVerificationException("Responder unreachable");
+            }
+          };
+      for (int i = 0; i < 3; i++) {
+        try {
+          ocspVerifier.getCached(certID(1), failing);
+          fail("Should have failed");
+        } catch (ExecutionException e) {
+          assertTrue(e.getCause() instanceof CertificateVerificationException);
+        }
+      }
+      try {
+        ocspVerifier.loadAsync(certID(1), failing).get();
+        fail("Should have failed");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof CertificateVerificationException);
+      }
+      assertEquals(1, attempts.get());
+      assertEquals(3, ocspVerifier.getNegativeCacheStats().hitCount());
+      assertNull(ocspVerifier.getCache().getIfPresent(certID(1)));
+
+      ocspVerifier.shutdown();
+      configurationOCSP.negativeCacheDuration = 0;
+      ocspVerifier = new OCSPVerifier(configurationOCSP);
+      assertNull(ocspVerifier.getNegativeCacheStats());
+      ocspVerifier.shutdown();
+    } catch (ClassNotFoundException | InterruptedException | IOException e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** CertID keys distinguish issuers and survive encoding */
+  public void test20() {
+    try {
+      byte[] otherIssuer = new byte[CertID.ISSUER_HASH_LENGTH];
+      otherIssuer[19] = 1;
+      BigInteger longSerial =
+          new BigInteger("-123456789abcdef0123456789abcdef0123456789abcdef01", 16);
+      assertEquals(certID(42), certID(42));
+      assertEquals(certID(42).hashCode(), certID(42).hashCode());
+      assertTrue(!certID(42).equals(new CertID(otherIssuer, BigInteger.valueOf(42))));
+      assertTrue(!certID(42).equals(certID(-42)));
+      assertEquals(BigInteger.valueOf(-42), certID(-42).getSerialNumber());
+      assertEquals(longSerial, new CertID(otherIssuer, longSerial).getSerialNumber());
+
+      for (CertID id :
+          new CertID[] {
+            certID(0), certID(-1), certID(Long.MAX_VALUE), new CertID(otherIssuer, longSerial)
+          }) {
+        CertID decoded = CertID.fromEncoded(id.getEncoded());
+        assertEquals(id, decoded);
+        assertEquals(id.hashCode(), decoded.hashCode());
+      }
+      assertEquals(1, new CertID(otherIssuer, longSerial).getIssuerKeyHash()[19]);
+    } catch (IOException e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** Hits, misses and failures are counted, forwarded to a registry and published to JMX */
+  public void test21() {
+    try {
+      final AtomicInteger forwarded = new AtomicInteger();
+      Configuration configurationOCSP = new OCSPVerifier.Configuration();
+      configurationOCSP.useCache = true;
+      configurationOCSP.publishMetricsToJMX = true;
+      configurationOCSP.metricsRegistry =
+          new MetricsRegistry() {
+            @Override
+            public void increment(String name, String verifier, String responder, long amount) {
+              assertEquals("OCSPVerifier", verifier);
+              forwarded.addAndGet((int) amount);
+            }
+
+            @Override
+            public void record(String name, String verifier, String responder, long nanos) {}
+          };
+      OCSPVerifier ocspVerifier = new OCSPVerifier(configurationOCSP);
+
+      final Date future = new Date(System.currentTimeMillis() + 3600000L);
+      Callable<VerificationStatus> good =
+          new Callable<VerificationStatus>() {
+            @Override
+            public VerificationStatus call() {
+              return new VerificationStatus(VerificationStatus.GOOD, future);
+            }
+          };
+      ocspVerifier.getCached(certID(1), good);
+      ocspVerifier.getCached(certID(1), good);
+      ocspVerifier.loadAsync(certID(1), good).get();
+
+      VerifierMetrics metrics = ocspVerifier.getMetrics();
+      assertEquals(1, metrics.getMisses());
+      assertEquals(2, metrics.getHits());
+      assertEquals(0, metrics.getFailures());
+      assertEquals(3, forwarded.get());
+
+      metrics.snapshotLatencies();
+      assertEquals(2, metrics.getHitLatency().getCount());
+      assertEquals(1, metrics.getMissLatency().getCount());
+      assertTrue(metrics.getFetchLatencies().isEmpty());
+
+      ObjectName name = metrics.getObjectName();
+      assertNotNull(name);
+      assertEquals(
+          Long.valueOf(2),
+          ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Hits"));
+      ocspVerifier.shutdown();
+      assertNull(metrics.getObjectName());
+      assertTrue(!ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    } catch (ClassNotFoundException
+        | ExecutionException
+        | InterruptedException
+        | IOException
+        | JMException e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** Cache lookups show up in flight recordings */
+  public void test22() {
+    File file = null;
+    try (Recording recording = new Recording()) {
+      file = File.createTempFile("OCSP", ".jfr");
+      recording.enable("com.djp3.sslcert.CacheLookup");
+      recording.start();
+
+      Configuration configurationOCSP = new OCSPVerifier.Configuration();
+      configurationOCSP.useCache = true;
+      OCSPVerifier ocspVerifier = new OCSPVerifier(configurationOCSP);
+      final Date future = new Date(System.currentTimeMillis() + 3600000L);
+      Callable<VerificationStatus> good =
+          new Callable<VerificationStatus>() {
+            @Override
+            public VerificationStatus call() {
+              return new VerificationStatus(VerificationStatus.GOOD, future);
+            }
+          };
+      ocspVerifier.getCached(certID(7), good);
+      ocspVerifier.getCached(certID(7), good);
+      ocspVerifier.shutdown();
+
+      recording.stop();
+      recording.dump(file.toPath());
+      List<String> outcomes = new ArrayList<String>();
+      for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+        assertEquals("OCSPVerifier", event.getString("verifier"));
+        outcomes.add(event.getString("outcome"));
+      }
+      assertEquals(Arrays.asList("miss", "hit"), outcomes);
+    } catch (ClassNotFoundException | ExecutionException | IOException e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (file != null) {
+        file.delete();
+      }
+    }
+  }
+
+  @Test
+  /** Revocation sources are checked concurrently under a soft or hard fail policy */
+  public void test23() {
+    try {
+      X509Certificate[] chain = makeChain();
+      StubVerifier good = new StubVerifier(answering(VerificationStatus.GOOD));
+      StubVerifier revoked = new StubVerifier(answering(VerificationStatus.BAD));
+      StubVerifier broken = new StubVerifier(failing());
+      StubVerifier slow = new StubVerifier(hanging());
+
+      RevocationTrustManager.Policy policy = new RevocationTrustManager.Policy();
+      policy.timeout = 200;
+      policy.timeoutUnit = TimeUnit.MILLISECONDS;
+
+      //All good
+      new RevocationTrustManager(TRUST_ALL, good, good, good, policy)
+          .checkServerTrusted(chain, "EC");
+
+      //A revocation doesn't wait for the slow source
+      long start = System.currentTimeMillis();
+      try {
+        new RevocationTrustManager(TRUST_ALL, slow, revoked, good, policy)
+            .checkServerTrusted(chain, "EC");
+        fail("Should have been revoked");
+      } catch (CertificateException e) {
+        assertTrue(e.getMessage().startsWith("Certificate revoked by CRL"));
+      }
+      assertTrue(System.currentTimeMillis() - start < 200);
+
+      //Soft fail accepts sources that fail or don't answer in time
+      new RevocationTrustManager(TRUST_ALL, broken, slow, good, policy)
+          .checkServerTrusted(chain, "EC");
+
+      //Unless they are required
+      policy.requiredSources = EnumSet.of(RevocationTrustManager.Source.OCSP);
+      try {
+        new RevocationTrustManager(TRUST_ALL, broken, good, good, policy)
+            .checkServerTrusted(chain, "EC");
+        fail("Should have required OCSP");
+      } catch (CertificateException e) {
+        assertTrue(e.getMessage().startsWith("OCSP gave no answer"));
+      }
+
+      //Or the policy is hard fail
+      policy.requiredSources = EnumSet.noneOf(RevocationTrustManager.Source.class);
+      policy.hardFail = true;
+      try {
+        new RevocationTrustManager(TRUST_ALL, good, slow, good, policy)
+            .checkServerTrusted(chain, "EC");
+        fail("Should have hard failed");
+      } catch (CertificateException e) {
+        assertTrue(e.getMessage().startsWith("CRL gave no answer"));
+      }
+
+      for (StubVerifier v : new StubVerifier[] {good, revoked, broken, slow}) {
+        v.shutdown();
+      }
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** Whole chain verdicts are cached when every source answered, but soft failures are not */
+  public void test24() {
+    try {
+      X509Certificate[] chain = makeChain();
+      final AtomicInteger calls = new AtomicInteger();
+      final Supplier<CompletableFuture<VerificationStatus>> goodAnswer =
+          answering(VerificationStatus.GOOD);
+      StubVerifier good =
+          new StubVerifier(
+              new Supplier<CompletableFuture<VerificationStatus>>() {
+                @Override
+                public CompletableFuture<VerificationStatus> get() {
+                  calls.incrementAndGet();
+                  return goodAnswer.get();
+                }
+              });
+      StubVerifier broken = new StubVerifier(failing());
+
+      RevocationTrustManager manager =
+          new RevocationTrustManager(
+              TRUST_ALL, good, good, good, new RevocationTrustManager.Policy());
+      manager.checkServerTrusted(chain, "EC");
+      int first = calls.get();
+      assertTrue(first > 0);
+      manager.checkServerTrusted(chain, "EC");
+      assertEquals(first, calls.get());
+      assertEquals(1, manager.getChainCacheStats().hitCount());
+
+      //A soft failed verdict is checked again next time
+      manager =
+          new RevocationTrustManager(
+              TRUST_ALL, broken, good, good, new RevocationTrustManager.Policy());
+      manager.checkServerTrusted(chain, "EC");
+      manager.checkServerTrusted(chain, "EC");
+      assertEquals(0, manager.getChainCacheStats().hitCount());
+
+      good.shutdown();
+      broken.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** Hedged requests move on when a URL is slow or fails, and the first answer wins */
+  public void test25() {
+    try {
+      StubVerifier verifier = new StubVerifier(answering(VerificationStatus.GOOD));
+      verifier.config.hedgeDelay = 50;
+      verifier.config.hedgeTimeUnit = TimeUnit.MILLISECONDS;
+      verifier.config.hedgeLatencyPercentile = 0;
+      final List<String> asked = Collections.synchronizedList(new ArrayList<String>());
+      Verifier.HedgedRequest<String> request =
+          new Verifier.HedgedRequest<String>() {
+            @Override
+            public CompletableFuture<String> start(String url) {
+              asked.add(url);
+              if (url.startsWith("slow")) {
+                return new CompletableFuture<String>();
+              } else if (url.startsWith("broken")) {
+                return CompletableFuture.failedFuture(new IOException(url));
+              } else if (url.startsWith("empty")) {
+                return CompletableFuture.completedFuture(null);
+              }
+              return CompletableFuture.completedFuture(url);
+            }
+          };
+
+      //A slow URL is hedged after the delay and the later answer wins
+      long start = System.currentTimeMillis();
+      assertEquals(
+          "fast", verifier.hedgeAsync(Arrays.asList("slow", "fast", "last"), request).get());
+      assertTrue(System.currentTimeMillis() - start >= 50);
+      assertEquals(Arrays.asList("slow", "fast"), asked);
+
+      //A failure or missing answer moves on straight away
+      verifier.config.hedgeDelay = 10;
+      verifier.config.hedgeTimeUnit = TimeUnit.MINUTES;
+      asked.clear();
+      assertEquals(
+          "good",
+          verifier
+              .hedgeAsync(Arrays.asList("broken", "empty", "good"), request)
+              .get(1, TimeUnit.SECONDS));
+
+      //No answers at all
+      assertEquals(null, verifier.hedgeAsync(Arrays.asList("empty1", "empty2"), request).get());
+      try {
+        verifier.hedge(Arrays.asList("empty", "broken"), request);
+        fail("Should have failed");
+      } catch (CertificateVerificationException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** A check that runs past its deadline answers UNKNOWN, or fails, and fetches are cut off */
+  public void test26() {
+    assertEquals(Deadline.NONE, Deadline.after(0, TimeUnit.MILLISECONDS));
+    assertEquals(5000, Deadline.NONE.timeoutMillis(5000));
+    assertEquals(0, Deadline.NONE.timeoutMillis(0));
+    Deadline soon = Deadline.after(100, TimeUnit.MILLISECONDS);
+    assertTrue(soon.timeoutMillis(5000) <= 100);
+    assertTrue(soon.timeoutMillis(10) <= 10);
+    assertTrue(soon.timeoutMillis(0) > 0);
+
+    try {
+      StubVerifier verifier = new StubVerifier(hanging());
+      verifier.config.checkDeadline = 50;
+      long start = System.currentTimeMillis();
+      VerificationStatus status =
+          verifier.withDeadline(new CompletableFuture<VerificationStatus>(), verifier.newDeadline())
+              .get(1, TimeUnit.SECONDS);
+      assertEquals(VerificationStatus.UNKNOWN, status.getStatus());
+      assertNull(status.getNextUpdate());
+      assertTrue(System.currentTimeMillis() - start >= 50);
+
+      verifier.config.deadlineStatus = null;
+      try {
+        verifier
+            .withDeadline(new CompletableFuture<VerificationStatus>(), verifier.newDeadline())
+            .get(1, TimeUnit.SECONDS);
+        fail("Should have timed out");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof TimeoutException);
+      }
+      verifier.shutdown();
+
+      //An UNKNOWN answer is a soft failure to the trust manager
+      StubVerifier good = new StubVerifier(answering(VerificationStatus.GOOD));
+      StubVerifier unknown = new StubVerifier(answering(VerificationStatus.UNKNOWN));
+      RevocationTrustManager.Policy policy = new RevocationTrustManager.Policy();
+      new RevocationTrustManager(TRUST_ALL, unknown, good, good, policy)
+          .checkServerTrusted(makeChain(), "EC");
+      policy.hardFail = true;
+      try {
+        new RevocationTrustManager(TRUST_ALL, unknown, good, good, policy)
+            .checkServerTrusted(makeChain(), "EC");
+        fail("Should have hard failed");
+      } catch (CertificateException e) {
+        assertTrue(e.getMessage().contains("before its deadline"));
+      }
+      good.shutdown();
+      unknown.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+
+    //A responder that accepts the connection but never answers is cut off at the deadline
+    class SilentCRLVerifier extends CRLVerifier {
+      SilentCRLVerifier() throws ClassNotFoundException, IOException {
+        super(new CRLVerifier.Configuration());
+      }
+
+      void download(String url, Deadline deadline)
+          throws IOException, CertificateVerificationException {
+        downloadCRLFromWeb(url, deadline);
+      }
+    }
+    try (ServerSocket silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      SilentCRLVerifier crl = new SilentCRLVerifier();
+      long start = System.currentTimeMillis();
+      try {
+        crl.download(
+            "http://127.0.0.1:" + silent.getLocalPort() + "/ca.crl",
+            Deadline.after(200, TimeUnit.MILLISECONDS));
+        fail("Should have timed out");
+      } catch (CertificateVerificationException e) {
+        //Expected
+      }
+      assertTrue(System.currentTimeMillis() - start < 2000);
+      crl.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** Circuit breakers open after repeated failures, probe when half open and close on success */
+  public void test27() {
+    try {
+      CircuitBreaker breaker = new CircuitBreaker("ocsp.example", 2, 50, TimeUnit.MILLISECONDS);
+      assertTrue(breaker.allowRequest());
+      breaker.failed();
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+      breaker.failed();
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      assertTrue(!breaker.allowRequest());
+
+      //One probe after the open duration, which fails
+      Thread.sleep(60);
+      assertTrue(breaker.allowRequest());
+      assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+      assertTrue(!breaker.allowRequest());
+      breaker.failed();
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+      //The next probe succeeds
+      Thread.sleep(60);
+      assertTrue(breaker.allowRequest());
+      breaker.succeeded();
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+      assertTrue(breaker.allowRequest());
+
+      //Verifiers keep a breaker per host and publish their state
+      StubVerifier verifier = new StubVerifier(answering(VerificationStatus.GOOD));
+      verifier.config.circuitBreakerFailureThreshold = 1;
+      CircuitBreaker host = verifier.enterCircuit("http://ocsp.example/a");
+      host.failed();
+      try {
+        verifier.enterCircuit("http://ocsp.example/b");
+        fail("Circuit should be open");
+      } catch (CertificateVerificationException e) {
+        //Expected
+      }
+      assertTrue(verifier.enterCircuit("http://crl.example/c") != null);
+      assertEquals(CircuitBreaker.State.OPEN, verifier.getCircuitStates().get("ocsp.example"));
+      assertEquals(CircuitBreaker.State.CLOSED, verifier.getCircuitStates().get("crl.example"));
+      assertEquals("OPEN", verifier.getMetrics().getCircuits().get("ocsp.example"));
+      assertEquals(1, verifier.getMetrics().getCircuitRejections());
+
+      verifier.config.circuitBreakerFailureThreshold = 0;
+      assertNull(verifier.enterCircuit("http://ocsp.example/b"));
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** Expired entries are served stale while they are fetched again, until the fetch succeeds */
+  public void test28() {
+    try {
+      StubVerifier verifier = new StubVerifier(answering(VerificationStatus.GOOD));
+      verifier.config.serveStaleDuration = 1;
+      verifier.config.serveStaleTimeUnit = TimeUnit.HOURS;
+      verifier.resetCache();
+      CertID key = certID(28);
+
+      VerificationStatus fresh =
+          verifier
+              .loadAsync(
+                  key,
+                  new Supplier<CompletableFuture<VerificationStatus>>() {
+                    @Override
+                    public CompletableFuture<VerificationStatus> get() {
+                      return CompletableFuture.completedFuture(
+                          new VerificationStatus(
+                              VerificationStatus.GOOD,
+                              new Date(System.currentTimeMillis() + 100)));
+                    }
+                  })
+              .get();
+      assertTrue(!fresh.isStale());
+      //The expiry index works at a granularity, so the entry is removed soon after nextUpdate
+      for (int i = 0; (i < 300) && (verifier.getCache().size() > 0); i++) {
+        Thread.sleep(10);
+        verifier.expireEntries();
+      }
+      assertEquals(0, verifier.getCache().size());
+
+      //The responder is down, the expired answer is served marked stale
+      VerificationStatus stale = verifier.loadAsync(key, failing()).get();
+      assertTrue(stale.isStale());
+      assertEquals(VerificationStatus.GOOD, stale.getStatus());
+      stale = verifier.loadAsync(key, failing()).get();
+      assertTrue(stale.isStale());
+
+      //The responder is back, the stale answer is served once more while it is fetched again
+      stale = verifier.loadAsync(key, answering(VerificationStatus.GOOD)).get();
+      assertTrue(stale.isStale());
+      for (int i = 0; (i < 100) && (verifier.getCache().size() == 0); i++) {
+        Thread.sleep(10);
+      }
+      fresh = verifier.loadAsync(key, failing()).get();
+      assertTrue(!fresh.isStale());
+      assertEquals(3, verifier.getMetrics().getStaleServed());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** OCSP requests reuse pooled keep-alive connections, and shutdown closes them */
+  public void test29() {
+    class PooledOCSPVerifier extends OCSPVerifier {
+      PooledOCSPVerifier() throws ClassNotFoundException, IOException {
+        super(new OCSPVerifier.Configuration());
+      }
+
+      OCSPResp ask(String url) throws CertificateVerificationException {
+        return getOCSPResponse(url, request);
+      }
+
+      final OCSPReq request;
+
+      {
+        try {
+          request = new OCSPReqBuilder().build();
+        } catch (OCSPException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    HttpServer server = null;
+    try {
+      final byte[] answer =
+          new OCSPRespBuilder().build(OCSPRespBuilder.UNAUTHORIZED, null).getEncoded();
+      final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+      server.createContext(
+          "/",
+          new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+              clientPorts.add(exchange.getRemoteAddress().getPort());
+              exchange.getRequestBody().readAllBytes();
+              exchange.sendResponseHeaders(200, answer.length);
+              exchange.getResponseBody().write(answer);
+              exchange.close();
+            }
+          });
+      server.start();
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ocsp";
+
+      PooledOCSPVerifier verifier = new PooledOCSPVerifier();
+      for (int i = 0; i < 5; i++) {
+        assertEquals(OCSPResp.UNAUTHORIZED, verifier.ask(url).getStatus());
+      }
+      assertEquals(1, clientPorts.size());
+
+      //A new pool after shutdown
+      verifier.shutdown();
+      assertEquals(OCSPResp.UNAUTHORIZED, verifier.ask(url).getStatus());
+      assertEquals(2, clientPorts.size());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  @Test
+  /** Async OCSP requests made without blocking a thread answer like the blocking ones */
+  public void test30() {
+    class AsyncOCSPVerifier extends OCSPVerifier {
+      AsyncOCSPVerifier() throws ClassNotFoundException, IOException {
+        super(new OCSPVerifier.Configuration());
+        config.useAsyncHttp = true;
+      }
+
+      CompletableFuture<OCSPResp> ask(String url) {
+        return getOCSPResponseAsync(url, request, Deadline.NONE);
+      }
+
+      final OCSPReq request;
+
+      {
+        try {
+          request = new OCSPReqBuilder().build();
+        } catch (OCSPException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    HttpServer server = null;
+    try {
+      final byte[] answer =
+          new OCSPRespBuilder().build(OCSPRespBuilder.UNAUTHORIZED, null).getEncoded();
+      final AtomicInteger requests = new AtomicInteger();
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+      server.createContext(
+          "/",
+          new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+              requests.incrementAndGet();
+              exchange.getRequestBody().readAllBytes();
+              if (exchange.getRequestURI().getPath().equals("/down")) {
+                exchange.sendResponseHeaders(503, -1);
+              } else {
+                exchange.sendResponseHeaders(200, answer.length);
+                exchange.getResponseBody().write(answer);
+              }
+              exchange.close();
+            }
+          });
+      server.start();
+      String url = "http://127.0.0.1:" + server.getAddress().getPort();
+
+      AsyncOCSPVerifier verifier = new AsyncOCSPVerifier();
+      List<CompletableFuture<OCSPResp>> answers = new ArrayList<CompletableFuture<OCSPResp>>();
+      for (int i = 0; i < 5; i++) {
+        answers.add(verifier.ask(url + "/ocsp"));
+      }
+      for (CompletableFuture<OCSPResp> f : answers) {
+        assertEquals(OCSPResp.UNAUTHORIZED, f.get(10, TimeUnit.SECONDS).getStatus());
+      }
+      assertEquals(5, requests.get());
+
+      //Errors fail the future instead of being thrown
+      try {
+        verifier.ask(url + "/down").get(10, TimeUnit.SECONDS);
+        fail("Should have failed");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof CertificateVerificationException);
+      }
+      assertEquals(5, verifier.getMetrics().getFetches());
+      assertEquals(1, verifier.getMetrics().getFetchFailures());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  @Test
+  /** RFC 5019 GET requests are answered from the local HTTP cache and revalidated with ETags */
+  public void test31() {
+    class LightweightOCSPVerifier extends OCSPVerifier {
+      LightweightOCSPVerifier() throws ClassNotFoundException, IOException {
+        super(new OCSPVerifier.Configuration());
+        config.ocspLightweight = true;
+        config.ocspResponseCacheMaxSize = 10;
+      }
+
+      OCSPResp ask(String url) throws CertificateVerificationException {
+        return getOCSPResponse(url, request);
+      }
+
+      OCSPResp askAsync(String url) throws Exception {
+        return getOCSPResponseAsync(url, request, Deadline.NONE).get(10, TimeUnit.SECONDS);
+      }
+
+      final OCSPReq request;
+
+      {
+        try {
+          request = new OCSPReqBuilder().build();
+        } catch (OCSPException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    HttpServer server = null;
+    try {
+      final byte[] answer =
+          new OCSPRespBuilder().build(OCSPRespBuilder.UNAUTHORIZED, null).getEncoded();
+      final List<String> methods = Collections.synchronizedList(new ArrayList<String>());
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+      server.createContext(
+          "/",
+          new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+              methods.add(exchange.getRequestMethod());
+              exchange.getRequestBody().readAllBytes();
+              if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+                exchange.sendResponseHeaders(304, -1);
+              } else {
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                exchange.sendResponseHeaders(200, answer.length);
+                exchange.getResponseBody().write(answer);
+              }
+              exchange.close();
+            }
+          });
+      server.start();
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ocsp";
+
+      LightweightOCSPVerifier verifier = new LightweightOCSPVerifier();
+      //Fetched, then revalidated, then fresh from the cache
+      assertEquals(OCSPResp.UNAUTHORIZED, verifier.ask(url).getStatus());
+      assertEquals(OCSPResp.UNAUTHORIZED, verifier.ask(url).getStatus());
+      assertEquals(OCSPResp.UNAUTHORIZED, verifier.ask(url).getStatus());
+      assertEquals(OCSPResp.UNAUTHORIZED, verifier.askAsync(url).getStatus());
+      assertEquals(Arrays.asList("GET", "GET"), methods);
+      assertEquals(1, verifier.getResponseCache().size());
+
+      //Too long for a GET
+      char[] path = new char[250];
+      Arrays.fill(path, 'a');
+      assertEquals(OCSPResp.UNAUTHORIZED, verifier.ask(url + new String(path)).getStatus());
+      assertEquals("POST", methods.get(2));
+      verifier.shutdown();
+
+      OCSPResponseCache cache = new OCSPResponseCache(10);
+      URI uri = new URI("http://ocsp.example/abc");
+      assertNull(cache.put(uri, answer, "max-age=60, no-store", null, null));
+      assertNull(cache.put(uri, answer, null, null, null));
+      assertTrue(cache.put(uri, answer, "public, max-age=60", "10", null).isFresh());
+      assertTrue(!cache.put(uri, answer, "max-age=60", "60", "\"v2\"").isFresh());
+      assertEquals("\"v2\"", cache.get(uri).getEtag());
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  @Test
+  /** OCSP requests put together from precomputed issuer hashes match those BouncyCastle builds */
+  public void test32() {
+    try {
+      X509Certificate[] chain = makeChain();
+      X509Certificate leaf = chain[0];
+      X509Certificate ca = chain[1];
+      IssuerHashes hashes = new IssuerHashes(ca);
+      assertEquals(CertID.of(leaf, ca), hashes.getCertID(leaf.getSerialNumber()));
+
+      DigestCalculator sha1 =
+          new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1);
+      byte[] nonce = BigInteger.valueOf(-12345678901L).toByteArray();
+      Extension nonceExtension =
+          new Extension(
+              OCSPObjectIdentifiers.id_pkix_ocsp_nonce,
+              false,
+              new DEROctetString(nonce).getEncoded());
+      BigInteger[] serials = {
+        leaf.getSerialNumber(),
+        BigInteger.ZERO,
+        BigInteger.ONE.shiftLeft(159),
+        BigInteger.valueOf(-1)
+      };
+      for (BigInteger serial : serials) {
+        List<byte[]> certIDs = Collections.singletonList(hashes.encodeCertID(serial));
+        OCSPReqBuilder builder =
+            new OCSPReqBuilder()
+                .addRequest(new CertificateID(sha1, new JcaX509CertificateHolder(ca), serial));
+        assertTrue(
+            Arrays.equals(builder.build().getEncoded(), IssuerHashes.encodeRequest(certIDs, null)));
+        builder.setRequestExtensions(new Extensions(nonceExtension));
+        assertTrue(
+            Arrays.equals(
+                builder.build().getEncoded(), IssuerHashes.encodeRequest(certIDs, nonce)));
+      }
+
+      //Several certificates in one request
+      List<byte[]> certIDs = new ArrayList<byte[]>();
+      for (int i = 0; i < 200; i++) {
+        certIDs.add(hashes.encodeCertID(BigInteger.valueOf(i)));
+      }
+      Req[] requests = new OCSPReq(IssuerHashes.encodeRequest(certIDs, nonce)).getRequestList();
+      assertEquals(200, requests.length);
+      assertEquals(BigInteger.valueOf(199), requests[199].getCertID().getSerialNumber());
+      assertTrue(
+          requests[0]
+              .getCertID()
+              .matchesIssuer(
+                  new JcaX509CertificateHolder(ca),
+                  new JcaDigestCalculatorProviderBuilder().build()));
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** A batch asks its OCSP responder about several certificates in one request */
+  public void test33() {
+    HttpServer server = null;
+    try {
+      KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+      kpg.initialize(256);
+      KeyPair caKeys = kpg.generateKeyPair();
+      X500Name caName = new X500Name("CN=Test CA");
+      final Date from = new Date(System.currentTimeMillis() - 3600000L);
+      final Date to = new Date(System.currentTimeMillis() + 3600000L);
+      final ContentSigner signer =
+          new JcaContentSignerBuilder("SHA256withECDSA").build(caKeys.getPrivate());
+      JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+      X509Certificate ca =
+          converter.getCertificate(
+              new JcaX509v3CertificateBuilder(
+                      caName, BigInteger.ONE, from, to, caName, caKeys.getPublic())
+                  .build(signer));
+
+      //Answers for every certificate but serial 4, and says serial 3 is revoked
+      final List<Integer> certsPerRequest = Collections.synchronizedList(new ArrayList<Integer>());
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+      server.createContext(
+          "/",
+          new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+              try {
+                Req[] requests =
+                    new OCSPReq(exchange.getRequestBody().readAllBytes()).getRequestList();
+                certsPerRequest.add(requests.length);
+                BasicOCSPRespBuilder builder =
+                    new BasicOCSPRespBuilder(new RespID(new X500Name("CN=Test CA")));
+                for (Req req : requests) {
+                  int serial = req.getCertID().getSerialNumber().intValue();
+                  if ((serial == 4) && (requests.length > 1)) {
+                    continue;
+                  }
+                  CertificateStatus status =
+                      (serial == 3)
+                          ? new RevokedStatus(from, CRLReason.keyCompromise)
+                          : CertificateStatus.GOOD;
+                  builder.addResponse(req.getCertID(), status, new Date(), to);
+                }
+                byte[] answer =
+                    new OCSPRespBuilder()
+                        .build(OCSPRespBuilder.SUCCESSFUL, builder.build(signer, null, new Date()))
+                        .getEncoded();
+                exchange.sendResponseHeaders(200, answer.length);
+                exchange.getResponseBody().write(answer);
+              } catch (OCSPException e) {
+                exchange.sendResponseHeaders(500, -1);
+              }
+              exchange.close();
+            }
+          });
+      server.start();
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ocsp";
+
+      List<CertAndIssuer> certs = new ArrayList<CertAndIssuer>();
+      for (int serial = 1; serial <= 5; serial++) {
+        X509Certificate leaf =
+            converter.getCertificate(
+                new JcaX509v3CertificateBuilder(
+                        caName,
+                        BigInteger.valueOf(serial),
+                        from,
+                        to,
+                        new X500Name("CN=leaf" + serial + ".test"),
+                        kpg.generateKeyPair().getPublic())
+                    .addExtension(
+                        Extension.authorityInfoAccess,
+                        false,
+                        new AuthorityInformationAccess(
+                            new AccessDescription(
+                                AccessDescription.id_ad_ocsp,
+                                new GeneralName(GeneralName.uniformResourceIdentifier, url))))
+                    .build(signer));
+        certs.add(new CertAndIssuer(leaf, ca));
+      }
+
+      OCSPVerifier verifier = new OCSPVerifier(new OCSPVerifier.Configuration());
+      Map<CertAndIssuer, VerificationStatus> results = verifier.checkRevocationStatusBatch(certs);
+      assertEquals(5, results.size());
+      for (CertAndIssuer c : certs) {
+        int expected =
+            c.getPeerCert().getSerialNumber().intValue() == 3
+                ? VerificationStatus.BAD
+                : VerificationStatus.GOOD;
+        assertEquals(expected, results.get(c).getStatus());
+      }
+      //Serial 4 wasn't answered for, so it was asked about again on its own
+      assertEquals(Arrays.asList(5, 1), certsPerRequest);
+
+      //All cached now
+      assertEquals(5, verifier.checkRevocationStatusBatch(certs).size());
+      assertEquals(2, certsPerRequest.size());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  @Test
+  /** Cache hits don't add records to the journal, only loads do */
+  public void test34() {
+    File file = null;
+    try {
+      file = File.createTempFile("OCSP", ".journal");
+      final Date future = new Date(System.currentTimeMillis() + 3600000L);
+      final AtomicInteger loads = new AtomicInteger();
+      Callable<VerificationStatus> loader =
+          new Callable<VerificationStatus>() {
+            @Override
+            public VerificationStatus call() {
+              loads.incrementAndGet();
+              return new VerificationStatus(VerificationStatus.GOOD, future);
+            }
+          };
+
+      long[] lengths = new long[2];
+      int[] hits = {0, 1000};
+      for (int run = 0; run < 2; run++) {
+        file.delete();
+        Configuration configurationOCSP = new OCSPVerifier.Configuration();
+        configurationOCSP.useCache = true;
+        configurationOCSP.journalFileName = file.getPath();
+        OCSPVerifier ocspVerifier = new OCSPVerifier(configurationOCSP);
+        for (int i = 0; i <= hits[run]; i++) {
+          ocspVerifier.getCache().get(certID(1), loader);
+        }
+        ocspVerifier.shutdown();
+        lengths[run] = file.length();
+      }
+      assertEquals(2, loads.get());
+      assertTrue(lengths[0] > 0);
+      assertEquals(lengths[0], lengths[1]);
+    } catch (ClassNotFoundException | IOException | ExecutionException e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (file != null) {
+        file.delete();
+      }
+    }
+  }
+
+  @Test
+  /** A CRL that is slower than the check deadline is still fetched and cached in the background */
+  public void test35() {
+    HttpServer server = null;
+    try {
+      TestCA ca = new TestCA();
+      Date nextUpdate = new Date(System.currentTimeMillis() + 3600000L);
+      server = serve(new AtomicReference<byte[]>(ca.crl(nextUpdate)), 400);
+      X509Certificate[] chain =
+          ca.issue(2, "http://127.0.0.1:" + server.getAddress().getPort() + "/ca.crl");
+
+      CRLVerifier.Configuration config = new CRLVerifier.Configuration();
+      config.checkDeadline = 200;
+      CRLVerifier verifier = new CRLVerifier(config);
+      VerificationStatus status = verifier.checkRevocationStatus(chain[0], chain[1], chain);
+      assertEquals(VerificationStatus.UNKNOWN, status.getStatus());
+
+      for (int i = 0; (i < 100) && (verifier.getCache().size() == 0); i++) {
+        Thread.sleep(50);
+      }
+      assertEquals(1, verifier.getCache().size());
+      status = verifier.checkRevocationStatus(chain[0], chain[1], chain);
+      assertEquals(VerificationStatus.GOOD, status.getStatus());
+      assertEquals(0, verifier.getMetrics().getFetchFailures());
+      assertEquals(1, verifier.getMetrics().getFetches());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  @Test
+  /** A chain accepted on a CRL is only cached until the CRL's nextUpdate */
+  public void test36() {
+    HttpServer server = null;
+    try {
+      TestCA ca = new TestCA();
+      AtomicReference<byte[]> crl =
+          new AtomicReference<byte[]>(ca.crl(new Date(System.currentTimeMillis() + 1500)));
+      server = serve(crl, 0);
+      X509Certificate[] chain =
+          ca.issue(2, "http://127.0.0.1:" + server.getAddress().getPort() + "/ca.crl");
+
+      CRLVerifier verifier = new CRLVerifier(new CRLVerifier.Configuration());
+      RevocationTrustManager manager =
+          new RevocationTrustManager(
+              TRUST_ALL, null, verifier, null, new RevocationTrustManager.Policy());
+      manager.checkServerTrusted(chain, "EC");
+      manager.checkServerTrusted(chain, "EC");
+      assertEquals(1, manager.getChainCacheStats().hitCount());
+
+      //The next CRL revokes the leaf
+      crl.set(ca.crl(new Date(System.currentTimeMillis() + 3600000L), 2));
+      Thread.sleep(3500);
+      try {
+        manager.checkServerTrusted(chain, "EC");
+        fail("Should have been revoked");
+      } catch (CertificateException e) {
+        //Expected
+      }
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+
+    //A CRL that can't be fetched is a soft failure, so the verdict isn't cached
+    try {
+      int port;
+      try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+        port = closed.getLocalPort();
+      }
+      TestCA ca = new TestCA();
+      X509Certificate[] chain = ca.issue(2, "http://127.0.0.1:" + port + "/x");
+      CRLVerifier verifier = new CRLVerifier(new CRLVerifier.Configuration());
+      RevocationTrustManager manager =
+          new RevocationTrustManager(
+              TRUST_ALL, null, verifier, null, new RevocationTrustManager.Policy());
+      manager.checkServerTrusted(chain, "EC");
+      manager.checkServerTrusted(chain, "EC");
+      assertEquals(0, manager.getChainCacheStats().hitCount());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** Only a responder's own failures are negative cached for it, not those of one request */
+  public void test37() {
+    HttpServer server = null;
+    try {
+      final TestCA ca = new TestCA();
+      final AtomicInteger requests = new AtomicInteger();
+      final AtomicInteger failWith = new AtomicInteger(0);
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+      server.createContext(
+          "/",
+          new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+              requests.incrementAndGet();
+              byte[] request = exchange.getRequestBody().readAllBytes();
+              try {
+                if (failWith.get() != 0) {
+                  exchange.sendResponseHeaders(failWith.get(), -1);
+                } else {
+                  byte[] answer = ca.ocspResponse(request);
+                  exchange.sendResponseHeaders(200, answer.length);
+                  exchange.getResponseBody().write(answer);
+                }
+              } catch (Exception e) {
+                exchange.sendResponseHeaders(500, -1);
+              }
+              exchange.close();
+            }
+          });
+      server.start();
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ocsp";
+
+      OCSPVerifier verifier = new OCSPVerifier(new OCSPVerifier.Configuration());
+      //A request the responder rejects doesn't stop other certificates from being checked
+      failWith.set(400);
+      X509Certificate[] chain = ca.issueOCSP(2, url);
+      try {
+        verifier.checkRevocationStatus(chain[0], chain[1], chain);
+        fail("Should have failed");
+      } catch (CertificateVerificationException e) {
+        //Expected
+      }
+      failWith.set(0);
+      chain = ca.issueOCSP(3, url);
+      assertEquals(
+          VerificationStatus.GOOD,
+          verifier.checkRevocationStatus(chain[0], chain[1], chain).getStatus());
+      assertEquals(2, requests.get());
+
+      //A responder that is down is negative cached for every certificate
+      failWith.set(503);
+      for (int serial = 4; serial <= 5; serial++) {
+        chain = ca.issueOCSP(serial, url);
+        try {
+          verifier.checkRevocationStatus(chain[0], chain[1], chain);
+          fail("Should have failed");
+        } catch (CertificateVerificationException e) {
+          //Expected
+        }
+      }
+      assertEquals(3, requests.get());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  @Test
+  /** A CRL server that answers 404 is up, so it doesn't trip its circuit breaker */
+  public void test38() {
+    HttpServer server = null;
+    try {
+      TestCA ca = new TestCA();
+      AtomicReference<byte[]> crl = new AtomicReference<byte[]>(null);
+      server = serve(crl, 0);
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+      CRLVerifier.Configuration config = new CRLVerifier.Configuration();
+      CRLVerifier verifier = new CRLVerifier(config);
+      for (int serial = 2; serial < 4 + config.circuitBreakerFailureThreshold; serial++) {
+        X509Certificate[] chain = ca.issue(serial, url + "missing" + serial + ".crl");
+        try {
+          verifier.checkRevocationStatus(chain[0], chain[1], chain);
+        } catch (CertificateVerificationException e) {
+          //Expected
+        }
+      }
+      assertEquals(0, verifier.getMetrics().getFetches());
+
+      crl.set(ca.crl(new Date(System.currentTimeMillis() + 3600000L)));
+      X509Certificate[] chain = ca.issue(100, url + "ca.crl");
+      VerificationStatus status = verifier.checkRevocationStatus(chain[0], chain[1], chain);
+      assertEquals(VerificationStatus.GOOD, status.getStatus());
+      assertEquals(1, verifier.getMetrics().getFetches());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  @Test
+  /** Entries that are in use are refreshed ahead of their nextUpdate, unused ones aren't */
+  public void test39() {
+    try {
+      Verifier.Configuration config = new Verifier.Configuration();
+      config.refreshAhead = true;
+      config.refreshAheadDuration = 2000;
+      config.refreshAheadTimeUnit = TimeUnit.MILLISECONDS;
+      config.refreshAheadJitter = 0.5;
+      config.expiryCheckDuration = 100;
+      config.expiryCheckTimeUnit = TimeUnit.MILLISECONDS;
+      StubVerifier verifier = new StubVerifier(answering(VerificationStatus.GOOD), config);
+
+      final AtomicInteger hotLoads = new AtomicInteger();
+      final AtomicInteger coldLoads = new AtomicInteger();
+      final AtomicLong refreshedAt = new AtomicLong();
+      Callable<VerificationStatus> hotLoader =
+          new Callable<VerificationStatus>() {
+            @Override
+            public VerificationStatus call() {
+              if (hotLoads.incrementAndGet() == 2) {
+                refreshedAt.set(System.currentTimeMillis());
+              }
+              return new VerificationStatus(
+                  VerificationStatus.GOOD, new Date(System.currentTimeMillis() + 4000));
+            }
+          };
+      Callable<VerificationStatus> coldLoader =
+          new Callable<VerificationStatus>() {
+            @Override
+            public VerificationStatus call() {
+              coldLoads.incrementAndGet();
+              return new VerificationStatus(
+                  VerificationStatus.GOOD, new Date(System.currentTimeMillis() + 4000));
+            }
+          };
+
+      long nextUpdate = verifier.getCached(certID(1), hotLoader).getNextUpdate().getTime();
+      verifier.getCached(certID(2), coldLoader);
+      //Read the hot entry, then leave both alone past the latest time either could be refreshed at
+      for (int i = 0; i < 5; i++) {
+        verifier.getCached(certID(1), hotLoader);
+      }
+      Thread.sleep(nextUpdate - 600 - System.currentTimeMillis());
+      assertEquals(2, hotLoads.get());
+      //Not before the refresh window, and no later than the jitter allows
+      assertTrue(refreshedAt.get() >= nextUpdate - 2000);
+      assertTrue(refreshedAt.get() < nextUpdate - 600);
+      assertEquals(1, coldLoads.get());
+
+      //A cold entry that is due is refreshed when it is read again
+      verifier.getCached(certID(2), coldLoader);
+      for (int i = 0; (i < 20) && (coldLoads.get() < 2); i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(2, coldLoads.get());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** Concurrent async checks of one certificate share a load, and share its failure */
+  public void test40() {
+    HttpServer server = null;
+    try {
+      final TestCA ca = new TestCA();
+      final AtomicInteger requests = new AtomicInteger();
+      final AtomicInteger failWith = new AtomicInteger(0);
+      final CountDownLatch answer = new CountDownLatch(1);
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.createContext(
+          "/",
+          new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+              requests.incrementAndGet();
+              byte[] request = exchange.getRequestBody().readAllBytes();
+              try {
+                answer.await();
+                if (failWith.get() != 0) {
+                  exchange.sendResponseHeaders(failWith.get(), -1);
+                } else {
+                  byte[] body = ca.ocspResponse(request);
+                  exchange.sendResponseHeaders(200, body.length);
+                  exchange.getResponseBody().write(body);
+                }
+              } catch (Exception e) {
+                exchange.sendResponseHeaders(500, -1);
+              }
+              exchange.close();
+            }
+          });
+      server.start();
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ocsp";
+      OCSPVerifier verifier = new OCSPVerifier(new OCSPVerifier.Configuration());
+
+      //None of these can finish until the responder answers, so they are all misses
+      X509Certificate[] chain = ca.issueOCSP(2, url);
+      List<CompletableFuture<VerificationStatus>> checks =
+          new ArrayList<CompletableFuture<VerificationStatus>>();
+      for (int i = 0; i < 20; i++) {
+        checks.add(verifier.checkRevocationStatusAsync(chain[0], chain[1], chain));
+      }
+      answer.countDown();
+      for (CompletableFuture<VerificationStatus> check : checks) {
+        assertEquals(VerificationStatus.GOOD, check.get(10, TimeUnit.SECONDS).getStatus());
+      }
+      assertEquals(1, requests.get());
+
+      failWith.set(503);
+      chain = ca.issueOCSP(3, url);
+      checks.clear();
+      for (int i = 0; i < 20; i++) {
+        checks.add(verifier.checkRevocationStatusAsync(chain[0], chain[1], chain));
+      }
+      for (CompletableFuture<VerificationStatus> check : checks) {
+        try {
+          check.get(10, TimeUnit.SECONDS);
+          fail("Should have failed");
+        } catch (ExecutionException e) {
+          assertTrue(e.getCause() instanceof CertificateVerificationException);
+        }
+      }
+      assertEquals(2, requests.get());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  @Test
+  /** A batch of cached and uncached certificates is answered in the order it was given */
+  public void test41() {
+    HttpServer a = null;
+    HttpServer b = null;
+    try {
+      TestCA ca = new TestCA();
+      AtomicInteger aRequests = new AtomicInteger();
+      AtomicInteger bRequests = new AtomicInteger();
+      a = serveOCSP(ca, aRequests);
+      b = serveOCSP(ca, bRequests, 3);
+      String aUrl = "http://127.0.0.1:" + a.getAddress().getPort() + "/ocsp";
+      String bUrl = "http://127.0.0.1:" + b.getAddress().getPort() + "/ocsp";
+
+      //Alternate between the responders so that neither group is a run of the input
+      List<CertAndIssuer> certs = new ArrayList<CertAndIssuer>();
+      for (int serial = 2; serial <= 7; serial++) {
+        X509Certificate[] chain = ca.issueOCSP(serial, (serial % 2 == 0) ? aUrl : bUrl);
+        certs.add(new CertAndIssuer(chain[0], chain[1], chain));
+      }
+      OCSPVerifier verifier = new OCSPVerifier(new OCSPVerifier.Configuration());
+      for (CertAndIssuer c : Arrays.asList(certs.get(2), certs.get(3))) {
+        verifier.checkRevocationStatus(c.getPeerCert(), c.getIssuerCert(), c.getFullChain());
+      }
+      assertEquals(1, aRequests.get());
+      assertEquals(1, bRequests.get());
+
+      Map<CertAndIssuer, VerificationStatus> results = verifier.checkRevocationStatusBatch(certs);
+      assertEquals(certs, new ArrayList<CertAndIssuer>(results.keySet()));
+      for (CertAndIssuer c : certs) {
+        int expected =
+            c.getPeerCert().getSerialNumber().longValue() == 3
+                ? VerificationStatus.BAD
+                : VerificationStatus.GOOD;
+        assertEquals(expected, results.get(c).getStatus());
+      }
+      //The cached certificates aren't asked about again
+      assertEquals(2, aRequests.get());
+      assertEquals(2, bRequests.get());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (a != null) {
+        a.stop(0);
+      }
+      if (b != null) {
+        b.stop(0);
+      }
+    }
+  }
+
+  @Test
+  /** Fetches run on the configured executor, one thread per request, or inline for sync checks */
+  public void test42() {
+    HttpServer server = null;
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      //Fetches run on the shared platform threads, virtual threads if asked for, or the supplied
+      //executor, which the verifier leaves running
+      Callable<Thread> whichThread =
+          new Callable<Thread>() {
+            @Override
+            public Thread call() {
+              return Thread.currentThread();
+            }
+          };
+      StubVerifier verifier = new StubVerifier(answering(VerificationStatus.GOOD));
+      Thread thread = verifier.fetchAsync(whichThread).get();
+      assertTrue(thread.getName().startsWith("SSL Verifier Fetch"));
+      assertTrue(thread.isDaemon());
+      verifier.shutdown();
+
+      Verifier.Configuration config = new Verifier.Configuration();
+      config.useVirtualThreadsForFetches = true;
+      verifier = new StubVerifier(answering(VerificationStatus.GOOD), config);
+      thread = verifier.fetchAsync(whichThread).get();
+      boolean virtual;
+      try {
+        virtual = (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+      } catch (NoSuchMethodException e) {
+        virtual = false;
+      }
+      assertTrue(virtual || thread.getName().startsWith("SSL Verifier Fetch"));
+      verifier.shutdown();
+
+      final AtomicInteger tasks = new AtomicInteger();
+      final ExecutorService delegate = pool;
+      config = new Verifier.Configuration();
+      config.fetchExecutor =
+          new Executor() {
+            @Override
+            public void execute(Runnable command) {
+              tasks.incrementAndGet();
+              delegate.execute(command);
+            }
+          };
+      verifier = new StubVerifier(answering(VerificationStatus.GOOD), config);
+      verifier.fetchAsync(whichThread).get();
+      assertEquals(1, tasks.get());
+      verifier.shutdown();
+      assertTrue(!pool.isShutdown());
+
+      //A check with one responder URL doesn't hand its fetch to a thread that it then waits on
+      TestCA ca = new TestCA();
+      AtomicInteger requests = new AtomicInteger();
+      server = serveOCSP(ca, requests);
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ocsp";
+      OCSPVerifier.Configuration ocspConfig = new OCSPVerifier.Configuration();
+      ocspConfig.fetchExecutor = config.fetchExecutor;
+      OCSPVerifier ocsp = new OCSPVerifier(ocspConfig);
+      X509Certificate[] chain = ca.issueOCSP(2, url);
+      tasks.set(0);
+      assertEquals(
+          VerificationStatus.GOOD,
+          ocsp.checkRevocationStatus(chain[0], chain[1], chain).getStatus());
+      assertEquals(0, tasks.get());
+      //Checks that don't block the caller use one fetch thread per request
+      chain = ca.issueOCSP(3, url);
+      assertEquals(
+          VerificationStatus.GOOD,
+          ocsp.checkRevocationStatusAsync(chain[0], chain[1], chain).get().getStatus());
+      assertEquals(1, tasks.get());
+      assertEquals(2, requests.get());
+      ocsp.shutdown();
+
+      CRLVerifier.Configuration crlConfig = new CRLVerifier.Configuration();
+      crlConfig.fetchExecutor = config.fetchExecutor;
+      CRLVerifier crl = new CRLVerifier(crlConfig);
+      server.stop(0);
+      byte[] crlBytes = ca.crl(new Date(System.currentTimeMillis() + 60000));
+      server = serve(new AtomicReference<byte[]>(crlBytes), 0);
+      url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+      chain = ca.issue(4, url + "a.crl");
+      tasks.set(0);
+      assertEquals(
+          VerificationStatus.GOOD,
+          crl.checkRevocationStatus(chain[0], chain[1], chain).getStatus());
+      assertEquals(0, tasks.get());
+      chain = ca.issue(5, url + "b.crl");
+      assertEquals(
+          VerificationStatus.GOOD,
+          crl.checkRevocationStatusAsync(chain[0], chain[1], chain).get().getStatus());
+      assertEquals(1, tasks.get());
+      crl.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  /** Latency percentiles are kept per interval, split by cache hit and miss and by fetch host */
+  public void test43() {
+    HttpServer server = null;
+    try {
+      VerifierMetrics metrics = new VerifierMetrics("test43", null);
+      for (int i = 0; i < 99; i++) {
+        metrics.checked(true, TimeUnit.MILLISECONDS.toNanos(1));
+      }
+      metrics.checked(true, TimeUnit.MILLISECONDS.toNanos(100));
+      metrics.checked(false, TimeUnit.MILLISECONDS.toNanos(50));
+      metrics.fetched("http://a.example/ocsp", TimeUnit.MILLISECONDS.toNanos(20), 100);
+      metrics.fetched("http://a.example/other", TimeUnit.MILLISECONDS.toNanos(40), 100);
+      metrics.fetched("http://b.example/ca.crl", TimeUnit.MILLISECONDS.toNanos(10), 100);
+
+      //Nothing is published until the interval ends
+      assertEquals(0, metrics.getHitLatency().getCount());
+      assertEquals(-1, metrics.getFetchLatencyNanos("http://a.example/ocsp", 50.0));
+
+      metrics.snapshotLatencies();
+      LatencySnapshot hits = metrics.getHitLatency();
+      assertEquals(100, hits.getCount());
+      assertEquals(1.0, hits.getP50Millis(), 0.01);
+      assertEquals(1.0, hits.getP99Millis(), 0.01);
+      assertEquals(100.0, hits.getP999Millis(), 0.1);
+      assertEquals(100.0, hits.getMaxMillis(), 0.1);
+      assertEquals(1, metrics.getMissLatency().getCount());
+      assertEquals(50.0, metrics.getMissLatency().getP50Millis(), 0.1);
+
+      //URLs on the same host share their fetch latencies
+      Map<String, LatencySnapshot> fetches = metrics.getFetchLatencies();
+      assertEquals(2, fetches.size());
+      assertEquals(2, fetches.get("a.example").getCount());
+      assertEquals(40.0, fetches.get("a.example").getMaxMillis(), 0.1);
+      assertEquals(1, fetches.get("b.example").getCount());
+      assertEquals(
+          TimeUnit.MILLISECONDS.toNanos(40),
+          metrics.getFetchLatencyNanos("http://a.example/third", 100.0),
+          TimeUnit.MILLISECONDS.toNanos(1) / 10);
+      assertTrue(
+          metrics
+              .getIntervalHistograms()
+              .keySet()
+              .containsAll(Arrays.asList("hit", "miss", "a.example", "b.example")));
+
+      //Each snapshot only covers its own interval
+      metrics.checked(false, TimeUnit.MILLISECONDS.toNanos(5));
+      metrics.snapshotLatencies();
+      assertEquals(0, metrics.getHitLatency().getCount());
+      assertEquals(1, metrics.getMissLatency().getCount());
+      assertEquals(5.0, metrics.getMissLatency().getMaxMillis(), 0.01);
+      assertEquals(0, metrics.getFetchLatencies().get("a.example").getCount());
+
+      //A verifier records its checks and the fetches they make
+      TestCA ca = new TestCA();
+      server = serveOCSP(ca, new AtomicInteger());
+      X509Certificate[] chain =
+          ca.issueOCSP(2, "http://127.0.0.1:" + server.getAddress().getPort() + "/ocsp");
+      OCSPVerifier verifier = new OCSPVerifier(new OCSPVerifier.Configuration());
+      verifier.checkRevocationStatus(chain[0], chain[1], chain);
+      verifier.checkRevocationStatus(chain[0], chain[1], chain);
+      verifier.getMetrics().snapshotLatencies();
+      assertEquals(1, verifier.getMetrics().getHitLatency().getCount());
+      assertEquals(1, verifier.getMetrics().getMissLatency().getCount());
+      assertEquals(1, verifier.getMetrics().getFetchLatencies().get("127.0.0.1").getCount());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  @Test
+  /** A batch with certificates whose issuer isn't known finishes, and so do later checks of them */
+  public void test44() {
+    HttpServer server = null;
+    try {
+      TestCA ca = new TestCA();
+      AtomicInteger requests = new AtomicInteger();
+      server = serveOCSP(ca, requests);
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ocsp";
+      List<CertAndIssuer> certs = new ArrayList<CertAndIssuer>();
+      for (int serial = 2; serial <= 4; serial++) {
+        X509Certificate[] chain = ca.issueOCSP(serial, url);
+        certs.add(new CertAndIssuer(chain[0], (serial == 3) ? chain[1] : null, chain));
+      }
+
+      OCSPVerifier verifier = new OCSPVerifier(new OCSPVerifier.Configuration());
+      Map<CertAndIssuer, VerificationStatus> results = verifier.checkRevocationStatusBatch(certs);
+      assertEquals(1, results.size());
+      assertEquals(VerificationStatus.GOOD, results.get(certs.get(1)).getStatus());
+
+      //The failed loads aren't left in flight
+      CertAndIssuer c = certs.get(0);
+      try {
+        verifier
+            .checkRevocationStatusAsync(c.getPeerCert(), c.getIssuerCert(), c.getFullChain())
+            .get(5, TimeUnit.SECONDS);
+        fail("Should have failed");
+      } catch (ExecutionException e) {
+        //Expected
+      }
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  @Test
+  /** Entries of an older cache whose keys are no longer used are dropped, not loaded */
+  public void test45() {
+    File legacy = null;
+    File saved = null;
+    try {
+      legacy = File.createTempFile("legacy", ".cache");
+      saved = File.createTempFile("saved", ".cache");
+      VerificationStatus status =
+          new VerificationStatus(
+              VerificationStatus.GOOD, new Date(System.currentTimeMillis() + 3600000L));
+      HashMap<Object, VerificationStatus> old = new HashMap<Object, VerificationStatus>();
+      old.put(BigInteger.valueOf(1), status);
+      old.put(BigInteger.valueOf(2), status);
+      old.put(certID(3), status);
+      try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(legacy))) {
+        oos.writeObject(old);
+      }
+
+      Verifier.Configuration config = new Verifier.Configuration();
+      config.loadCacheFromColdStorageOnStart = true;
+      config.loadCacheColdStorageFileName = legacy.getPath();
+      config.storeCacheToColdStorageOnQuit = true;
+      config.storeCacheColdStorageFileName = saved.getPath();
+      StubVerifier verifier = new StubVerifier(answering(VerificationStatus.GOOD), config);
+      assertEquals(1, verifier.getCache().size());
+      assertNotNull(verifier.getCache().getIfPresent(certID(3)));
+      verifier.shutdown();
+
+      //What was saved loads back
+      config.loadCacheColdStorageFileName = saved.getPath();
+      config.storeCacheToColdStorageOnQuit = false;
+      verifier = new StubVerifier(answering(VerificationStatus.GOOD), config);
+      assertEquals(1, verifier.getCache().size());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    } finally {
+      if (legacy != null) {
+        legacy.delete();
+      }
+      if (saved != null) {
+        saved.delete();
+      }
+    }
+  }
+
+  @Test
+  /** An entry whose refresh brings back the same nextUpdate isn't refreshed again */
+  public void test46() {
+    try {
+      Verifier.Configuration config = new Verifier.Configuration();
+      config.refreshAhead = true;
+      config.refreshAheadDuration = 2000;
+      config.refreshAheadTimeUnit = TimeUnit.MILLISECONDS;
+      config.refreshAheadJitter = 0.0;
+      config.expiryCheckDuration = 100;
+      config.expiryCheckTimeUnit = TimeUnit.MILLISECONDS;
+      StubVerifier verifier = new StubVerifier(answering(VerificationStatus.GOOD), config);
+
+      final AtomicInteger loads = new AtomicInteger();
+      final Date nextUpdate = new Date(System.currentTimeMillis() + 3000);
+      Callable<VerificationStatus> loader =
+          new Callable<VerificationStatus>() {
+            @Override
+            public VerificationStatus call() {
+              loads.incrementAndGet();
+              return new VerificationStatus(VerificationStatus.GOOD, nextUpdate);
+            }
+          };
+      //Keep the entry hot until it is about to expire
+      while (System.currentTimeMillis() < nextUpdate.getTime() - 200) {
+        verifier.getCached(certID(1), loader);
+        Thread.sleep(50);
+      }
+      assertEquals(2, loads.get());
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** A byte bounded cache keeps an entry that is most of its budget */
+  public void test47() {
+    try {
+      Verifier.Configuration config = new Verifier.Configuration();
+      config.cacheMaxBytes = 10000L;
+      StubVerifier verifier =
+          new StubVerifier(answering(VerificationStatus.GOOD), config) {
+            @Override
+            protected int getWeight(CertID key, VerificationStatus value) {
+              return key.equals(certID(1)) ? 8000 : 100;
+            }
+          };
+      Callable<VerificationStatus> loader =
+          new Callable<VerificationStatus>() {
+            @Override
+            public VerificationStatus call() {
+              return new VerificationStatus(
+                  VerificationStatus.GOOD, new Date(System.currentTimeMillis() + 3600000L));
+            }
+          };
+      verifier.getCached(certID(1), loader);
+      assertNotNull(verifier.getCache().getIfPresent(certID(1)));
+      for (int serial = 2; serial <= 10; serial++) {
+        verifier.getCached(certID(serial), loader);
+      }
+      assertEquals(10, verifier.getCache().size());
+
+      //Going over the budget evicts
+      for (int serial = 11; serial <= 30; serial++) {
+        verifier.getCached(certID(serial), loader);
+      }
+      assertTrue(verifier.getCache().size() < 30);
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+  @Test
+  /** A malformed CRL URL doesn't leave its host's circuit breaker waiting on a probe */
+  public void test48() {
+    try {
+      TestCA ca = new TestCA();
+      int port;
+      try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+        port = socket.getLocalPort();
+      }
+      CRLVerifier.Configuration config = new CRLVerifier.Configuration();
+      config.circuitBreakerFailureThreshold = 1;
+      config.circuitBreakerOpenDuration = 200;
+      config.circuitBreakerOpenTimeUnit = TimeUnit.MILLISECONDS;
+      CRLVerifier verifier = new CRLVerifier(config);
+      X509Certificate[] chain = ca.issue(2, "http://127.0.0.1:" + port + "/ca.crl");
+      try {
+        verifier.checkRevocationStatus(chain[0], chain[1], chain);
+      } catch (CertificateVerificationException e) {
+        //Expected
+      }
+      assertEquals(CircuitBreaker.State.OPEN, verifier.getCircuitStates().get("127.0.0.1"));
+
+      //The next request to the host is the probe
+      Thread.sleep(300);
+      chain = ca.issue(3, "foo://127.0.0.1:" + port + "/ca.crl");
+      try {
+        verifier.checkRevocationStatus(chain[0], chain[1], chain);
+      } catch (CertificateVerificationException e) {
+        //Expected
+      }
+      assertEquals(CircuitBreaker.State.CLOSED, verifier.getCircuitStates().get("127.0.0.1"));
+      verifier.shutdown();
+    } catch (Exception e) {
+      fail("Should have worked:" + e);
+    }
+  }
+
+
+
+
+
+
+
   public class MyTrustManager implements X509TrustManager {
 
     private X509TrustManager x509Tm;